@@ -1,6 +1,5 @@
 package com.flagsmith;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.flagsmith.config.FlagsmithCacheConfig;
 import com.flagsmith.config.FlagsmithConfig;
 import com.flagsmith.exceptions.FlagsmithApiError;
@@ -8,24 +7,45 @@ import com.flagsmith.exceptions.FlagsmithClientError;
 import com.flagsmith.exceptions.FlagsmithRuntimeError;
 import com.flagsmith.flagengine.Engine;
 import com.flagsmith.flagengine.EvaluationContext;
+import com.flagsmith.flagengine.EvaluationPlan;
+import com.flagsmith.flagengine.EvaluationPlanOptions;
 import com.flagsmith.flagengine.EvaluationResult;
+import com.flagsmith.flagengine.FeatureContext;
+import com.flagsmith.flagengine.FlagResult;
+import com.flagsmith.flagengine.IdentityContext;
+import com.flagsmith.flagengine.SegmentContext;
+import com.flagsmith.flagengine.SegmentMembershipMemo;
+import com.flagsmith.flagengine.segments.SegmentOptimiser;
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
 import com.flagsmith.interfaces.FlagsmithCache;
 import com.flagsmith.interfaces.FlagsmithSdk;
 import com.flagsmith.mappers.EngineMappers;
 import com.flagsmith.models.BaseFlag;
+import com.flagsmith.models.FeatureMetadata;
+import com.flagsmith.models.Flag;
 import com.flagsmith.models.Flags;
+import com.flagsmith.models.IdentityRequest;
 import com.flagsmith.models.Segment;
 import com.flagsmith.models.SegmentMetadata;
 import com.flagsmith.threads.PollingManager;
 import com.flagsmith.utils.ModelUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,7 +58,19 @@ public class FlagsmithClient {
   private final FlagsmithLogger logger = new FlagsmithLogger();
   private FlagsmithSdk flagsmithSdk;
   private EvaluationContext evaluationContext;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private volatile CompiledEnvironment compiledEnvironment;
   private PollingManager pollingManager;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private ForkJoinPool batchEvaluationPool;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private IdentityResultCache identityResultCache;
+  @Getter(AccessLevel.NONE)
+  @Setter(AccessLevel.NONE)
+  private EvaluationPlanOptions evaluationPlanOptions = EvaluationPlanOptions.newBuilder().build();
 
   private FlagsmithClient() {
   }
@@ -57,7 +89,7 @@ public class FlagsmithClient {
       // if we didn't get an environment from the API,
       // then don't overwrite the copy we already have.
       if (updatedEvaluationContext != null) {
-        this.evaluationContext = updatedEvaluationContext;
+        setEvaluationContext(updatedEvaluationContext);
       } else {
         logger.error(getEnvironmentUpdateErrorMessage());
       }
@@ -66,6 +98,36 @@ public class FlagsmithClient {
     }
   }
 
+  /**
+   * Set the evaluation context used for local evaluation, compiling it into the
+   * evaluation plan used by the engine. Segments are optimised for the plan
+   * only; the context itself is kept as given.
+   *
+   * @param evaluationContext evaluation context, or null to clear it
+   */
+  public void setEvaluationContext(EvaluationContext evaluationContext) {
+    final EvaluationPlan previousPlan = getEvaluationPlan();
+    this.compiledEnvironment = evaluationContext != null
+        ? new CompiledEnvironment(EvaluationPlan.compile(
+            SegmentOptimiser.optimise(evaluationContext, FlagsmithClient::isApiSegment),
+            evaluationPlanOptions))
+        : null;
+    this.evaluationContext = evaluationContext;
+    if (identityResultCache != null) {
+      identityResultCache.onPlanChanged(previousPlan, getEvaluationPlan());
+    }
+  }
+
+  /**
+   * Get the evaluation plan compiled from the current evaluation context.
+   *
+   * @return evaluation plan, or null if there is no evaluation context
+   */
+  public EvaluationPlan getEvaluationPlan() {
+    final CompiledEnvironment environment = compiledEnvironment;
+    return environment != null ? environment.plan : null;
+  }
+
   /**
    * Get all the default for flags for the current environment.
    *
@@ -143,6 +205,95 @@ public class FlagsmithClient {
     return getIdentityFlagsFromApi(identifier, traits, isTransient);
   }
 
+  /**
+   * Get the flags of the given features for a given identity.
+   *
+   * <p>
+   * With local evaluation, only the segments overriding the given features are
+   * evaluated, and the returned flags are limited to the given features.
+   * Otherwise, the flags are retrieved from the Flagsmith API as with
+   * {@link #getIdentityFlags(String, Map)}.
+   * </p>
+   *
+   * @param identifier   identifier string
+   * @param traits       a map of trait keys to trait values
+   * @param featureNames names of the features to get flags for
+   * @return result of flag evaluation for given identity
+   */
+  public Flags getIdentityFlags(
+      String identifier, Map<String, Object> traits, Set<String> featureNames)
+      throws FlagsmithClientError {
+    if (getShouldUseEnvironmentDocument()) {
+      return getIdentityFlagsFromEvaluationContext(identifier, traits, featureNames);
+    }
+
+    return getIdentityFlagsFromApi(identifier, traits, false);
+  }
+
+  /**
+   * Check whether a feature is enabled for a given identity.
+   *
+   * <p>
+   * With local evaluation, only the segments overriding the feature are
+   * evaluated.
+   * </p>
+   *
+   * @param identifier  identifier string
+   * @param traits      a map of trait keys to trait values
+   * @param featureName name of the feature
+   * @return whether the feature is enabled for given identity
+   */
+  public boolean isFeatureEnabled(
+      String identifier, Map<String, Object> traits, String featureName)
+      throws FlagsmithClientError {
+    return getIdentityFlags(identifier, traits, Collections.singleton(featureName))
+        .isFeatureEnabled(featureName);
+  }
+
+  /**
+   * Get all the flags for the current environment for each of the given
+   * identities. Requires local evaluation or offline mode; traits are not
+   * persisted to the Flagsmith API.
+   *
+   * <p>
+   * All identities are evaluated against the same copy of the environment, in
+   * parallel on a fork-join pool. The parallelism can be configured with
+   * {@link FlagsmithConfig.Builder#withBatchEvaluationParallelism(Integer)}.
+   * Results are served from and added to the local evaluation cache when one
+   * is configured.
+   * </p>
+   *
+   * @param identityRequests identities to evaluate flags for
+   * @return results of flag evaluation, in the order of the given identities
+   */
+  public List<Flags> getIdentityFlagsBatch(Collection<IdentityRequest> identityRequests)
+      throws FlagsmithClientError {
+    if (!getShouldUseEnvironmentDocument()) {
+      throw new FlagsmithClientError(
+          "Local evaluation required to evaluate identity flags in batches.");
+    }
+
+    final CompiledEnvironment environment = compiledEnvironment;
+    final IdentityRequest[] requests = identityRequests.toArray(new IdentityRequest[0]);
+    final Flags[] results = new Flags[requests.length];
+
+    if (environment == null) {
+      if (getConfig().getFlagsmithFlagDefaults() == null) {
+        throw new FlagsmithClientError("Unable to get flags. No environment present.");
+      }
+      Arrays.setAll(results, (i) -> getDefaultFlags());
+      return Arrays.asList(results);
+    }
+
+    final ForkJoinPool pool = batchEvaluationPool != null
+        ? batchEvaluationPool
+        : ForkJoinPool.commonPool();
+    pool.invoke(new BatchEvaluation(environment, identityResultCache, getConfig(),
+        requests, results, 0, requests.length));
+
+    return Arrays.asList(results);
+  }
+
   /**
    * Get a list of segments that the given identity is in.
    *
@@ -164,37 +315,25 @@ public class FlagsmithClient {
    */
   public List<Segment> getIdentitySegments(String identifier, Map<String, Object> traits)
       throws FlagsmithClientError {
-    if (evaluationContext == null) {
+    final CompiledEnvironment environment = compiledEnvironment;
+    if (environment == null) {
       throw new FlagsmithClientError("Local evaluation required to obtain identity segments.");
     }
 
-    final EvaluationContext context = EngineMappers.mapContextAndIdentityDataToContext(
-        evaluationContext, identifier, traits);
-
-    final EvaluationResult result = Engine.getEvaluationResult(context);
-
-    ObjectMapper mapper = MapperFactory.getMapper();
-
-    return result.getSegments().stream().map((segmentModel) -> {
-      if (segmentModel.getMetadata() == null) {
-        return null;
+    final IdentityContext identity = EngineMappers.mapIdentityDataToIdentityContext(
+        identifier, traits);
+
+    final List<Segment> segments = new ArrayList<>();
+    for (int index : Engine.getSegmentIndexes(environment.plan, identity)) {
+      final Segment segment = environment.apiSegments[index];
+      if (segment != null) {
+        Segment copy = new Segment();
+        copy.setId(segment.getId());
+        copy.setName(segment.getName());
+        segments.add(copy);
       }
-
-      SegmentMetadata segmentMetadata = mapper.convertValue(
-          segmentModel.getMetadata(), SegmentMetadata.class);
-
-      Integer flagsmithId = segmentMetadata.getFlagsmithId();
-      if (segmentMetadata.getSource() != SegmentMetadata.Source.API
-          || flagsmithId == null) {
-        return null;
-      }
-
-      Segment segment = new Segment();
-      segment.setId(flagsmithId);
-      segment.setName(segmentModel.getName());
-
-      return segment;
-    }).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+    return segments;
   }
 
   /**
@@ -205,42 +344,53 @@ public class FlagsmithClient {
     if (pollingManager != null) {
       pollingManager.stopPolling();
     }
+    if (batchEvaluationPool != null) {
+      batchEvaluationPool.shutdown();
+    }
     flagsmithSdk.close();
   }
 
   private Flags getEnvironmentFlagsFromEvaluationContext() throws FlagsmithClientError {
-    if (evaluationContext == null) {
+    final CompiledEnvironment environment = compiledEnvironment;
+    if (environment == null) {
       if (getConfig().getFlagsmithFlagDefaults() == null) {
         throw new FlagsmithClientError("Unable to get flags. No environment present.");
       }
       return getDefaultFlags();
     }
 
-    final EvaluationResult result = Engine.getEvaluationResult(
-      new EvaluationContext(evaluationContext)
-        .withSegments(null)
-    );
-
-    return Flags.fromEvaluationResult(
-        result,
-        getConfig().getAnalyticsProcessor(),
-        getConfig().getFlagsmithFlagDefaults());
+    return environment.getEnvironmentFlags(getConfig());
   }
 
   private Flags getIdentityFlagsFromEvaluationContext(
       String identifier, Map<String, Object> traits)
       throws FlagsmithClientError {
-    if (evaluationContext == null) {
+    return getIdentityFlagsFromEvaluationContext(identifier, traits, null);
+  }
+
+  private Flags getIdentityFlagsFromEvaluationContext(
+      String identifier, Map<String, Object> traits, Set<String> featureNames)
+      throws FlagsmithClientError {
+    final CompiledEnvironment environment = compiledEnvironment;
+    if (environment == null) {
       if (getConfig().getFlagsmithFlagDefaults() == null) {
         throw new FlagsmithClientError("Unable to get flags. No environment present.");
       }
       return getDefaultFlags();
     }
 
-    final EvaluationContext context = EngineMappers.mapContextAndIdentityDataToContext(
-        evaluationContext, identifier, traits);
+    final EvaluationPlan plan = environment.plan;
+    final IdentityContext identity = EngineMappers.mapIdentityDataToIdentityContext(
+        identifier, traits);
 
-    final EvaluationResult result = Engine.getEvaluationResult(context);
+    final EvaluationResult result;
+    if (featureNames != null) {
+      result = Engine.getEvaluationResult(plan, identity, featureNames);
+    } else if (identityResultCache != null) {
+      result = identityResultCache.getEvaluationResult(plan, identity);
+    } else {
+      return environment.getIdentityFlags(identity, getConfig());
+    }
 
     return Flags.fromEvaluationResult(
         result,
@@ -305,6 +455,31 @@ public class FlagsmithClient {
     }
   }
 
+  /*
+   * API segments are reported by getIdentitySegments, so they are kept in the
+   * evaluation plan even when they override no feature.
+   */
+  private static boolean isApiSegment(SegmentContext segmentContext) {
+    return getApiSegmentId(segmentContext.getMetadata()) != null;
+  }
+
+  /*
+   * Get the Flagsmith id of a segment created through the API, reading its
+   * metadata leniently so that a source or id the client doesn't know makes the
+   * segment a non-API segment rather than failing to install the environment.
+   */
+  private static Integer getApiSegmentId(Map<String, Object> metadata) {
+    if (metadata == null
+        || !SegmentMetadata.Source.API.name().equals(metadata.get("source"))) {
+      return null;
+    }
+    try {
+      return MapperFactory.getMapper().convertValue(metadata.get("flagsmithId"), Integer.class);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
   private FlagsmithConfig getConfig() {
     return flagsmithSdk.getConfig();
   }
@@ -328,6 +503,186 @@ public class FlagsmithClient {
     return config.getEnableLocalEvaluation() | config.getOfflineMode();
   }
 
+  /**
+   * An evaluation plan together with the API segments of its environment,
+   * indexed like the segments of the plan, and its environment flag results.
+   * The environment flag results are evaluated once, but each call gets flags
+   * of its own, so that callers changing them don't affect other calls.
+   * Feature ids are read from the metadata of the environment's feature
+   * contexts up front, so that identity flags are built without mapping
+   * metadata on every evaluation.
+   */
+  private static class CompiledEnvironment {
+    private final EvaluationPlan plan;
+    private final Segment[] apiSegments;
+    private final Collection<FlagResult> environmentFlags;
+    private final Map<Map<String, Object>, Integer> featureIds = new IdentityHashMap<>();
+
+    CompiledEnvironment(EvaluationPlan plan) {
+      this.plan = plan;
+      this.environmentFlags = new ArrayList<>(Engine.getEnvironmentEvaluationResult(plan)
+          .getFlags().getAdditionalProperties().values());
+
+      EvaluationContext context = plan.getContext();
+      if (context.getFeatures() != null) {
+        for (FeatureContext featureContext : context.getFeatures().getAdditionalProperties()
+            .values()) {
+          addFeatureId(featureContext);
+        }
+      }
+      for (SegmentContext segmentContext : plan.getSegments()) {
+        if (segmentContext.getOverrides() != null) {
+          for (FeatureContext featureContext : segmentContext.getOverrides()) {
+            addFeatureId(featureContext);
+          }
+        }
+      }
+
+      List<SegmentContext> segmentContexts = plan.getSegments();
+      this.apiSegments = new Segment[segmentContexts.size()];
+      for (int i = 0; i < apiSegments.length; i++) {
+        SegmentContext segmentContext = segmentContexts.get(i);
+        Integer flagsmithId = getApiSegmentId(segmentContext.getMetadata());
+        if (flagsmithId == null) {
+          continue;
+        }
+
+        Segment segment = new Segment();
+        segment.setId(flagsmithId);
+        segment.setName(segmentContext.getName());
+        apiSegments[i] = segment;
+      }
+    }
+
+    /**
+     * Get the environment flags.
+     *
+     * @param config configuration providing the analytics processor and the
+     *               default flag handler
+     * @return environment flags
+     */
+    Flags getEnvironmentFlags(FlagsmithConfig config) {
+      final Map<String, BaseFlag> flagMap = new HashMap<>();
+      for (FlagResult flagResult : environmentFlags) {
+        flagMap.put(flagResult.getName(), newFlag(flagResult.getName(),
+            flagResult.getEnabled(), flagResult.getValue(), flagResult.getMetadata()));
+      }
+      return newFlags(flagMap, config);
+    }
+
+    /**
+     * Evaluate the flags of an identity.
+     *
+     * @param identity identity context
+     * @param config   configuration providing the analytics processor and the
+     *                 default flag handler
+     * @return result of flag evaluation for given identity
+     */
+    Flags getIdentityFlags(IdentityContext identity, FlagsmithConfig config) {
+      final Map<String, BaseFlag> flagMap = new HashMap<>();
+      Engine.evaluateFlags(plan, identity, (name, enabled, value, metadata) ->
+          flagMap.put(name, newFlag(name, enabled, value, metadata)));
+      return newFlags(flagMap, config);
+    }
+
+    private Flag newFlag(String name, Boolean enabled, Object value,
+        Map<String, Object> metadata) {
+      final Flag flag = new Flag();
+      flag.setFeatureId(getFeatureId(metadata));
+      flag.setFeatureName(name);
+      flag.setValue(value);
+      flag.setEnabled(enabled);
+      return flag;
+    }
+
+    private static Flags newFlags(Map<String, BaseFlag> flagMap, FlagsmithConfig config) {
+      final Flags flags = new Flags();
+      flags.setFlags(flagMap);
+      flags.setAnalyticsProcessor(config.getAnalyticsProcessor());
+      flags.setDefaultFlagHandler(config.getFlagsmithFlagDefaults());
+      return flags;
+    }
+
+    /*
+     * Feature ids of unreadable metadata are left to be read on evaluation, so
+     * that a malformed feature fails evaluating its flags as it did without
+     * compiling, rather than failing to install the environment.
+     */
+    private void addFeatureId(FeatureContext featureContext) {
+      if (featureContext.getMetadata() != null) {
+        try {
+          featureIds.put(featureContext.getMetadata(), MapperFactory.getMapper()
+              .convertValue(featureContext.getMetadata(), FeatureMetadata.class)
+              .getFlagsmithId());
+        } catch (IllegalArgumentException e) {
+          // Read on evaluation.
+        }
+      }
+    }
+
+    private Integer getFeatureId(Map<String, Object> metadata) {
+      if (featureIds.containsKey(metadata)) {
+        return featureIds.get(metadata);
+      }
+      return MapperFactory.getMapper()
+          .convertValue(metadata, FeatureMetadata.class)
+          .getFlagsmithId();
+    }
+  }
+
+  /**
+   * Evaluates a range of a batch of identities, splitting it across the pool
+   * until ranges are small enough to evaluate sequentially. Identities go
+   * through the identity result cache if there is one.
+   */
+  private static class BatchEvaluation extends RecursiveAction {
+    private static final int SEQUENTIAL_THRESHOLD = 16;
+
+    private final CompiledEnvironment environment;
+    private final IdentityResultCache identityResultCache;
+    private final FlagsmithConfig config;
+    private final IdentityRequest[] requests;
+    private final Flags[] results;
+    private final int from;
+    private final int to;
+
+    BatchEvaluation(CompiledEnvironment environment, IdentityResultCache identityResultCache,
+        FlagsmithConfig config, IdentityRequest[] requests, Flags[] results, int from, int to) {
+      this.environment = environment;
+      this.identityResultCache = identityResultCache;
+      this.config = config;
+      this.requests = requests;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= SEQUENTIAL_THRESHOLD) {
+        for (int i = from; i < to; i++) {
+          final IdentityContext identity = EngineMappers.mapIdentityDataToIdentityContext(
+              requests[i].getIdentifier(), requests[i].getTraits());
+
+          results[i] = identityResultCache != null
+              ? Flags.fromEvaluationResult(
+                  identityResultCache.getEvaluationResult(environment.plan, identity),
+                  config.getAnalyticsProcessor(),
+                  config.getFlagsmithFlagDefaults())
+              : environment.getIdentityFlags(identity, config);
+        }
+        return;
+      }
+
+      final int middle = (from + to) >>> 1;
+      invokeAll(
+          new BatchEvaluation(environment, identityResultCache, config,
+              requests, results, from, middle),
+          new BatchEvaluation(environment, identityResultCache, config,
+              requests, results, middle, to));
+    }
+  }
+
   public static class Builder {
 
     private final FlagsmithClient client;
@@ -525,6 +880,24 @@ public class FlagsmithClient {
         configuration.getAnalyticsProcessor().setLogger(client.logger);
       }
 
+      final EvaluationPlanOptions.Builder evaluationPlanOptions = EvaluationPlanOptions.newBuilder()
+          .withRegexEngine(configuration.getRegexEngine())
+          .withSegmentParallelism(configuration.getSegmentParallelism());
+      if (configuration.getSegmentMembershipMemoSize() != null) {
+        evaluationPlanOptions.withSegmentMembershipMemo(new SegmentMembershipMemo(
+            configuration.getSegmentMembershipMemoSize()));
+      }
+      if (configuration.getHashedPercentageMemoSize() != null) {
+        evaluationPlanOptions.withHashedPercentageMemo(new HashedPercentageMemo(
+            configuration.getHashedPercentageMemoSize()));
+      }
+      client.evaluationPlanOptions = evaluationPlanOptions.build();
+
+      if (configuration.getLocalEvaluationCacheSize() != null) {
+        client.identityResultCache = new IdentityResultCache(
+            configuration.getLocalEvaluationCacheSize());
+      }
+
       if (configuration.getEnableLocalEvaluation()) {
         if (configuration.getOfflineHandler() != null) {
           throw new FlagsmithRuntimeError(
@@ -553,8 +926,13 @@ public class FlagsmithClient {
           throw new FlagsmithRuntimeError(
               "Cannot use both default flag handler and offline handler.");
         }
-        client.evaluationContext = EngineMappers.mapEnvironmentToContext(
-          configuration.getOfflineHandler().getEnvironment());
+        client.setEvaluationContext(EngineMappers.mapEnvironmentToContext(
+            configuration.getOfflineHandler().getEnvironment()));
+      }
+
+      if (configuration.getBatchEvaluationParallelism() != null) {
+        client.batchEvaluationPool = new ForkJoinPool(
+            configuration.getBatchEvaluationParallelism());
       }
 
       return this.client;
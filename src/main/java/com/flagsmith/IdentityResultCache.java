@@ -0,0 +1,132 @@
+package com.flagsmith;
+
+import com.flagsmith.flagengine.Engine;
+import com.flagsmith.flagengine.EvaluationPlan;
+import com.flagsmith.flagengine.EvaluationResult;
+import com.flagsmith.flagengine.IdentityContext;
+import com.flagsmith.flagengine.utils.TraitValues;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of local evaluation results, keyed by identifier and traits.
+ *
+ * <p>Each result is stamped with the evaluation plan it was computed against,
+ * and only served for that plan. When a new plan replaces the previous one,
+ * results not affected by the difference are stamped with the new plan, and
+ * the others are discarded.
+ *
+ * <p>Only identities whose trait values are strings, numbers or booleans are
+ * cached, as other values may be changed in place by the caller, leaving a key
+ * that no longer matches the traits its result was evaluated for.
+ */
+final class IdentityResultCache {
+  private final Cache<List<Object>, Entry> cache;
+
+  IdentityResultCache(int maxSize) {
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maxSize)
+        .build();
+  }
+
+  /**
+   * Get the evaluation result for an identity, evaluating it if not cached.
+   *
+   * @param plan     evaluation plan
+   * @param identity identity context
+   * @return evaluation result
+   */
+  EvaluationResult getEvaluationResult(EvaluationPlan plan, IdentityContext identity) {
+    final List<Object> key = getKey(identity);
+    if (key == null) {
+      return Engine.getEvaluationResult(plan, identity);
+    }
+    final Entry entry = cache.getIfPresent(key);
+    if (entry != null && entry.plan == plan) {
+      return entry.result;
+    }
+
+    final EvaluationResult result = Engine.getEvaluationResult(plan, identity);
+    cache.put(key, new Entry(plan, identity, result));
+    return result;
+  }
+
+  /**
+   * Carry cached results over to a new evaluation plan, discarding those the
+   * new plan may evaluate differently.
+   *
+   * @param previous previous evaluation plan, or null
+   * @param current  new evaluation plan, or null
+   */
+  void onPlanChanged(EvaluationPlan previous, EvaluationPlan current) {
+    final Set<String> changedSegmentKeys = previous != null && current != null
+        ? current.getChangedSegmentKeys(previous)
+        : null;
+    if (changedSegmentKeys == null) {
+      cache.invalidateAll();
+      return;
+    }
+
+    final Map<List<Object>, Entry> entries = cache.asMap();
+    for (Map.Entry<List<Object>, Entry> cached : entries.entrySet()) {
+      final Entry entry = cached.getValue();
+      if (entry.plan == current) {
+        continue;
+      }
+      // Results of a plan older than the previous one, put by evaluations that
+      // were still running at the last change, can't be carried over.
+      if (entry.plan != previous
+          || Engine.isInAnySegment(previous, entry.identity, changedSegmentKeys)
+          || Engine.isInAnySegment(current, entry.identity, changedSegmentKeys)) {
+        entries.remove(cached.getKey(), entry);
+      } else {
+        entries.replace(cached.getKey(), entry, new Entry(current, entry.identity, entry.result));
+      }
+    }
+  }
+
+  /**
+   * Get the number of cached results.
+   *
+   * @return estimated number of cached results
+   */
+  long estimatedSize() {
+    return cache.estimatedSize();
+  }
+
+  /*
+   * Get the key of an identity, or null if a trait value may change in place.
+   */
+  private static List<Object> getKey(IdentityContext identity) {
+    final Map<String, Object> traits = identity.getTraits() != null
+        ? identity.getTraits().getAdditionalProperties()
+        : Collections.emptyMap();
+    for (Object value : traits.values()) {
+      if (!TraitValues.isImmutable(value)) {
+        return null;
+      }
+    }
+    return Arrays.asList(identity.getIdentifier(), traits);
+  }
+
+  /**
+   * A cached evaluation result, with the identity it was evaluated for and the
+   * plan it is valid for.
+   */
+  private static final class Entry {
+    private final EvaluationPlan plan;
+    private final IdentityContext identity;
+    private final EvaluationResult result;
+
+    Entry(EvaluationPlan plan, IdentityContext identity, EvaluationResult result) {
+      this.plan = plan;
+      this.identity = identity;
+      this.result = result;
+    }
+  }
+}
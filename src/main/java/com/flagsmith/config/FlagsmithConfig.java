@@ -1,11 +1,16 @@
 package com.flagsmith.config;
 
 import com.flagsmith.FlagsmithFlagDefaults;
+import com.flagsmith.flagengine.SegmentParallelism;
+import com.flagsmith.flagengine.utils.regex.JavaRegexEngine;
+import com.flagsmith.flagengine.utils.regex.LinearRegexEngine;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
 import com.flagsmith.interfaces.IOfflineHandler;
 import com.flagsmith.threads.AnalyticsProcessor;
 import java.net.Proxy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import javax.net.ssl.SSLSocketFactory;
@@ -45,6 +50,12 @@ public final class FlagsmithConfig {
   private Boolean raiseUpdateEnvironmentErrorsOnStartup = true;
   private Boolean offlineMode = false;
   private IOfflineHandler offlineHandler = null;
+  private Integer batchEvaluationParallelism;
+  private Integer localEvaluationCacheSize;
+  private RegexEngine regexEngine;
+  private SegmentParallelism segmentParallelism;
+  private Integer segmentMembershipMemoSize;
+  private Integer hashedPercentageMemoSize;
 
   protected FlagsmithConfig(Builder builder) {
     this.baseUri = builder.baseUri;
@@ -90,6 +101,12 @@ public final class FlagsmithConfig {
 
     this.offlineMode = builder.offlineMode;
     this.offlineHandler = builder.offlineHandler;
+    this.batchEvaluationParallelism = builder.batchEvaluationParallelism;
+    this.localEvaluationCacheSize = builder.localEvaluationCacheSize;
+    this.regexEngine = builder.regexEngine;
+    this.segmentParallelism = builder.segmentParallelism;
+    this.segmentMembershipMemoSize = builder.segmentMembershipMemoSize;
+    this.hashedPercentageMemoSize = builder.hashedPercentageMemoSize;
   }
 
   public static FlagsmithConfig.Builder newBuilder() {
@@ -122,6 +139,12 @@ public final class FlagsmithConfig {
 
     private Boolean offlineMode = Boolean.FALSE;
     private IOfflineHandler offlineHandler;
+    private Integer batchEvaluationParallelism;
+    private Integer localEvaluationCacheSize;
+    private RegexEngine regexEngine = new JavaRegexEngine();
+    private SegmentParallelism segmentParallelism;
+    private Integer segmentMembershipMemoSize;
+    private Integer hashedPercentageMemoSize;
 
     private Builder() {
     }
@@ -292,6 +315,101 @@ public final class FlagsmithConfig {
       return this;
     }
 
+    /**
+     * Set the parallelism of the pool used to evaluate identity flags in batches.
+     * When not set, the common fork-join pool is used.
+     *
+     * @param parallelism number of threads evaluating a batch
+     */
+    public Builder withBatchEvaluationParallelism(Integer parallelism) {
+      if (parallelism != null && parallelism < 1) {
+        throw new IllegalArgumentException("Batch evaluation parallelism must be positive.");
+      }
+      this.batchEvaluationParallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Cache identity flags evaluated locally, keyed by identifier and traits,
+     * including those evaluated in batches. When the environment is updated,
+     * only the results it may change are discarded. When not set, identity
+     * flags are evaluated on every call.
+     *
+     * @param maxSize maximum number of cached identity results
+     */
+    public Builder withLocalEvaluationCacheSize(Integer maxSize) {
+      if (maxSize != null && maxSize < 1) {
+        throw new IllegalArgumentException("Local evaluation cache size must be positive.");
+      }
+      this.localEvaluationCacheSize = maxSize;
+      return this;
+    }
+
+    /**
+     * Set the engine matching the patterns of REGEX segment conditions in local
+     * evaluation. {@link LinearRegexEngine} matches in time linear in the
+     * length of the trait value, whatever the pattern. When not set,
+     * {@link java.util.regex} is used.
+     *
+     * @param regexEngine engine compiling the patterns of REGEX conditions
+     */
+    public Builder withRegexEngine(RegexEngine regexEngine) {
+      if (regexEngine == null) {
+        throw new IllegalArgumentException("Regex engine must not be null.");
+      }
+      this.regexEngine = regexEngine;
+      return this;
+    }
+
+    /**
+     * Split the evaluation of segments for a single identity across a pool in
+     * local evaluation, once there are at least a threshold number of segments
+     * to evaluate. Flags and segments are the same as when evaluated on the
+     * calling thread. The pool is not shut down when the client is closed.
+     * When not set, segments are evaluated on the calling thread.
+     *
+     * @param pool      pool evaluating the segments
+     * @param threshold minimum number of segments to evaluate for an evaluation
+     *                  to be split
+     */
+    public Builder withParallelSegmentEvaluation(ForkJoinPool pool, int threshold) {
+      this.segmentParallelism = new SegmentParallelism(pool, threshold);
+      return this;
+    }
+
+    /**
+     * Memoise whether identities are in segments in local evaluation, by the
+     * values of the traits each segment reads, so that identities sharing
+     * these values skip evaluating segments others went through. Segments
+     * reading the identifier or the identity key, such as percentage splits,
+     * are always evaluated. When not set, every segment is evaluated.
+     *
+     * @param maxSize maximum number of memoised segment memberships
+     */
+    public Builder withSegmentMembershipMemoSize(Integer maxSize) {
+      if (maxSize != null && maxSize < 1) {
+        throw new IllegalArgumentException("Segment membership memo size must be positive.");
+      }
+      this.segmentMembershipMemoSize = maxSize;
+      return this;
+    }
+
+    /**
+     * Memoise the hashed percentages of identities in local evaluation, which
+     * percentage split segments and multivariate features select identities
+     * by, so that identities seen before skip hashing. When not set, every
+     * percentage is hashed.
+     *
+     * @param maxSize maximum number of memoised percentages
+     */
+    public Builder withHashedPercentageMemoSize(Integer maxSize) {
+      if (maxSize != null && maxSize < 1) {
+        throw new IllegalArgumentException("Hashed percentage memo size must be positive.");
+      }
+      this.hashedPercentageMemoSize = maxSize;
+      return this;
+    }
+
     /**
      * Specify the list of protocols supported for calls to the server.
      *
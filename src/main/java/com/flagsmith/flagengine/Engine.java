@@ -1,34 +1,14 @@
 package com.flagsmith.flagengine;
 
-import com.flagsmith.flagengine.segments.SegmentEvaluator;
-import com.flagsmith.flagengine.utils.Hashing;
-import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-
-public class Engine {  
-  private static class SegmentEvaluationResult {
-    List<SegmentResult> segments;
-    HashMap<String, ImmutablePair<String, FeatureContext>> segmentFeatureContexts;
-
-    public SegmentEvaluationResult(
-        List<SegmentResult> segments,
-        HashMap<String, ImmutablePair<String, FeatureContext>> segmentFeatureContexts) {
-      this.segments = segments;
-      this.segmentFeatureContexts = segmentFeatureContexts;
-    }
-
-    public List<SegmentResult> getSegments() {
-      return segments;
-    }
 
-    public HashMap<String, ImmutablePair<String, FeatureContext>> getSegmentFeatureContexts() {
-      return segmentFeatureContexts;
-    }
-  }
+public class Engine {
+  static final String DEFAULT_REASON = "DEFAULT";
 
   /**
    * Get evaluation result for a given evaluation context.
@@ -37,152 +17,356 @@ public class Engine {
    * @return Evaluation result.
    */
   public static EvaluationResult getEvaluationResult(EvaluationContext context) {
-    context = getEnrichedEvaluationContext(context);
-    SegmentEvaluationResult segmentEvaluationResult = evaluateSegments(context);
-    Flags flags = evaluateFeatures(context, segmentEvaluationResult.getSegmentFeatureContexts());
+    return getEvaluationResult(EvaluationPlan.compile(context), context.getIdentity());
+  }
 
-    return new EvaluationResult()
-        .withFlags(flags)
-        .withSegments(segmentEvaluationResult.getSegments());
+  /**
+   * Get evaluation result for a given identity against a compiled evaluation plan.
+   *
+   * @param plan     Evaluation plan.
+   * @param identity Identity context, or null to evaluate without an identity.
+   * @return Evaluation result.
+   */
+  public static EvaluationResult getEvaluationResult(
+      EvaluationPlan plan, IdentityContext identity) {
+    String identityKey = getIdentityKey(plan, identity);
+    EvaluationScratch scratch = EvaluationScratch.acquire(plan, identity, identityKey);
+    try {
+      plan.addIndexedCandidates(identity, scratch.candidates);
+      evaluateSegments(scratch,
+          plan.unanchoredSegments, plan.getIdentifierSegments(scratch.scope));
+
+      List<SegmentResult> segments = new ArrayList<>(scratch.matches.size());
+      for (SegmentPlan segmentPlan : scratch.matches) {
+        segments.add(new SegmentResult()
+            .withName(segmentPlan.name)
+            .withMetadata(segmentPlan.metadata));
+        scratch.applyOverrides(segmentPlan);
+      }
+
+      Flags flags = new Flags();
+      for (FeaturePlan featurePlan : plan.features) {
+        FlagResult flagResult = getFlagResult(scratch, featurePlan, identityKey);
+        flags.setAdditionalProperty(flagResult.getName(), flagResult);
+      }
+
+      return new EvaluationResult()
+          .withFlags(flags)
+          .withSegments(segments);
+    } finally {
+      scratch.release();
+    }
   }
 
-  /*
-   * Get a version of the evaluation context enriched with derived data.
-   * 
-   * @param context Evaluation context.
-   * @return Enriched evaluation context, or the original if no enrichment was needed.
+  /**
+   * Get evaluation result for a given identity against a compiled evaluation plan,
+   * for the given features only.
+   *
+   * <p>Only segments overriding at least one of the features are evaluated, so
+   * the segments of the result are limited to those. Feature names missing from
+   * the plan are ignored.
+   *
+   * @param plan         Evaluation plan.
+   * @param identity     Identity context, or null to evaluate without an identity.
+   * @param featureNames Names of the features to evaluate.
+   * @return Evaluation result.
    */
-  private static EvaluationContext getEnrichedEvaluationContext(EvaluationContext context) {
-    IdentityContext identity = context.getIdentity();
-    if (identity != null) {
-      if (StringUtils.isEmpty(identity.getKey())) {
-        String identityKey = context.getEnvironment().getKey() + "_" + identity.getIdentifier();
-        context = new EvaluationContext(context).withIdentity(
-          new IdentityContext(identity).withKey(identityKey));
+  public static EvaluationResult getEvaluationResult(
+      EvaluationPlan plan, IdentityContext identity, Set<String> featureNames) {
+    int[] slots = featureNames.stream()
+        .mapToInt(plan::getSlot)
+        .filter((slot) -> slot >= 0)
+        .sorted()
+        .distinct()
+        .toArray();
+    boolean[] requestedSlots = new boolean[plan.slotCount];
+    for (int slot : slots) {
+      requestedSlots[slot] = true;
+    }
+
+    SegmentPlan[] candidateSegments;
+    if (slots.length == 1) {
+      candidateSegments = plan.segmentsBySlot[slots[0]];
+    } else {
+      candidateSegments = Arrays.stream(slots)
+          .mapToObj((slot) -> plan.segmentsBySlot[slot])
+          .flatMap(Arrays::stream)
+          .distinct()
+          .sorted(Comparator.comparingInt((segmentPlan) -> segmentPlan.position))
+          .toArray(SegmentPlan[]::new);
+    }
+
+    String identityKey = getIdentityKey(plan, identity);
+    EvaluationScratch scratch = EvaluationScratch.acquire(plan, identity, identityKey);
+    try {
+      SegmentPlan[] identifierSegments = Arrays.stream(plan.getIdentifierSegments(scratch.scope))
+          .filter((segmentPlan) -> segmentPlan.overridesAny(requestedSlots))
+          .toArray(SegmentPlan[]::new);
+      evaluateSegments(scratch, candidateSegments, identifierSegments);
+
+      List<SegmentResult> segments = new ArrayList<>(scratch.matches.size());
+      for (SegmentPlan segmentPlan : scratch.matches) {
+        segments.add(new SegmentResult()
+            .withName(segmentPlan.name)
+            .withMetadata(segmentPlan.metadata));
+        scratch.applyOverrides(segmentPlan);
       }
+
+      Flags flags = new Flags();
+      for (int slot : slots) {
+        FlagResult flagResult = getFlagResult(scratch, plan.featuresBySlot[slot], identityKey);
+        flags.setAdditionalProperty(flagResult.getName(), flagResult);
+      }
+
+      return new EvaluationResult()
+          .withFlags(flags)
+          .withSegments(segments);
+    } finally {
+      scratch.release();
     }
-    return context;
   }
 
-  private static SegmentEvaluationResult evaluateSegments(
-      EvaluationContext context) {
-    List<SegmentResult> segments = new ArrayList<>();
-    HashMap<String, ImmutablePair<String, FeatureContext>> segmentFeatureContexts = new HashMap<>();
-
-    Segments contextSegments = context.getSegments();
-
-    if (contextSegments != null) {
-      for (SegmentContext segmentContext : contextSegments.getAdditionalProperties().values()) {
-        if (SegmentEvaluator.isContextInSegment(context, segmentContext)) {
-          segments.add(new SegmentResult()
-              .withName(segmentContext.getName())
-              .withMetadata(segmentContext.getMetadata()));
-
-          List<FeatureContext> segmentOverrides = segmentContext.getOverrides();
-
-          if (segmentOverrides != null) {
-            for (FeatureContext featureContext : segmentOverrides) {
-              String featureName = featureContext.getName();
-
-              if (segmentFeatureContexts.containsKey(featureName)) {
-                ImmutablePair<String, FeatureContext> existing = segmentFeatureContexts
-                    .get(featureName);
-                FeatureContext existingFeatureContext = existing.getRight();
-
-                Double existingPriority = existingFeatureContext.getPriority() == null
-                    ? EngineConstants.WEAKEST_PRIORITY
-                    : existingFeatureContext.getPriority();
-                Double featurePriority = featureContext.getPriority() == null
-                    ? EngineConstants.WEAKEST_PRIORITY
-                    : featureContext.getPriority();
-
-                if (existingPriority < featurePriority) {
-                  continue;
-                }
-              }
-              segmentFeatureContexts.put(featureName,
-                  new ImmutablePair<String, FeatureContext>(
-                      segmentContext.getName(), featureContext));
-            }
-          }
-        }
+  /**
+   * Evaluate the flags of a given identity against a compiled evaluation plan,
+   * passing each flag to a visitor instead of building an evaluation result.
+   *
+   * <p>Apart from what the visitor allocates, this only allocates what an
+   * evaluation cannot do without, so it suits callers evaluating identities
+   * at a high rate that map flags to their own model.
+   *
+   * @param plan     Evaluation plan.
+   * @param identity Identity context, or null to evaluate without an identity.
+   * @param visitor  Flag visitor.
+   */
+  public static void evaluateFlags(
+      EvaluationPlan plan, IdentityContext identity, FlagVisitor visitor) {
+    String identityKey = getIdentityKey(plan, identity);
+    EvaluationScratch scratch = EvaluationScratch.acquire(plan, identity, identityKey);
+    try {
+      plan.addIndexedCandidates(identity, scratch.candidates);
+      evaluateSegments(scratch,
+          plan.unanchoredSegments, plan.getIdentifierSegments(scratch.scope));
+      for (SegmentPlan segmentPlan : scratch.matches) {
+        scratch.applyOverrides(segmentPlan);
+      }
+
+      for (FeaturePlan featurePlan : plan.features) {
+        FeaturePlan override = scratch.overrideFeatures[featurePlan.slot];
+        (override != null ? override : featurePlan).visitFlag(identityKey, visitor);
       }
+    } finally {
+      scratch.release();
     }
+  }
 
-    return new SegmentEvaluationResult(segments, segmentFeatureContexts);
+  /**
+   * Get the segments a given identity is in, without resolving any features.
+   *
+   * @param plan     Evaluation plan.
+   * @param identity Identity context, or null to evaluate without an identity.
+   * @return Indexes of matching segments in {@link EvaluationPlan#getSegments()},
+   *     in ascending order.
+   */
+  public static int[] getSegmentIndexes(EvaluationPlan plan, IdentityContext identity) {
+    String identityKey = getIdentityKey(plan, identity);
+    EvaluationScratch scratch = EvaluationScratch.acquire(plan, identity, identityKey);
+    try {
+      plan.addIndexedCandidates(identity, scratch.candidates);
+      evaluateSegments(scratch,
+          plan.unanchoredSegments, plan.getIdentifierSegments(scratch.scope));
+
+      int[] indexes = new int[scratch.matches.size()];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = scratch.matches.get(i).position;
+      }
+      return indexes;
+    } finally {
+      scratch.release();
+    }
   }
 
-  private static Flags evaluateFeatures(
-      EvaluationContext context,
-      HashMap<String, ImmutablePair<String, FeatureContext>> segmentFeatureContexts) {
-    Features contextFeatures = context.getFeatures();
-    Flags flags = new Flags();
+  /**
+   * Check whether a given identity is in any of the given segments.
+   *
+   * @param plan        Evaluation plan.
+   * @param identity    Identity context, or null to evaluate without an identity.
+   * @param segmentKeys Keys of the segments in the segments of the plan's context.
+   * @return true if the identity is in at least one of the segments.
+   */
+  public static boolean isInAnySegment(
+      EvaluationPlan plan, IdentityContext identity, Set<String> segmentKeys) {
+    SegmentPlan[] segmentPlans = plan.getSegmentsByKey(segmentKeys);
+    if (segmentPlans.length == 0) {
+      return false;
+    }
 
-    String identityKey = context.getIdentity() != null
-        ? context.getIdentity().getKey()
-        : null;
-
-    if (contextFeatures != null) {
-      for (FeatureContext featureContext : contextFeatures.getAdditionalProperties().values()) {
-        String reason;
-        if (segmentFeatureContexts.containsKey(featureContext.getName())) {
-          ImmutablePair<String, FeatureContext> segmentNameFeaturePair = segmentFeatureContexts
-              .get(featureContext.getName());
-          featureContext = segmentNameFeaturePair.getRight();
-          reason = "TARGETING_MATCH; segment=" + segmentNameFeaturePair.getLeft();
-        } else {
-          reason = "DEFAULT";
+    EvaluationScratch scratch = EvaluationScratch.acquire(
+        plan, identity, getIdentityKey(plan, identity));
+    try {
+      for (SegmentPlan segmentPlan : segmentPlans) {
+        if (segmentPlan.matches(scratch)) {
+          return true;
         }
-        flags.setAdditionalProperty(featureContext.getName(),
-            getFlagResultFromFeatureContext(
-                featureContext,
-                identityKey,
-                reason));
       }
+      return false;
+    } finally {
+      scratch.release();
     }
+  }
 
-    return flags;
+  /**
+   * Get environment evaluation result for a compiled evaluation plan, ignoring
+   * any segments.
+   *
+   * @param plan Evaluation plan.
+   * @return Evaluation result.
+   */
+  public static EvaluationResult getEnvironmentEvaluationResult(EvaluationPlan plan) {
+    Flags flags = new Flags();
+    for (FeaturePlan featurePlan : plan.features) {
+      FlagResult flagResult = featurePlan.getFlagResult(null, DEFAULT_REASON);
+      flags.setAdditionalProperty(flagResult.getName(), flagResult);
+    }
+
+    return new EvaluationResult()
+        .withFlags(flags)
+        .withSegments(new ArrayList<>());
   }
 
-  private static FlagResult getFlagResultFromFeatureContext(
-      FeatureContext featureContext,
-      String identityKey,
-      String reason) {
-    if (identityKey != null) {
-      List<FeatureValue> variants = featureContext.getVariants();
-      if (variants != null) {
-        Float percentageValue = Hashing.getInstance()
-            .getHashedPercentageForObjectIds(List.of(featureContext.getKey(), identityKey));
-
-        Float startPercentage = 0.0f;
-
-        ArrayList<FeatureValue> sortedVariants = new ArrayList<>(variants);
-        sortedVariants.sort((a, b) -> {
-          Double priority = a.getPriority();
-          Double comparedPriority = b.getPriority();
-          return priority.compareTo(comparedPriority);
-        });
-        for (FeatureValue variant : sortedVariants) {
-          Double weight = variant.getWeight();
-          Float limit = startPercentage + weight.floatValue();
-          if (startPercentage <= percentageValue && percentageValue < limit) {
-            return new FlagResult().withEnabled(featureContext.getEnabled())
-                .withName(featureContext.getName())
-                .withValue(variant.getValue())
-                .withReason("SPLIT; weight=" + BigDecimal.valueOf(weight)
-                  .stripTrailingZeros()
-                  .toPlainString())
-                .withMetadata(featureContext.getMetadata());
-          }
-          startPercentage = limit;
-        }
+  /*
+   * Evaluate segments, collecting those matching the context in the scratch
+   * matches, in segment order. The scratch candidates hold indexed segments to
+   * evaluate along with the given ones.
+   *
+   * @param scratch Scratch state of the evaluation.
+   * @param segmentPlans Segment plans to evaluate, in segment order.
+   * @param identifierSegments Segment plans already known to match, in segment order.
+   */
+  private static void evaluateSegments(EvaluationScratch scratch,
+      SegmentPlan[] segmentPlans, SegmentPlan[] identifierSegments) {
+    SegmentParallelism parallelism = scratch.plan.parallelism;
+    if (parallelism != null
+        && segmentPlans.length + scratch.candidates.size() >= parallelism.getThreshold()) {
+      evaluateSegmentsInParallel(scratch, parallelism, segmentPlans, identifierSegments);
+      return;
+    }
+
+    List<SegmentPlan> indexedSegments = scratch.candidates;
+    List<SegmentPlan> matches = scratch.matches;
+
+    // Segments to evaluate and segments matched through the identifier index
+    // are merged in segment order, which decides both the segment results
+    // order and priority ties.
+    int segmentIndex = 0;
+    int indexedIndex = 0;
+    int identifierIndex = 0;
+    while (true) {
+      int segmentPosition = segmentIndex < segmentPlans.length
+          ? segmentPlans[segmentIndex].position
+          : Integer.MAX_VALUE;
+      int indexedPosition = indexedIndex < indexedSegments.size()
+          ? indexedSegments.get(indexedIndex).position
+          : Integer.MAX_VALUE;
+      int identifierPosition = identifierIndex < identifierSegments.length
+          ? identifierSegments[identifierIndex].position
+          : Integer.MAX_VALUE;
+
+      SegmentPlan segmentPlan;
+      if (identifierPosition < segmentPosition && identifierPosition < indexedPosition) {
+        matches.add(identifierSegments[identifierIndex++]);
+        continue;
+      } else if (segmentPosition < indexedPosition) {
+        segmentPlan = segmentPlans[segmentIndex++];
+      } else if (indexedPosition < Integer.MAX_VALUE) {
+        segmentPlan = indexedSegments.get(indexedIndex++);
+      } else {
+        return;
+      }
+      if (segmentPlan.matches(scratch)) {
+        matches.add(segmentPlan);
+      }
+    }
+  }
+
+  /*
+   * Evaluate segments as evaluateSegments does, splitting their evaluation
+   * across a pool. Whether each segment matches is decided in parallel, and
+   * matches are then collected in segment order on the calling thread, so
+   * overrides are applied in the same order as in sequential evaluation.
+   *
+   * @param scratch Scratch state of the evaluation.
+   * @param parallelism Segment parallelism settings.
+   * @param segmentPlans Segment plans to evaluate, in segment order.
+   * @param identifierSegments Segment plans already known to match, in segment order.
+   */
+  private static void evaluateSegmentsInParallel(EvaluationScratch scratch,
+      SegmentParallelism parallelism, SegmentPlan[] segmentPlans,
+      SegmentPlan[] identifierSegments) {
+    List<SegmentPlan> indexedSegments = scratch.candidates;
+    SegmentPlan[] candidates = new SegmentPlan[segmentPlans.length + indexedSegments.size()];
+    int segmentIndex = 0;
+    int indexedIndex = 0;
+    for (int i = 0; i < candidates.length; i++) {
+      if (indexedIndex == indexedSegments.size() || (segmentIndex < segmentPlans.length
+          && segmentPlans[segmentIndex].position < indexedSegments.get(indexedIndex).position)) {
+        candidates[i] = segmentPlans[segmentIndex++];
+      } else {
+        candidates[i] = indexedSegments.get(indexedIndex++);
       }
     }
 
-    return new FlagResult().withEnabled(featureContext.getEnabled())
-        .withName(featureContext.getName())
-        .withValue(featureContext.getValue())
-        .withReason(reason)
-        .withMetadata(featureContext.getMetadata());
+    boolean[] results = new boolean[candidates.length];
+    parallelism.getPool().invoke(new SegmentEvaluation(scratch.plan, scratch.identity,
+        scratch.identityKey, candidates, results, parallelism.getPool().getParallelism()));
+
+    List<SegmentPlan> matches = scratch.matches;
+    int candidateIndex = 0;
+    int identifierIndex = 0;
+    while (candidateIndex < candidates.length || identifierIndex < identifierSegments.length) {
+      if (candidateIndex == candidates.length || (identifierIndex < identifierSegments.length
+          && identifierSegments[identifierIndex].position < candidates[candidateIndex].position)) {
+        matches.add(identifierSegments[identifierIndex++]);
+      } else if (results[candidateIndex]) {
+        matches.add(candidates[candidateIndex++]);
+      } else {
+        candidateIndex++;
+      }
+    }
+  }
+
+  /*
+   * Build the flag result of a feature, from the winning segment override if
+   * any.
+   *
+   * @param scratch Scratch state of the evaluation, with overrides applied.
+   * @param featurePlan Feature plan.
+   * @param identityKey Key of the identity, or null.
+   * @return Flag result.
+   */
+  private static FlagResult getFlagResult(
+      EvaluationScratch scratch, FeaturePlan featurePlan, String identityKey) {
+    SegmentPlan segmentPlan = scratch.overrideSegments[featurePlan.slot];
+    return segmentPlan != null
+        ? scratch.overrideFeatures[featurePlan.slot].getFlagResult(
+            identityKey, segmentPlan.reason)
+        : featurePlan.getFlagResult(identityKey, DEFAULT_REASON);
+  }
+
+  /*
+   * Get the key of an identity, deriving it from the environment key and the
+   * identifier if the identity has none.
+   *
+   * @param plan Evaluation plan.
+   * @param identity Identity context, or null.
+   * @return Identity key, or null without an identity.
+   */
+  static String getIdentityKey(EvaluationPlan plan, IdentityContext identity) {
+    if (identity == null) {
+      return null;
+    }
+    if (StringUtils.isEmpty(identity.getKey())) {
+      return plan.environmentKey + "_" + identity.getIdentifier();
+    }
+    return identity.getKey();
   }
-}
\ No newline at end of file
+}
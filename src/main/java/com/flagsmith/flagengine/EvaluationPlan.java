@@ -0,0 +1,402 @@
+package com.flagsmith.flagengine;
+
+import com.flagsmith.flagengine.segments.EvaluationScope;
+import com.flagsmith.flagengine.segments.SegmentCompiler;
+import com.flagsmith.flagengine.segments.SegmentPredicate;
+import com.flagsmith.flagengine.segments.TraitSymbols;
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EvaluationPlan
+ *
+ * <p>An immutable, precompiled form of an evaluation context. Compiling walks the
+ * context once so that each evaluation against the plan only has to deal with
+ * identity-specific work.
+ */
+public final class EvaluationPlan {
+  private static final SegmentPlan[] NO_SEGMENTS = new SegmentPlan[0];
+  private static final Comparator<SegmentPlan> SEGMENT_ORDER = Comparator.comparingInt(
+      (segmentPlan) -> segmentPlan.position);
+  private static final AtomicLong VERSIONS = new AtomicLong();
+
+  private final EvaluationContext context;
+  final String environmentKey;
+  final FeaturePlan[] features;
+  final SegmentPlan[] segments;
+  final int slotCount;
+  final FeaturePlan[] featuresBySlot;
+  final SegmentPlan[][] segmentsBySlot;
+  final int sharedRuleCount;
+  final TraitSymbols traitSymbols;
+  final SegmentParallelism parallelism;
+  final SegmentMembershipMemo membershipMemo;
+  // Tells plans apart in memos shared between them.
+  final long version = VERSIONS.incrementAndGet();
+  private final Map<String, Integer> slotsByName;
+  private final Map<String, SegmentPlan[]> identifierSegments;
+  final SegmentPlan[] unanchoredSegments;
+  private final Map<String, Map<String, SegmentPlan[]>> anchoredSegments;
+  private final Map<String, ThresholdIndex> thresholdSegments;
+  private final List<SegmentContext> segmentContexts;
+  private final String[] segmentKeys;
+  final SegmentPlan[] segmentsByPosition;
+  private final Map<String, SegmentPlan[]> segmentsByReadTrait;
+  final SegmentPlan[] anyTraitSegments;
+  private final boolean readsDocument;
+
+  private EvaluationPlan(EvaluationContext context, EvaluationPlanOptions options) {
+    HashedPercentageMemo percentageMemo = options.getHashedPercentageMemo();
+    this.context = context;
+    this.parallelism = options.getSegmentParallelism();
+    this.membershipMemo = options.getSegmentMembershipMemo();
+    this.environmentKey = context.getEnvironment() != null
+        ? context.getEnvironment().getKey()
+        : null;
+
+    this.slotsByName = new HashMap<>();
+    List<FeaturePlan> featurePlans = new ArrayList<>();
+    Features contextFeatures = context.getFeatures();
+    if (contextFeatures != null) {
+      for (FeatureContext featureContext : contextFeatures.getAdditionalProperties().values()) {
+        Integer slot = slotsByName.computeIfAbsent(
+            featureContext.getName(), (name) -> slotsByName.size());
+        featurePlans.add(new FeaturePlan(slot, featureContext, percentageMemo));
+      }
+    }
+    this.features = featurePlans.toArray(new FeaturePlan[0]);
+    this.slotCount = slotsByName.size();
+
+    // Features sharing a name share a slot; as in the flags, the last one wins.
+    this.featuresBySlot = new FeaturePlan[slotCount];
+    for (FeaturePlan featurePlan : features) {
+      featuresBySlot[featurePlan.slot] = featurePlan;
+    }
+
+    List<SegmentPlan> segmentPlans = new ArrayList<>();
+    Map<String, List<SegmentPlan>> segmentPlansByIdentifier = new HashMap<>();
+    List<SegmentContext> segmentContexts = new ArrayList<>();
+    List<String> segmentKeys = new ArrayList<>();
+    List<SegmentPlan> segmentsByPosition = new ArrayList<>();
+    SegmentCompiler compiler = new SegmentCompiler(options.getRegexEngine(), percentageMemo);
+    Segments contextSegments = context.getSegments();
+    if (contextSegments != null) {
+      int position = 0;
+      for (Map.Entry<String, SegmentContext> entry
+          : contextSegments.getAdditionalProperties().entrySet()) {
+        SegmentContext segmentContext = entry.getValue();
+        segmentContexts.add(segmentContext);
+        segmentKeys.add(entry.getKey());
+        SegmentPlan segmentPlan = new SegmentPlan(
+            position++, segmentContext, slotsByName, compiler);
+        segmentsByPosition.add(segmentPlan);
+        Set<String> identifiers = segmentPlan.predicate.getIdentifiers();
+        if (identifiers == null) {
+          segmentPlans.add(segmentPlan);
+          continue;
+        }
+        // Identity override segments only match the identifiers they list, so
+        // they are looked up by identifier rather than evaluated one by one.
+        for (String identifier : identifiers) {
+          segmentPlansByIdentifier
+              .computeIfAbsent(identifier, (key) -> new ArrayList<>(1))
+              .add(segmentPlan);
+        }
+      }
+    }
+    this.segments = segmentPlans.toArray(new SegmentPlan[0]);
+    this.sharedRuleCount = compiler.getSharedRuleCount();
+    this.traitSymbols = compiler.getTraitSymbols();
+    this.segmentContexts = Collections.unmodifiableList(segmentContexts);
+    this.segmentKeys = segmentKeys.toArray(new String[0]);
+    this.segmentsByPosition = segmentsByPosition.toArray(new SegmentPlan[0]);
+    this.readsDocument = segmentsByPosition.stream()
+        .anyMatch((segmentPlan) -> segmentPlan.predicate.readsDocument());
+
+    // Segments are indexed by the traits they read, so that sessions only
+    // evaluate again the segments reading a trait that changed.
+    Map<String, List<SegmentPlan>> segmentPlansByReadTrait = new HashMap<>();
+    List<SegmentPlan> anyTraitSegmentPlans = new ArrayList<>();
+    for (SegmentPlan segmentPlan : segmentsByPosition) {
+      Set<String> readTraits = segmentPlan.predicate.getReadTraits();
+      if (readTraits == null) {
+        anyTraitSegmentPlans.add(segmentPlan);
+        continue;
+      }
+      for (String readTrait : readTraits) {
+        segmentPlansByReadTrait.computeIfAbsent(readTrait, (key) -> new ArrayList<>(1))
+            .add(segmentPlan);
+      }
+    }
+    this.segmentsByReadTrait = new HashMap<>(segmentPlansByReadTrait.size());
+    for (Map.Entry<String, List<SegmentPlan>> entry : segmentPlansByReadTrait.entrySet()) {
+      segmentsByReadTrait.put(entry.getKey(), entry.getValue().toArray(new SegmentPlan[0]));
+    }
+    this.anyTraitSegments = anyTraitSegmentPlans.toArray(new SegmentPlan[0]);
+
+    List<List<SegmentPlan>> segmentPlansBySlot = new ArrayList<>(slotCount);
+    for (int slot = 0; slot < slotCount; slot++) {
+      segmentPlansBySlot.add(new ArrayList<>());
+    }
+    for (SegmentPlan segmentPlan : segments) {
+      for (int slot : segmentPlan.overrideSlots) {
+        List<SegmentPlan> slotSegmentPlans = segmentPlansBySlot.get(slot);
+        if (slotSegmentPlans.isEmpty()
+            || slotSegmentPlans.get(slotSegmentPlans.size() - 1) != segmentPlan) {
+          slotSegmentPlans.add(segmentPlan);
+        }
+      }
+    }
+    this.segmentsBySlot = new SegmentPlan[slotCount][];
+    for (int slot = 0; slot < slotCount; slot++) {
+      segmentsBySlot[slot] = segmentPlansBySlot.get(slot).toArray(new SegmentPlan[0]);
+    }
+
+    this.identifierSegments = new HashMap<>(segmentPlansByIdentifier.size());
+    for (Map.Entry<String, List<SegmentPlan>> entry : segmentPlansByIdentifier.entrySet()) {
+      identifierSegments.put(entry.getKey(), entry.getValue().toArray(new SegmentPlan[0]));
+    }
+
+    // Segments with an anchor condition are indexed by the trait values they can
+    // match, and segments with a threshold condition by the integer range they
+    // can match, so only those an identity's traits point to are evaluated.
+    List<SegmentPlan> unanchoredSegmentPlans = new ArrayList<>();
+    Map<String, Map<String, List<SegmentPlan>>> anchoredSegmentPlans = new HashMap<>();
+    Map<String, List<SegmentPlan>> thresholdSegmentPlans = new HashMap<>();
+    for (SegmentPlan segmentPlan : segments) {
+      String anchorTrait = segmentPlan.predicate.getAnchorTrait();
+      if (anchorTrait == null) {
+        String thresholdTrait = segmentPlan.predicate.getThresholdTrait();
+        if (thresholdTrait != null) {
+          thresholdSegmentPlans.computeIfAbsent(thresholdTrait, (key) -> new ArrayList<>())
+              .add(segmentPlan);
+        } else {
+          unanchoredSegmentPlans.add(segmentPlan);
+        }
+        continue;
+      }
+      Map<String, List<SegmentPlan>> segmentPlansByValue = anchoredSegmentPlans
+          .computeIfAbsent(anchorTrait, (key) -> new HashMap<>());
+      for (String value : segmentPlan.predicate.getAnchorValues()) {
+        segmentPlansByValue.computeIfAbsent(value, (key) -> new ArrayList<>(1))
+            .add(segmentPlan);
+      }
+    }
+    this.unanchoredSegments = unanchoredSegmentPlans.toArray(new SegmentPlan[0]);
+    this.anchoredSegments = new HashMap<>(anchoredSegmentPlans.size());
+    for (Map.Entry<String, Map<String, List<SegmentPlan>>> entry
+        : anchoredSegmentPlans.entrySet()) {
+      Map<String, SegmentPlan[]> segmentPlansByValue = new HashMap<>(entry.getValue().size());
+      for (Map.Entry<String, List<SegmentPlan>> valueEntry : entry.getValue().entrySet()) {
+        segmentPlansByValue.put(
+            valueEntry.getKey(), valueEntry.getValue().toArray(new SegmentPlan[0]));
+      }
+      anchoredSegments.put(entry.getKey(), segmentPlansByValue);
+    }
+    this.thresholdSegments = new HashMap<>(thresholdSegmentPlans.size());
+    for (Map.Entry<String, List<SegmentPlan>> entry : thresholdSegmentPlans.entrySet()) {
+      thresholdSegments.put(entry.getKey(), new ThresholdIndex(entry.getValue()));
+    }
+  }
+
+  /**
+   * Add the indexed segments that may match an identity to a list, in segment
+   * order: those whose anchor or threshold condition the identity's traits can
+   * match. Together with {@link #unanchoredSegments}, these are the segments of
+   * {@link #segments} that may match the identity.
+   *
+   * @param identity   Identity context, or null.
+   * @param candidates Empty list to add candidate segment plans to.
+   */
+  void addIndexedCandidates(IdentityContext identity, List<SegmentPlan> candidates) {
+    if (anchoredSegments.isEmpty() && thresholdSegments.isEmpty()
+        || identity == null || identity.getTraits() == null) {
+      return;
+    }
+
+    // Each segment is indexed under a single trait, so no segment is found twice.
+    for (Map.Entry<String, Object> trait
+        : identity.getTraits().getAdditionalProperties().entrySet()) {
+      if (trait.getValue() == null) {
+        continue;
+      }
+      Map<String, SegmentPlan[]> segmentPlansByValue = anchoredSegments.get(trait.getKey());
+      if (segmentPlansByValue != null) {
+        SegmentPlan[] segmentPlans = segmentPlansByValue.get(String.valueOf(trait.getValue()));
+        if (segmentPlans != null) {
+          Collections.addAll(candidates, segmentPlans);
+        }
+      }
+      ThresholdIndex thresholdIndex = thresholdSegments.get(trait.getKey());
+      if (thresholdIndex != null) {
+        thresholdIndex.addCandidates(trait.getValue(), candidates);
+      }
+    }
+    candidates.sort(SEGMENT_ORDER);
+  }
+
+  /**
+   * Get the segments that only match by identifier and match the given context,
+   * in segment order. These are not part of {@link #segments}.
+   *
+   * @param scope Evaluation scope.
+   * @return Matching segment plans.
+   */
+  SegmentPlan[] getIdentifierSegments(EvaluationScope scope) {
+    if (identifierSegments.isEmpty()) {
+      return NO_SEGMENTS;
+    }
+    String lookupKey = SegmentPredicate.getIdentifierLookupKey(scope);
+    if (lookupKey == null) {
+      return NO_SEGMENTS;
+    }
+    return identifierSegments.getOrDefault(lookupKey, NO_SEGMENTS);
+  }
+
+  /**
+   * Get the segments with the given keys in the segments of the context, in
+   * segment order.
+   *
+   * @param keys Segment keys.
+   * @return Segment plans.
+   */
+  SegmentPlan[] getSegmentsByKey(Set<String> keys) {
+    List<SegmentPlan> segmentPlans = new ArrayList<>();
+    for (int position = 0; position < segmentKeys.length; position++) {
+      if (keys.contains(segmentKeys[position])) {
+        segmentPlans.add(segmentsByPosition[position]);
+      }
+    }
+    return segmentPlans.toArray(new SegmentPlan[0]);
+  }
+
+  /**
+   * Get the segments whose conditions read a trait, in segment order. Segments
+   * that may read any trait are in {@link #anyTraitSegments} instead.
+   *
+   * @param traitKey Trait key.
+   * @return Segment plans.
+   */
+  SegmentPlan[] getSegmentsReadingTrait(String traitKey) {
+    return segmentsByReadTrait.getOrDefault(traitKey, NO_SEGMENTS);
+  }
+
+  /**
+   * Get the slot of a feature.
+   *
+   * @param featureName Feature name.
+   * @return Feature slot, or -1 if the plan has no such feature.
+   */
+  int getSlot(String featureName) {
+    return slotsByName.getOrDefault(featureName, -1);
+  }
+
+  /**
+   * Compile an evaluation context into an evaluation plan.
+   *
+   * @param context Evaluation context.
+   * @return Evaluation plan.
+   */
+  public static EvaluationPlan compile(EvaluationContext context) {
+    return compile(context, EvaluationPlanOptions.newBuilder().build());
+  }
+
+  /**
+   * Compile an evaluation context into an evaluation plan with the given
+   * options, such as the engine matching REGEX conditions, the parallelism of
+   * segment evaluation and memos.
+   *
+   * @param context Evaluation context.
+   * @param options Compilation options.
+   * @return Evaluation plan.
+   */
+  public static EvaluationPlan compile(EvaluationContext context, EvaluationPlanOptions options) {
+    return new EvaluationPlan(context, options);
+  }
+
+  /**
+   * Get the segments that differ between a previous plan and this one, by their
+   * key in the segments of the context: segments added, removed or changed. An
+   * identity in none of these segments, in either plan, gets the same
+   * evaluation result from both plans.
+   *
+   * <p>If anything else differs, such as the environment, the features or the
+   * order of the segments, any evaluation result may differ and null is
+   * returned. So it is if segments may read the rest of the context through
+   * JSONPath conditions.
+   *
+   * @param previous Previous evaluation plan.
+   * @return Keys of the changed segments, or null if the plans differ otherwise.
+   */
+  public Set<String> getChangedSegmentKeys(EvaluationPlan previous) {
+    if (readsDocument || previous.readsDocument
+        || !Objects.equals(context.getEnvironment(), previous.context.getEnvironment())
+        || !getFeatureEntries(context).equals(getFeatureEntries(previous.context))) {
+      return null;
+    }
+
+    Map<String, Integer> previousPositions = new HashMap<>();
+    for (int position = 0; position < previous.segmentKeys.length; position++) {
+      previousPositions.put(previous.segmentKeys[position], position);
+    }
+    Set<String> changedSegmentKeys = new HashSet<>();
+    int lastPreviousPosition = -1;
+    for (int position = 0; position < segmentKeys.length; position++) {
+      Integer previousPosition = previousPositions.remove(segmentKeys[position]);
+      if (previousPosition == null) {
+        changedSegmentKeys.add(segmentKeys[position]);
+        continue;
+      }
+      // Segment order decides priority ties, so reordered segments change them.
+      if (previousPosition < lastPreviousPosition) {
+        return null;
+      }
+      lastPreviousPosition = previousPosition;
+      if (!segmentContexts.get(position).equals(
+          previous.segmentContexts.get(previousPosition))) {
+        changedSegmentKeys.add(segmentKeys[position]);
+      }
+    }
+    changedSegmentKeys.addAll(previousPositions.keySet());
+    return changedSegmentKeys;
+  }
+
+  /*
+   * Get the features of a context as a list, so that the order of features
+   * sharing a name is compared too.
+   */
+  private static List<Map.Entry<String, FeatureContext>> getFeatureEntries(
+      EvaluationContext context) {
+    return context.getFeatures() != null
+        ? new ArrayList<>(context.getFeatures().getAdditionalProperties().entrySet())
+        : Collections.emptyList();
+  }
+
+  /**
+   * Get the segments of the plan. Segment indexes returned by the engine refer
+   * to positions in this list.
+   *
+   * @return Segment contexts, in evaluation order.
+   */
+  public List<SegmentContext> getSegments() {
+    return segmentContexts;
+  }
+
+  /**
+   * Get the evaluation context this plan was compiled from.
+   *
+   * @return Evaluation context.
+   */
+  public EvaluationContext getContext() {
+    return context;
+  }
+}
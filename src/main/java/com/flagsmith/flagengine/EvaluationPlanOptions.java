@@ -0,0 +1,134 @@
+package com.flagsmith.flagengine;
+
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import com.flagsmith.flagengine.utils.regex.JavaRegexEngine;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
+
+/**
+ * EvaluationPlanOptions
+ *
+ * <p>Options for compiling an evaluation context into an evaluation plan. Any
+ * option not set keeps the behaviour of a plan compiled without options:
+ * REGEX conditions are matched with {@link JavaRegexEngine}, segments are
+ * evaluated on the calling thread only and nothing is memoised.
+ */
+public final class EvaluationPlanOptions {
+  private final RegexEngine regexEngine;
+  private final SegmentParallelism segmentParallelism;
+  private final SegmentMembershipMemo segmentMembershipMemo;
+  private final HashedPercentageMemo hashedPercentageMemo;
+
+  private EvaluationPlanOptions(Builder builder) {
+    this.regexEngine = builder.regexEngine != null
+        ? builder.regexEngine
+        : new JavaRegexEngine();
+    this.segmentParallelism = builder.segmentParallelism;
+    this.segmentMembershipMemo = builder.segmentMembershipMemo;
+    this.hashedPercentageMemo = builder.hashedPercentageMemo;
+  }
+
+  public static EvaluationPlanOptions.Builder newBuilder() {
+    return new EvaluationPlanOptions.Builder();
+  }
+
+  /**
+   * Get the engine compiling the patterns of REGEX conditions.
+   *
+   * @return Regex engine.
+   */
+  public RegexEngine getRegexEngine() {
+    return regexEngine;
+  }
+
+  /**
+   * Get the settings splitting the evaluation of many segments across a pool.
+   *
+   * @return Segment parallelism settings, or null to evaluate segments on the
+   *     calling thread only.
+   */
+  public SegmentParallelism getSegmentParallelism() {
+    return segmentParallelism;
+  }
+
+  /**
+   * Get the memo of segment memberships by the traits segments read.
+   *
+   * @return Segment membership memo, or null to evaluate every segment.
+   */
+  public SegmentMembershipMemo getSegmentMembershipMemo() {
+    return segmentMembershipMemo;
+  }
+
+  /**
+   * Get the memo of the hashed percentages of percentage splits and
+   * multivariate features.
+   *
+   * @return Hashed percentage memo, or null to hash every time.
+   */
+  public HashedPercentageMemo getHashedPercentageMemo() {
+    return hashedPercentageMemo;
+  }
+
+  public static class Builder {
+    private RegexEngine regexEngine;
+    private SegmentParallelism segmentParallelism;
+    private SegmentMembershipMemo segmentMembershipMemo;
+    private HashedPercentageMemo hashedPercentageMemo;
+
+    private Builder() {
+    }
+
+    /**
+     * Match REGEX conditions with the given engine.
+     *
+     * @param regexEngine Engine compiling the patterns of REGEX conditions, or
+     *                    null for {@link JavaRegexEngine}.
+     * @return The builder.
+     */
+    public Builder withRegexEngine(RegexEngine regexEngine) {
+      this.regexEngine = regexEngine;
+      return this;
+    }
+
+    /**
+     * Split the evaluation of many segments across a pool.
+     *
+     * @param segmentParallelism Segment parallelism settings, or null to
+     *                           evaluate segments on the calling thread only.
+     * @return The builder.
+     */
+    public Builder withSegmentParallelism(SegmentParallelism segmentParallelism) {
+      this.segmentParallelism = segmentParallelism;
+      return this;
+    }
+
+    /**
+     * Memoise segment memberships by the traits segments read.
+     *
+     * @param segmentMembershipMemo Segment membership memo, or null to
+     *                              evaluate every segment.
+     * @return The builder.
+     */
+    public Builder withSegmentMembershipMemo(SegmentMembershipMemo segmentMembershipMemo) {
+      this.segmentMembershipMemo = segmentMembershipMemo;
+      return this;
+    }
+
+    /**
+     * Memoise the hashed percentages of percentage splits and multivariate
+     * features.
+     *
+     * @param hashedPercentageMemo Hashed percentage memo, or null to hash
+     *                             every time.
+     * @return The builder.
+     */
+    public Builder withHashedPercentageMemo(HashedPercentageMemo hashedPercentageMemo) {
+      this.hashedPercentageMemo = hashedPercentageMemo;
+      return this;
+    }
+
+    public EvaluationPlanOptions build() {
+      return new EvaluationPlanOptions(this);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.flagsmith.flagengine;
+
+import com.flagsmith.flagengine.segments.EvaluationScope;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * EvaluationScratch
+ *
+ * <p>Working state of an evaluation, confined to the evaluating thread and
+ * reused from one evaluation to the next, so that evaluating an identity only
+ * allocates what ends up in its result. Arrays grow to the largest plan
+ * evaluated on the thread and are cleared, not reallocated, between
+ * evaluations.
+ */
+final class EvaluationScratch {
+  private static final ThreadLocal<EvaluationScratch> SCRATCH =
+      ThreadLocal.withInitial(EvaluationScratch::new);
+
+  EvaluationPlan plan;
+  IdentityContext identity;
+  String identityKey;
+
+  final EvaluationScope scope = new EvaluationScope();
+  final List<SegmentPlan> candidates = new ArrayList<>();
+  final List<SegmentPlan> matches = new ArrayList<>();
+  final SegmentMembershipMemo.Key memoKey = new SegmentMembershipMemo.Key();
+  long[] traitMask = new long[0];
+
+  SegmentPlan[] overrideSegments = new SegmentPlan[0];
+  FeaturePlan[] overrideFeatures = new FeaturePlan[0];
+  double[] overridePriorities = new double[0];
+
+  private int slotCount;
+  private boolean inUse;
+
+  /**
+   * Get the scratch state of the current thread, prepared for evaluating an
+   * identity against a plan. If the thread's state is already in use, a new
+   * one is created.
+   *
+   * @param plan        Evaluation plan.
+   * @param identity    Identity context, or null.
+   * @param identityKey Key of the identity, or null.
+   * @return Scratch state, to be released after the evaluation.
+   */
+  static EvaluationScratch acquire(
+      EvaluationPlan plan, IdentityContext identity, String identityKey) {
+    EvaluationScratch scratch = SCRATCH.get();
+    if (scratch.inUse) {
+      scratch = new EvaluationScratch();
+    }
+    scratch.inUse = true;
+    scratch.prepare(plan, identity, identityKey);
+    return scratch;
+  }
+
+  /**
+   * Release the scratch state, dropping any references to the evaluation.
+   */
+  void release() {
+    plan = null;
+    identity = null;
+    identityKey = null;
+    scope.reset(null, null, null, 0);
+    candidates.clear();
+    matches.clear();
+    Arrays.fill(overrideSegments, 0, slotCount, null);
+    Arrays.fill(overrideFeatures, 0, slotCount, null);
+    inUse = false;
+  }
+
+  /**
+   * Record the overrides of a matched segment, keeping for each feature slot
+   * the override with the highest priority.
+   *
+   * @param segmentPlan Matched segment plan.
+   */
+  void applyOverrides(SegmentPlan segmentPlan) {
+    for (int i = 0; i < segmentPlan.overrideSlots.length; i++) {
+      int slot = segmentPlan.overrideSlots[i];
+      double priority = segmentPlan.overridePriorities[i];
+      if (overrideSegments[slot] != null && overridePriorities[slot] < priority) {
+        continue;
+      }
+      overrideSegments[slot] = segmentPlan;
+      overrideFeatures[slot] = segmentPlan.overrideFeatures[i];
+      overridePriorities[slot] = priority;
+    }
+  }
+
+  private void prepare(EvaluationPlan plan, IdentityContext identity, String identityKey) {
+    this.plan = plan;
+    this.identity = identity;
+    this.identityKey = identityKey;
+    scope.reset(
+        plan.getContext(), identity, identityKey, plan.sharedRuleCount, plan.traitSymbols);
+    slotCount = plan.slotCount;
+    if (overrideSegments.length < slotCount) {
+      overrideSegments = new SegmentPlan[slotCount];
+      overrideFeatures = new FeaturePlan[slotCount];
+      overridePriorities = new double[slotCount];
+    }
+    int traitWordCount = plan.traitSymbols.getWordCount();
+    if (traitMask.length < traitWordCount) {
+      traitMask = new long[traitWordCount];
+    }
+    scope.fillTraitMask(traitMask);
+  }
+}
@@ -0,0 +1,185 @@
+package com.flagsmith.flagengine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * EvaluationSession
+ *
+ * <p>The evaluation result of an identity whose traits change one at a time.
+ * The session keeps the segments the identity is in, so that when a trait
+ * changes, only the segments reading that trait are evaluated again, and only
+ * the flags of the features they override are resolved again.
+ *
+ * <p>A session is not thread safe.
+ */
+public final class EvaluationSession {
+  private final EvaluationPlan plan;
+  private final IdentityContext identity;
+  private final String identityKey;
+  private final BitSet segmentMatches = new BitSet();
+
+  private final SegmentPlan[] overrideSegments;
+  private final FeaturePlan[] overrideFeatures;
+  private final double[] overridePriorities;
+  private final FlagResult[] flagResults;
+  private EvaluationResult result;
+
+  /**
+   * Start a session, evaluating an identity against a compiled evaluation plan.
+   * The traits of the identity are copied, so the identity itself is never
+   * updated.
+   *
+   * @param plan     Evaluation plan.
+   * @param identity Identity context.
+   */
+  public EvaluationSession(EvaluationPlan plan, IdentityContext identity) {
+    this.plan = plan;
+    this.identity = new IdentityContext(identity).withTraits(identity.getTraits() != null
+        ? new Traits(identity.getTraits())
+        : new Traits());
+    this.identityKey = Engine.getIdentityKey(plan, this.identity);
+    this.overrideSegments = new SegmentPlan[plan.slotCount];
+    this.overrideFeatures = new FeaturePlan[plan.slotCount];
+    this.overridePriorities = new double[plan.slotCount];
+    this.flagResults = new FlagResult[plan.slotCount];
+
+    for (int position : Engine.getSegmentIndexes(plan, this.identity)) {
+      segmentMatches.set(position);
+    }
+    resolveFlags(null);
+  }
+
+  /**
+   * Get the current evaluation result of the identity. Flag results of
+   * features whose flags did not change are shared between results.
+   *
+   * @return Evaluation result.
+   */
+  public EvaluationResult getResult() {
+    if (result != null) {
+      return result;
+    }
+
+    List<SegmentResult> segments = new ArrayList<>(segmentMatches.cardinality());
+    for (int position = segmentMatches.nextSetBit(0); position >= 0;
+        position = segmentMatches.nextSetBit(position + 1)) {
+      SegmentPlan segmentPlan = plan.segmentsByPosition[position];
+      segments.add(new SegmentResult()
+          .withName(segmentPlan.name)
+          .withMetadata(segmentPlan.metadata));
+    }
+
+    Flags flags = new Flags();
+    for (FeaturePlan featurePlan : plan.features) {
+      FlagResult flagResult = flagResults[featurePlan.slot];
+      flags.setAdditionalProperty(flagResult.getName(), flagResult);
+    }
+
+    result = new EvaluationResult()
+        .withFlags(flags)
+        .withSegments(segments);
+    return result;
+  }
+
+  /**
+   * Set a trait of the identity, evaluating again the segments reading it.
+   *
+   * @param key   Trait key.
+   * @param value Trait value, or null to remove the trait.
+   * @return Evaluation result of the identity with the trait set.
+   */
+  public EvaluationResult updateTrait(String key, Object value) {
+    Map<String, Object> traits = identity.getTraits().getAdditionalProperties();
+    Object previousValue = value != null ? traits.put(key, value) : traits.remove(key);
+    if (Objects.equals(previousValue, value)) {
+      return getResult();
+    }
+
+    SegmentPlan[] traitSegments = plan.getSegmentsReadingTrait(key);
+    if (traitSegments.length == 0 && plan.anyTraitSegments.length == 0) {
+      return getResult();
+    }
+    boolean[] changedSlots = new boolean[plan.slotCount];
+    boolean changed = false;
+    EvaluationScratch scratch = EvaluationScratch.acquire(plan, identity, identityKey);
+    try {
+      changed |= evaluateSegments(scratch, traitSegments, changedSlots);
+      changed |= evaluateSegments(scratch, plan.anyTraitSegments, changedSlots);
+    } finally {
+      scratch.release();
+    }
+
+    if (changed) {
+      resolveFlags(changedSlots);
+      result = null;
+    }
+    return getResult();
+  }
+
+  /*
+   * Evaluate segments again, marking the slots of the features overridden by
+   * those whose match changed.
+   *
+   * @param scratch Scratch state of the evaluation.
+   * @param segmentPlans Segment plans to evaluate.
+   * @param changedSlots Slots to mark, as a mask indexed by slot.
+   * @return true if any segment's match changed.
+   */
+  private boolean evaluateSegments(
+      EvaluationScratch scratch, SegmentPlan[] segmentPlans, boolean[] changedSlots) {
+    boolean changed = false;
+    for (SegmentPlan segmentPlan : segmentPlans) {
+      boolean matches = segmentPlan.matches(scratch);
+      if (matches != segmentMatches.get(segmentPlan.position)) {
+        segmentMatches.set(segmentPlan.position, matches);
+        for (int slot : segmentPlan.overrideSlots) {
+          changedSlots[slot] = true;
+        }
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /*
+   * Resolve the winning overrides of feature slots from the matching segments,
+   * in segment order as the engine applies them, and build their flag results.
+   *
+   * @param slots Slots to resolve, as a mask indexed by slot, or null for all.
+   */
+  private void resolveFlags(boolean[] slots) {
+    for (int slot = 0; slot < plan.slotCount; slot++) {
+      if (slots == null || slots[slot]) {
+        overrideSegments[slot] = null;
+        overrideFeatures[slot] = null;
+      }
+    }
+    for (int position = segmentMatches.nextSetBit(0); position >= 0;
+        position = segmentMatches.nextSetBit(position + 1)) {
+      SegmentPlan segmentPlan = plan.segmentsByPosition[position];
+      for (int i = 0; i < segmentPlan.overrideSlots.length; i++) {
+        int slot = segmentPlan.overrideSlots[i];
+        double priority = segmentPlan.overridePriorities[i];
+        if ((slots != null && !slots[slot])
+            || (overrideSegments[slot] != null && overridePriorities[slot] < priority)) {
+          continue;
+        }
+        overrideSegments[slot] = segmentPlan;
+        overrideFeatures[slot] = segmentPlan.overrideFeatures[i];
+        overridePriorities[slot] = priority;
+      }
+    }
+    for (int slot = 0; slot < plan.slotCount; slot++) {
+      if (slots == null || slots[slot]) {
+        SegmentPlan segmentPlan = overrideSegments[slot];
+        flagResults[slot] = segmentPlan != null
+            ? overrideFeatures[slot].getFlagResult(identityKey, segmentPlan.reason)
+            : plan.featuresBySlot[slot].getFlagResult(identityKey, Engine.DEFAULT_REASON);
+      }
+    }
+  }
+}
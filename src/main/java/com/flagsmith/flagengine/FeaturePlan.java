@@ -0,0 +1,129 @@
+package com.flagsmith.flagengine;
+
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import com.flagsmith.flagengine.utils.Hashing;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FeaturePlan
+ *
+ * <p>A feature context compiled for evaluation. Multivariate variants are sorted
+ * by priority once and laid out as cumulative percentage ranges, and their
+ * reason strings are built up front.
+ */
+final class FeaturePlan {
+  private static final Comparator<FeatureValue> VARIANT_PRIORITY_ORDER = Comparator.comparing(
+      FeatureValue::getPriority, Comparator.nullsLast(Comparator.naturalOrder()));
+
+  final int slot;
+  final String name;
+  final String key;
+  final Boolean enabled;
+  final Object value;
+  final Map<String, Object> metadata;
+
+  private final Hashing.HashPrefix keyPrefix;
+  private final Object[] variantValues;
+  private final float[] variantStarts;
+  private final float[] variantLimits;
+  private final String[] variantReasons;
+
+  /**
+   * Compile a feature context.
+   *
+   * @param slot           Index of the feature name within the plan.
+   * @param featureContext The feature context.
+   * @param percentageMemo Memo of the percentages selecting variants, or null.
+   */
+  FeaturePlan(int slot, FeatureContext featureContext, HashedPercentageMemo percentageMemo) {
+    this.slot = slot;
+    this.name = featureContext.getName();
+    this.key = featureContext.getKey();
+    this.enabled = featureContext.getEnabled();
+    this.value = featureContext.getValue();
+    this.metadata = featureContext.getMetadata();
+
+    List<FeatureValue> variants = featureContext.getVariants() == null
+        ? new ArrayList<>()
+        : new ArrayList<>(featureContext.getVariants());
+    variants.sort(VARIANT_PRIORITY_ORDER);
+
+    int count = variants.size();
+    this.variantValues = new Object[count];
+    this.variantStarts = new float[count];
+    this.variantLimits = new float[count];
+    this.variantReasons = new String[count];
+
+    float startPercentage = 0.0f;
+    for (int i = 0; i < count; i++) {
+      FeatureValue variant = variants.get(i);
+      double weight = variant.getWeight() == null ? 0 : variant.getWeight();
+      float limit = startPercentage + (float) weight;
+      variantValues[i] = variant.getValue();
+      variantStarts[i] = startPercentage;
+      variantLimits[i] = limit;
+      variantReasons[i] = "SPLIT; weight=" + BigDecimal.valueOf(weight)
+          .stripTrailingZeros()
+          .toPlainString();
+      startPercentage = limit;
+    }
+    this.keyPrefix = hasVariants()
+        ? Hashing.getInstance().getHashPrefix(key, percentageMemo)
+        : null;
+  }
+
+  boolean hasVariants() {
+    return variantValues.length > 0 && key != null;
+  }
+
+  /**
+   * Build the flag result for this feature.
+   *
+   * @param identityKey Identity key used for multivariate selection, or null.
+   * @param reason      Reason to report when no variant is selected.
+   * @return Flag result.
+   */
+  FlagResult getFlagResult(String identityKey, String reason) {
+    int variant = selectVariant(identityKey);
+    return new FlagResult().withEnabled(enabled)
+        .withName(name)
+        .withValue(variant < 0 ? value : variantValues[variant])
+        .withReason(variant < 0 ? reason : variantReasons[variant])
+        .withMetadata(metadata);
+  }
+
+  /**
+   * Pass the flag for this feature to a visitor.
+   *
+   * @param identityKey Identity key used for multivariate selection, or null.
+   * @param visitor     Flag visitor.
+   */
+  void visitFlag(String identityKey, FlagVisitor visitor) {
+    int variant = selectVariant(identityKey);
+    visitor.visitFlag(name, enabled, variant < 0 ? value : variantValues[variant], metadata);
+  }
+
+  /*
+   * Select the multivariate variant for an identity.
+   *
+   * @param identityKey Identity key, or null.
+   * @return Index of the selected variant, or -1 to use the control value.
+   */
+  private int selectVariant(String identityKey) {
+    if (identityKey != null && hasVariants()) {
+      float percentageValue = Hashing.getInstance()
+          .getHashedPercentageForObjectIds(keyPrefix, identityKey);
+
+      for (int i = 0; i < variantValues.length; i++) {
+        if (variantStarts[i] <= percentageValue && percentageValue < variantLimits[i]) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+}
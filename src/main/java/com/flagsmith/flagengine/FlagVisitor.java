@@ -0,0 +1,23 @@
+package com.flagsmith.flagengine;
+
+import java.util.Map;
+
+/**
+ * FlagVisitor
+ *
+ * <p>Receives the flags of an evaluation one at a time, in feature order, as an
+ * alternative to building an {@link EvaluationResult}. Features sharing a name
+ * are all visited, the last one being the one an evaluation result would hold.
+ */
+@FunctionalInterface
+public interface FlagVisitor {
+  /**
+   * Receive the flag of a feature.
+   *
+   * @param name     Feature name.
+   * @param enabled  Whether the feature is enabled.
+   * @param value    Feature value, or the selected variant value.
+   * @param metadata Metadata of the feature context the flag comes from.
+   */
+  void visitFlag(String name, Boolean enabled, Object value, Map<String, Object> metadata);
+}
@@ -0,0 +1,74 @@
+package com.flagsmith.flagengine;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SegmentEvaluation
+ *
+ * <p>Evaluation of a range of segments for an identity, split in halves across
+ * the threads of a fork-join pool. Each thread evaluates its share with scratch
+ * state of its own, as evaluation scopes memoise results and are not shared.
+ */
+final class SegmentEvaluation extends RecursiveAction {
+  private static final int MIN_SEGMENTS_PER_TASK = 32;
+
+  private final EvaluationPlan plan;
+  private final IdentityContext identity;
+  private final String identityKey;
+  private final SegmentPlan[] segmentPlans;
+  private final boolean[] results;
+  private final int from;
+  private final int to;
+  private final int segmentsPerTask;
+
+  /**
+   * Create the evaluation of all segments, split in as many tasks as the pool
+   * can run a few times over.
+   *
+   * @param plan         Evaluation plan.
+   * @param identity     Identity context, or null.
+   * @param identityKey  Key of the identity, or null.
+   * @param segmentPlans Segment plans to evaluate.
+   * @param results      Array to set whether each segment matches in.
+   * @param parallelism  Number of threads of the pool.
+   */
+  SegmentEvaluation(EvaluationPlan plan, IdentityContext identity, String identityKey,
+      SegmentPlan[] segmentPlans, boolean[] results, int parallelism) {
+    this(plan, identity, identityKey, segmentPlans, results, 0, segmentPlans.length,
+        Math.max(MIN_SEGMENTS_PER_TASK, segmentPlans.length / (parallelism * 4) + 1));
+  }
+
+  private SegmentEvaluation(EvaluationPlan plan, IdentityContext identity, String identityKey,
+      SegmentPlan[] segmentPlans, boolean[] results, int from, int to, int segmentsPerTask) {
+    this.plan = plan;
+    this.identity = identity;
+    this.identityKey = identityKey;
+    this.segmentPlans = segmentPlans;
+    this.results = results;
+    this.from = from;
+    this.to = to;
+    this.segmentsPerTask = segmentsPerTask;
+  }
+
+  @Override
+  protected void compute() {
+    if (to - from <= segmentsPerTask) {
+      EvaluationScratch scratch = EvaluationScratch.acquire(plan, identity, identityKey);
+      try {
+        for (int i = from; i < to; i++) {
+          results[i] = segmentPlans[i].matches(scratch);
+        }
+      } finally {
+        scratch.release();
+      }
+      return;
+    }
+
+    final int middle = (from + to) >>> 1;
+    invokeAll(
+        new SegmentEvaluation(plan, identity, identityKey, segmentPlans, results,
+            from, middle, segmentsPerTask),
+        new SegmentEvaluation(plan, identity, identityKey, segmentPlans, results,
+            middle, to, segmentsPerTask));
+  }
+}
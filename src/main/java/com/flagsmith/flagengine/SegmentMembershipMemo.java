@@ -0,0 +1,194 @@
+package com.flagsmith.flagengine;
+
+import com.flagsmith.flagengine.segments.EvaluationScope;
+import com.flagsmith.flagengine.utils.TraitValues;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SegmentMembershipMemo
+ *
+ * <p>A bounded memo of whether segments match, keyed by the evaluation plan,
+ * the segment and the values of the traits the segment reads. Identities that
+ * share these values are in the same segments, so an identity never seen
+ * before skips evaluating the segments others with the same values went
+ * through.
+ *
+ * <p>Only segments whose conditions read nothing but traits are memoised;
+ * segments reading the identifier, the identity key, as percentage splits do,
+ * or the context document through JSONPath are always evaluated. So are
+ * segments when a trait they read has a value other than a string, a number
+ * or a boolean. A memo can be shared between plans, as each plan has keys of
+ * its own.
+ */
+public final class SegmentMembershipMemo {
+  private final Cache<Key, Boolean> cache;
+  private final int maximumSize;
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  /**
+   * Create a memo holding up to a given number of segment memberships.
+   *
+   * @param maximumSize Maximum number of segment memberships.
+   */
+  public SegmentMembershipMemo(int maximumSize) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("maximumSize must be positive");
+    }
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .build();
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * Get the maximum number of segment memberships held.
+   *
+   * @return Maximum number of segment memberships.
+   */
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Get the number of lookups that found a segment membership.
+   *
+   * @return Number of hits.
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * Get the number of lookups that did not find a segment membership.
+   *
+   * @return Number of misses.
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * Check whether a segment matches an evaluation, looking it up by the values
+   * of the traits the segment reads before evaluating it.
+   *
+   * <p>The lookup goes through the scratch state's key, filled in place, so
+   * that a hit allocates nothing. A key of its own is only allocated for a
+   * miss, to be kept in the memo.
+   *
+   * @param segmentPlan Segment plan, whose conditions read traits only.
+   * @param scratch     Scratch state of the evaluation, with traits projected
+   *                    over the plan's trait keys.
+   * @return true if the segment matches.
+   */
+  boolean matches(SegmentPlan segmentPlan, EvaluationScratch scratch) {
+    EvaluationScope scope = scratch.scope;
+    Key lookupKey = scratch.memoKey;
+    Boolean matches;
+    try {
+      if (!lookupKey.set(scratch.plan.version, segmentPlan, scope)) {
+        return segmentPlan.predicate.matches(scope);
+      }
+      matches = cache.getIfPresent(lookupKey);
+      if (matches != null) {
+        hitCount.increment();
+        return matches;
+      }
+      missCount.increment();
+      matches = segmentPlan.predicate.matches(scope);
+      cache.put(lookupKey.copy(), matches);
+    } finally {
+      lookupKey.clear();
+    }
+    return matches;
+  }
+
+  /**
+   * Key of a segment membership. Keys kept in the memo are never changed; a
+   * scratch state holds one more, filled in place for each lookup.
+   */
+  static final class Key {
+    private long planVersion;
+    private int position;
+    private Object[] traitValues;
+    private int length;
+    private int hashCode;
+
+    /**
+     * Create an empty key, to be filled for lookups.
+     */
+    Key() {
+      this.traitValues = new Object[0];
+    }
+
+    private Key(long planVersion, int position, Object[] traitValues, int hashCode) {
+      this.planVersion = planVersion;
+      this.position = position;
+      this.traitValues = traitValues;
+      this.length = traitValues.length;
+      this.hashCode = hashCode;
+    }
+
+    /*
+     * Fill the key with a segment and the values of the traits it reads,
+     * growing the trait values if needed. Returns false, leaving the key to
+     * be cleared, when a value can't be kept in a key.
+     */
+    private boolean set(long planVersion, SegmentPlan segmentPlan, EvaluationScope scope) {
+      int[] traitOrdinals = segmentPlan.memoTraitOrdinals;
+      if (traitValues.length < traitOrdinals.length) {
+        traitValues = new Object[traitOrdinals.length];
+      }
+      int valuesHash = 1;
+      for (int i = 0; i < traitOrdinals.length; i++) {
+        Object traitValue = scope.getProjectedTrait(traitOrdinals[i]);
+        if (!TraitValues.isImmutable(traitValue)) {
+          return false;
+        }
+        traitValues[i] = traitValue;
+        length = i + 1;
+        valuesHash = 31 * valuesHash + (traitValue == null ? 0 : traitValue.hashCode());
+      }
+      this.planVersion = planVersion;
+      this.position = segmentPlan.position;
+      this.hashCode = 31 * (31 * Long.hashCode(planVersion) + position) + valuesHash;
+      return true;
+    }
+
+    /*
+     * Copy the key, for keeping in the memo.
+     */
+    private Key copy() {
+      return new Key(planVersion, position, Arrays.copyOf(traitValues, length), hashCode);
+    }
+
+    /*
+     * Clear the key, dropping its references to trait values.
+     */
+    private void clear() {
+      Arrays.fill(traitValues, 0, length, null);
+      length = 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return planVersion == key.planVersion && position == key.position
+          && Arrays.equals(traitValues, 0, length, key.traitValues, 0, key.length);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
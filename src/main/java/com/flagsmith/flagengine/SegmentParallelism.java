@@ -0,0 +1,53 @@
+package com.flagsmith.flagengine;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * SegmentParallelism
+ *
+ * <p>Settings for splitting the segments evaluated for a single identity
+ * across the threads of a fork-join pool. Only evaluations with at least a
+ * threshold number of segments to evaluate are split, as smaller ones are
+ * faster on the calling thread. Results are the same as those of sequential
+ * evaluation.
+ */
+public final class SegmentParallelism {
+  private final ForkJoinPool pool;
+  private final int threshold;
+
+  /**
+   * Create segment parallelism settings.
+   *
+   * @param pool      Pool evaluating the segments.
+   * @param threshold Minimum number of segments to evaluate for an evaluation
+   *                  to be split.
+   */
+  public SegmentParallelism(ForkJoinPool pool, int threshold) {
+    if (pool == null) {
+      throw new IllegalArgumentException("Segment evaluation pool must not be null.");
+    }
+    if (threshold < 1) {
+      throw new IllegalArgumentException("Segment evaluation threshold must be positive.");
+    }
+    this.pool = pool;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Get the pool evaluating the segments.
+   *
+   * @return Fork-join pool.
+   */
+  public ForkJoinPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Get the minimum number of segments to evaluate for an evaluation to be split.
+   *
+   * @return Segment count threshold.
+   */
+  public int getThreshold() {
+    return threshold;
+  }
+}
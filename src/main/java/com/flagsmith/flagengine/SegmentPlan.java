@@ -0,0 +1,158 @@
+package com.flagsmith.flagengine;
+
+import com.flagsmith.flagengine.segments.SegmentCompiler;
+import com.flagsmith.flagengine.segments.SegmentPredicate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SegmentPlan
+ *
+ * <p>A segment context compiled for evaluation. Rules are compiled into a
+ * predicate tree, and feature overrides are resolved to feature slots of the
+ * owning plan, with primitive priorities and a precomputed targeting reason.
+ */
+final class SegmentPlan {
+  final int position;
+  final SegmentPredicate predicate;
+  final String key;
+  final String name;
+  final Map<String, Object> metadata;
+  final String reason;
+
+  final int[] requiredTraitWords;
+  final long[] requiredTraitBits;
+  // Ordinals of the traits read by a segment reading traits only, or null.
+  final int[] memoTraitOrdinals;
+
+  final int[] overrideSlots;
+  final double[] overridePriorities;
+  final FeaturePlan[] overrideFeatures;
+
+  /**
+   * Compile a segment context.
+   *
+   * @param position    Index of the segment within the plan.
+   * @param segment     The segment context.
+   * @param slotsByName Feature slots of the owning plan, keyed by feature name.
+   * @param compiler    Segment compiler of the owning plan, to share rules and
+   *                    intern required traits through.
+   */
+  SegmentPlan(int position, SegmentContext segment, Map<String, Integer> slotsByName,
+      SegmentCompiler compiler) {
+    this.position = position;
+    this.predicate = compiler.compile(segment);
+    this.key = segment.getKey();
+    this.name = segment.getName();
+    this.metadata = segment.getMetadata();
+    this.reason = "TARGETING_MATCH; segment=" + name;
+
+    // The required traits mask is stored sparsely, as its non-zero words only.
+    long[] requiredTraitMask = compiler.getTraitSymbols()
+        .internMask(predicate.getRequiredTraits());
+    int requiredWordCount = 0;
+    for (long word : requiredTraitMask) {
+      if (word != 0) {
+        requiredWordCount++;
+      }
+    }
+    this.requiredTraitWords = new int[requiredWordCount];
+    this.requiredTraitBits = new long[requiredWordCount];
+    for (int word = 0, i = 0; word < requiredTraitMask.length; word++) {
+      if (requiredTraitMask[word] != 0) {
+        requiredTraitWords[i] = word;
+        requiredTraitBits[i++] = requiredTraitMask[word];
+      }
+    }
+
+    if (predicate.readsTraitsOnly()) {
+      long[] readTraitMask = compiler.getTraitSymbols().internMask(predicate.getReadTraits());
+      int readTraitCount = 0;
+      for (long word : readTraitMask) {
+        readTraitCount += Long.bitCount(word);
+      }
+      this.memoTraitOrdinals = new int[readTraitCount];
+      for (int ordinal = 0, i = 0; i < readTraitCount; ordinal++) {
+        if ((readTraitMask[ordinal >>> 6] & (1L << ordinal)) != 0) {
+          memoTraitOrdinals[i++] = ordinal;
+        }
+      }
+    } else {
+      this.memoTraitOrdinals = null;
+    }
+
+    List<FeatureContext> overrides = new ArrayList<>();
+    if (segment.getOverrides() != null) {
+      for (FeatureContext featureContext : segment.getOverrides()) {
+        // Overrides for features missing from the environment can never surface in a result.
+        if (slotsByName.containsKey(featureContext.getName())) {
+          overrides.add(featureContext);
+        }
+      }
+    }
+
+    int count = overrides.size();
+    this.overrideSlots = new int[count];
+    this.overridePriorities = new double[count];
+    this.overrideFeatures = new FeaturePlan[count];
+
+    for (int i = 0; i < count; i++) {
+      FeatureContext featureContext = overrides.get(i);
+      int slot = slotsByName.get(featureContext.getName());
+      overrideSlots[i] = slot;
+      overridePriorities[i] = featureContext.getPriority() == null
+          ? EngineConstants.WEAKEST_PRIORITY
+          : featureContext.getPriority();
+      overrideFeatures[i] = new FeaturePlan(slot, featureContext, compiler.getPercentageMemo());
+    }
+  }
+
+  /**
+   * Check whether an identity has all the traits the segment requires to match.
+   *
+   * @param traitMask Trait presence mask of the identity, over the plan's trait keys.
+   * @return false if the segment cannot match the identity.
+   */
+  boolean hasRequiredTraits(long[] traitMask) {
+    for (int i = 0; i < requiredTraitWords.length; i++) {
+      if ((traitMask[requiredTraitWords[i]] & requiredTraitBits[i]) != requiredTraitBits[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether the segment matches the identity of an evaluation, through
+   * the segment membership memo of the plan if it has one.
+   *
+   * @param scratch Scratch state of the evaluation.
+   * @return true if the segment matches.
+   */
+  boolean matches(EvaluationScratch scratch) {
+    if (!hasRequiredTraits(scratch.traitMask)) {
+      return false;
+    }
+    SegmentMembershipMemo membershipMemo = scratch.plan.membershipMemo;
+    if (membershipMemo != null && memoTraitOrdinals != null) {
+      return membershipMemo.matches(this, scratch);
+    }
+    return predicate.matches(scratch.scope);
+  }
+
+  /**
+   * Check whether the segment overrides any of the given feature slots.
+   *
+   * @param slots Feature slots to check, as a mask indexed by slot.
+   * @return true if the segment overrides at least one of the slots.
+   */
+  boolean overridesAny(boolean[] slots) {
+    for (int slot : overrideSlots) {
+      if (slots[slot]) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,115 @@
+package com.flagsmith.flagengine;
+
+import com.flagsmith.flagengine.utils.types.TypeCasting;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ThresholdIndex
+ *
+ * <p>Segments of a plan whose threshold condition is on the same trait, sorted
+ * by the integer bound of that condition, so that the segments an integer trait
+ * value can match are found by binary search.
+ */
+final class ThresholdIndex {
+  private final SegmentPlan[] segments;
+  private final long[] lowerBounds;
+  private final SegmentPlan[] lowerBoundSegments;
+  private final long[] upperBounds;
+  private final SegmentPlan[] upperBoundSegments;
+
+  /**
+   * Index segments by the bounds of their threshold condition.
+   *
+   * @param segmentPlans Segment plans with a threshold condition on the same trait.
+   */
+  ThresholdIndex(List<SegmentPlan> segmentPlans) {
+    this.segments = segmentPlans.toArray(new SegmentPlan[0]);
+
+    List<SegmentPlan> lowerBoundSegmentPlans = new ArrayList<>();
+    List<SegmentPlan> upperBoundSegmentPlans = new ArrayList<>();
+    for (SegmentPlan segmentPlan : segmentPlans) {
+      if (segmentPlan.predicate.getThresholdLowerBound() != null) {
+        lowerBoundSegmentPlans.add(segmentPlan);
+      } else {
+        upperBoundSegmentPlans.add(segmentPlan);
+      }
+    }
+    lowerBoundSegmentPlans.sort(Comparator.comparingLong(
+        (segmentPlan) -> segmentPlan.predicate.getThresholdLowerBound()));
+    upperBoundSegmentPlans.sort(Comparator.comparingLong(
+        (segmentPlan) -> segmentPlan.predicate.getThresholdUpperBound()));
+
+    this.lowerBoundSegments = lowerBoundSegmentPlans.toArray(new SegmentPlan[0]);
+    this.lowerBounds = new long[lowerBoundSegments.length];
+    for (int i = 0; i < lowerBounds.length; i++) {
+      lowerBounds[i] = lowerBoundSegments[i].predicate.getThresholdLowerBound();
+    }
+    this.upperBoundSegments = upperBoundSegmentPlans.toArray(new SegmentPlan[0]);
+    this.upperBounds = new long[upperBoundSegments.length];
+    for (int i = 0; i < upperBounds.length; i++) {
+      upperBounds[i] = upperBoundSegments[i].predicate.getThresholdUpperBound();
+    }
+  }
+
+  /**
+   * Add the segments a trait value can match to a list of candidates.
+   *
+   * <p>Values that are not integers are not bounded by threshold conditions, so
+   * all segments of the index are added for them.
+   *
+   * @param value      Trait value.
+   * @param candidates Segment plans to add to, in no particular order.
+   */
+  void addCandidates(Object value, List<SegmentPlan> candidates) {
+    Integer integerValue = TypeCasting.toInteger(value);
+    if (integerValue == null) {
+      Collections.addAll(candidates, segments);
+      return;
+    }
+    // Lower bounds up to the value, and upper bounds from the value on.
+    int lowerBoundCount = upperBound(lowerBounds, integerValue);
+    for (int i = 0; i < lowerBoundCount; i++) {
+      candidates.add(lowerBoundSegments[i]);
+    }
+    for (int i = lowerBound(upperBounds, integerValue); i < upperBounds.length; i++) {
+      candidates.add(upperBoundSegments[i]);
+    }
+  }
+
+  /*
+   * Get the index of the first bound not less than a value.
+   */
+  private static int lowerBound(long[] bounds, long value) {
+    int low = 0;
+    int high = bounds.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (bounds[middle] < value) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * Get the index of the first bound greater than a value.
+   */
+  private static int upperBound(long[] bounds, long value) {
+    int low = 0;
+    int high = bounds.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (bounds[middle] <= value) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,607 @@
+package com.flagsmith.flagengine.segments;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.flagsmith.flagengine.SegmentCondition;
+import com.flagsmith.flagengine.segments.constants.SegmentConditions;
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import com.flagsmith.flagengine.utils.Hashing;
+import com.flagsmith.flagengine.utils.SemanticVersioning;
+import com.flagsmith.flagengine.utils.regex.CompiledRegex;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
+import com.flagsmith.flagengine.utils.types.TypeCasting;
+import com.flagsmith.flagengine.utils.types.TypedValue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.maven.artifact.versioning.ComparableVersion;
+
+/**
+ * ConditionPredicate
+ *
+ * <p>A compiled segment condition. Each operator has its own predicate holding
+ * the condition value in its parsed form.
+ */
+abstract class ConditionPredicate {
+  private static ObjectMapper mapper = new ObjectMapper();
+  private static TypeReference<List<String>> stringListTypeRef = new TypeReference<List<String>>() {
+  };
+
+  private static final ConditionPredicate NEVER = new ConditionPredicate(null) {
+    @Override
+    int getMatchCost() {
+      return 0;
+    }
+
+    @Override
+    boolean requiresValue() {
+      return false;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      return false;
+    }
+  };
+
+  /**
+   * Orders conditions from cheapest to most expensive to match. Matching has no
+   * side effects, so the order of conditions does not change the result.
+   */
+  static final Comparator<ConditionPredicate> COST_ORDER = Comparator.comparingInt(
+      ConditionPredicate::getCost);
+
+  final String property;
+  private final PropertyAccessor accessor;
+
+  ConditionPredicate(String property) {
+    this(property, PropertyAccessor.compile(property));
+  }
+
+  ConditionPredicate(String property, PropertyAccessor accessor) {
+    this.property = property;
+    this.accessor = accessor;
+  }
+
+  /**
+   * Get the relative cost of matching a context value against the condition.
+   *
+   * @return Cost, from 0 for no work at all.
+   */
+  abstract int getMatchCost();
+
+  /**
+   * Get the relative cost of matching the condition, including reading the
+   * context value.
+   *
+   * @return Cost.
+   */
+  int getCost() {
+    return getMatchCost() + accessor.getCost();
+  }
+
+  /**
+   * Check whether the condition can never match, whatever the context, such as
+   * a condition without an operator or with a value of the wrong form.
+   *
+   * @return true if the condition never matches.
+   */
+  boolean neverMatches() {
+    return this == NEVER;
+  }
+
+  /**
+   * Check whether the condition may read parts of the context other than the
+   * identity and the environment.
+   *
+   * @return true if the condition may depend on the rest of the context.
+   */
+  boolean readsDocument() {
+    return accessor.readsDocument();
+  }
+
+  /**
+   * Check whether the condition only reads a trait, so that it matches
+   * identities with the same value for that trait alike.
+   *
+   * @return true if the condition reads a trait only.
+   */
+  boolean readsTraitOnly() {
+    return accessor.readsTraitOnly();
+  }
+
+  /**
+   * Add the keys of the traits the condition may read to a set.
+   *
+   * @param traitKeys Set to add trait keys to.
+   * @return false if the condition may read any trait.
+   */
+  boolean addTraitKeys(Set<String> traitKeys) {
+    return accessor.addTraitKeys(traitKeys);
+  }
+
+  /**
+   * Check whether the condition can only match a context with a value for the
+   * property.
+   *
+   * @return false if the condition may match a missing value.
+   */
+  boolean requiresValue() {
+    return true;
+  }
+
+  /**
+   * Get the trait the condition can only match with, if any.
+   *
+   * @return Trait name, or null if the condition may match without any trait.
+   */
+  String getRequiredTrait() {
+    return requiresValue() ? accessor.getTraitName() : null;
+  }
+
+  /**
+   * Get the values of the condition's trait that it can match, if the condition
+   * only matches trait values whose string form is one of a known set.
+   *
+   * @return Set of trait values, or null if the condition may match other values.
+   */
+  Set<String> getAnchorValues() {
+    return null;
+  }
+
+  /**
+   * Get the lowest integer trait value the condition can match, if the
+   * condition only matches integer trait values from a lower bound up.
+   *
+   * <p>Trait values that are not integers are not bounded by the condition.
+   *
+   * @return Lower bound, or null if the condition has no such bound.
+   */
+  Long getLowerBound() {
+    return null;
+  }
+
+  /**
+   * Get the highest integer trait value the condition can match, if the
+   * condition only matches integer trait values up to an upper bound.
+   *
+   * <p>Trait values that are not integers are not bounded by the condition.
+   *
+   * @return Upper bound, or null if the condition has no such bound.
+   */
+  Long getUpperBound() {
+    return null;
+  }
+
+  /**
+   * Check if context matches the condition.
+   *
+   * @param scope Evaluation scope.
+   * @return true if context matches the condition.
+   */
+  abstract boolean matches(EvaluationScope scope);
+
+  Object getContextValue(EvaluationScope scope) {
+    return accessor.getValue(scope);
+  }
+
+  /**
+   * Intern the trait key the condition reads, so that its trait is read by
+   * ordinal rather than looked up by name.
+   *
+   * @param symbols Trait keys of the segments being compiled.
+   */
+  void internTrait(TraitSymbols symbols) {
+    accessor.internTrait(symbols);
+  }
+
+  /**
+   * Compile a segment condition.
+   *
+   * @param condition      Segment condition.
+   * @param segmentKey     Key of the segment owning the condition.
+   * @param regexEngine    Engine compiling the patterns of REGEX conditions.
+   * @param percentageMemo Memo of the percentages of PERCENTAGE_SPLIT
+   *                       conditions, or null.
+   * @return Condition predicate.
+   */
+  static ConditionPredicate compile(SegmentCondition condition, String segmentKey,
+      RegexEngine regexEngine, HashedPercentageMemo percentageMemo) {
+    SegmentConditions operator = condition.getOperator();
+    Object conditionValue = condition.getValue();
+    String property = condition.getProperty();
+
+    if (operator == null) {
+      return NEVER;
+    }
+
+    switch (operator) {
+      case IN:
+        return new In(property, parseInValues(conditionValue));
+
+      case PERCENTAGE_SPLIT:
+        if (segmentKey == null) {
+          return NEVER;
+        }
+        try {
+          float threshold = Float.parseFloat(String.valueOf(conditionValue));
+          return new PercentageSplit(property, segmentKey, threshold, percentageMemo);
+        } catch (NumberFormatException e) {
+          return NEVER;
+        }
+
+      case IS_NOT_SET:
+        return new IsSet(property, false);
+
+      case IS_SET:
+        return new IsSet(property, true);
+
+      case CONTAINS:
+        if (conditionValue == null) {
+          return NEVER;
+        }
+        return new Contains(property, conditionValue.toString(), true);
+
+      case NOT_CONTAINS:
+        if (conditionValue == null) {
+          return NEVER;
+        }
+        return new Contains(property, conditionValue.toString(), false);
+
+      case REGEX:
+        if (conditionValue == null) {
+          return NEVER;
+        }
+        try {
+          return new Regex(property, regexEngine.compile(conditionValue.toString()));
+        } catch (PatternSyntaxException pse) {
+          return NEVER;
+        }
+
+      case MODULO:
+        if (!(conditionValue instanceof String)) {
+          return NEVER;
+        }
+        try {
+          String[] parts = conditionValue.toString().split("\\|");
+          if (parts.length != 2) {
+            return NEVER;
+          }
+          return new Modulo(property,
+              Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+        } catch (NumberFormatException nfe) {
+          return NEVER;
+        }
+
+      default:
+        if (conditionValue == null) {
+          return NEVER;
+        }
+        if (conditionValue instanceof String
+            && SemanticVersioning.isSemver((String) conditionValue)) {
+          return new SemverComparison(property, operator,
+              TypeCasting.toSemver(conditionValue));
+        }
+        return new Comparison(property, operator, conditionValue);
+    }
+  }
+
+  private static Set<String> parseInValues(Object conditionValue) {
+    List<String> conditionList = new ArrayList<>();
+
+    if (conditionValue instanceof List) {
+      for (Object value : (List<?>) conditionValue) {
+        if (value != null) {
+          conditionList.add(value.toString());
+        }
+      }
+    } else if (conditionValue instanceof String) {
+      String stringConditionValue = (String) conditionValue;
+      try {
+        // Try parsing a JSON list first
+        conditionList = mapper.readValue(
+            stringConditionValue, stringListTypeRef);
+      } catch (IOException e) {
+        // As a fallback, split by comma
+        conditionList = Arrays.asList(stringConditionValue.split(","));
+      }
+    }
+
+    return new HashSet<>(conditionList);
+  }
+
+  static final class In extends ConditionPredicate {
+    private final Set<String> values;
+
+    In(String property, Set<String> values) {
+      super(property);
+      this.values = values;
+    }
+
+    Set<String> getValues() {
+      return values;
+    }
+
+    @Override
+    Set<String> getAnchorValues() {
+      return getRequiredTrait() != null ? values : null;
+    }
+
+    /**
+     * Get the string form of the context value that is looked up in the values.
+     *
+     * @param scope Evaluation scope.
+     * @return Lookup key, or null if the context value can never match.
+     */
+    String getLookupKey(EvaluationScope scope) {
+      Object contextValue = getContextValue(scope);
+      if (contextValue == null || contextValue instanceof Boolean) {
+        return null;
+      }
+      return String.valueOf(contextValue);
+    }
+
+    @Override
+    int getMatchCost() {
+      return 2;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      String lookupKey = getLookupKey(scope);
+      return lookupKey != null && values.contains(lookupKey);
+    }
+  }
+
+  private static final class PercentageSplit extends ConditionPredicate {
+    private final Hashing.HashPrefix segmentKeyPrefix;
+    private final float threshold;
+
+    PercentageSplit(String property, String segmentKey, float threshold,
+        HashedPercentageMemo percentageMemo) {
+      // Currently, the only supported condition with a blank property
+      // is percentage split.
+      // In this case, we use the identity key as context value.
+      // This is mainly to support legacy segments created before
+      // we introduced JSONPath support.
+      super(property, StringUtils.isEmpty(property)
+          ? PropertyAccessor.IDENTITY_KEY
+          : PropertyAccessor.compile(property));
+      this.segmentKeyPrefix = Hashing.getInstance().getHashPrefix(segmentKey, percentageMemo);
+      this.threshold = threshold;
+    }
+
+    @Override
+    int getMatchCost() {
+      return 5;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      Object contextValue = getContextValue(scope);
+      if (contextValue == null) {
+        return false;
+      }
+      return Hashing.getInstance().getHashedPercentageForObjectIds(
+          segmentKeyPrefix, contextValue.toString()) <= threshold;
+    }
+  }
+
+  private static final class IsSet extends ConditionPredicate {
+    private final boolean expected;
+
+    IsSet(String property, boolean expected) {
+      super(property);
+      this.expected = expected;
+    }
+
+    @Override
+    int getMatchCost() {
+      return 1;
+    }
+
+    @Override
+    boolean requiresValue() {
+      return expected;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      return (getContextValue(scope) != null) == expected;
+    }
+  }
+
+  private static final class Contains extends ConditionPredicate {
+    private final String substring;
+    private final boolean expected;
+
+    Contains(String property, String substring, boolean expected) {
+      super(property);
+      this.substring = substring;
+      this.expected = expected;
+    }
+
+    @Override
+    int getMatchCost() {
+      return 4;
+    }
+
+    @Override
+    boolean requiresValue() {
+      // A missing value is matched as the string "null".
+      return !expected || !"null".contains(substring);
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      Object contextValue = getContextValue(scope);
+      if (!expected && contextValue == null) {
+        return false;
+      }
+      return String.valueOf(contextValue).contains(substring) == expected;
+    }
+  }
+
+  private static final class Regex extends ConditionPredicate {
+    private final CompiledRegex pattern;
+
+    Regex(String property, CompiledRegex pattern) {
+      super(property);
+      this.pattern = pattern;
+    }
+
+    @Override
+    int getMatchCost() {
+      return 7;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      Object contextValue = getContextValue(scope);
+      if (contextValue == null) {
+        return false;
+      }
+      return pattern.find(contextValue.toString());
+    }
+  }
+
+  private static final class Modulo extends ConditionPredicate {
+    private final double divisor;
+    private final double remainder;
+
+    Modulo(String property, double divisor, double remainder) {
+      super(property);
+      this.divisor = divisor;
+      this.remainder = remainder;
+    }
+
+    @Override
+    int getMatchCost() {
+      return 3;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      Object contextValue = getContextValue(scope);
+      if (!(contextValue instanceof Number)) {
+        return false;
+      }
+      return (((Number) contextValue).doubleValue() % divisor) == remainder;
+    }
+  }
+
+  private static final class SemverComparison extends ConditionPredicate {
+    private final SegmentConditions operator;
+    private final ComparableVersion version;
+
+    SemverComparison(String property, SegmentConditions operator, ComparableVersion version) {
+      super(property);
+      this.operator = operator;
+      this.version = version;
+    }
+
+    @Override
+    int getMatchCost() {
+      return 6;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      Object contextValue = getContextValue(scope);
+      if (contextValue == null) {
+        return false;
+      }
+      ComparableVersion contextVersion = scope.getTypedValue(contextValue).getSemverValue();
+      if (contextVersion == null) {
+        return false;
+      }
+      return TypeCasting.compare(operator, contextVersion, version);
+    }
+  }
+
+  private static final class Comparison extends ConditionPredicate {
+    private final SegmentConditions operator;
+    private final TypedValue conditionValue;
+    private final Integer integerConditionValue;
+
+    Comparison(String property, SegmentConditions operator, Object conditionValue) {
+      super(property);
+      this.operator = operator;
+      this.conditionValue = TypedValue.of(conditionValue);
+      this.integerConditionValue = this.conditionValue.getIntegerValue();
+    }
+
+    @Override
+    Long getLowerBound() {
+      if (integerConditionValue == null || getRequiredTrait() == null) {
+        return null;
+      }
+      switch (operator) {
+        case GREATER_THAN:
+          return integerConditionValue + 1L;
+        case GREATER_THAN_INCLUSIVE:
+          return (long) integerConditionValue;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    Long getUpperBound() {
+      if (integerConditionValue == null || getRequiredTrait() == null) {
+        return null;
+      }
+      switch (operator) {
+        case LESS_THAN:
+          return integerConditionValue - 1L;
+        case LESS_THAN_INCLUSIVE:
+          return (long) integerConditionValue;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    Set<String> getAnchorValues() {
+      if (operator != SegmentConditions.EQUAL || getRequiredTrait() == null
+          || !(conditionValue.getValue() instanceof String)) {
+        return null;
+      }
+      // Values that cannot be cast to any other type are compared as strings.
+      if (conditionValue.getFloatValue() != null || conditionValue.getIntegerValue() != null
+          || conditionValue.isBoolean() || conditionValue.isSemver()) {
+        return null;
+      }
+      return Collections.singleton(conditionValue.getStringValue());
+    }
+
+    @Override
+    int getMatchCost() {
+      return 3;
+    }
+
+    @Override
+    boolean matches(EvaluationScope scope) {
+      Object contextValue = getContextValue(scope);
+      if (contextValue == null) {
+        return false;
+      }
+      try {
+        return TypeCasting.compare(operator, scope.getTypedValue(contextValue), conditionValue);
+      } catch (ClassCastException e) {
+        // A condition value that isn't a string can't be compared with a
+        // context value of another type. Rules order their conditions by
+        // cost, so this must not fail an evaluation document order would
+        // have finished without reaching the condition.
+        return false;
+      }
+    }
+  }
+}
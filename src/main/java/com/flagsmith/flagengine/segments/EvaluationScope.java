@@ -0,0 +1,289 @@
+package com.flagsmith.flagengine.segments;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.flagsmith.flagengine.EnvironmentContext;
+import com.flagsmith.flagengine.EvaluationContext;
+import com.flagsmith.flagengine.IdentityContext;
+import com.flagsmith.flagengine.utils.types.TypedValue;
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.DocumentContext;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * EvaluationScope
+ *
+ * <p>A view of an evaluation context for the duration of a single evaluation.
+ * Segment predicates read context values through it, so that anything derived
+ * from the context is built at most once per evaluation, however many
+ * conditions need it.
+ *
+ * <p>A scope can be reset for another evaluation, so that a thread evaluating
+ * many identities reuses the same scope. The identity is kept apart from the
+ * environment context, and the two are only combined into a single context
+ * when something reads the context as a whole.
+ */
+public final class EvaluationScope {
+  private static final byte[] NO_RULE_RESULTS = new byte[0];
+  private static final Object[] NO_TRAIT_VALUES = new Object[0];
+  private static ObjectMapper mapper = new ObjectMapper();
+  private static Configuration jsonPathConfiguration = Configuration
+      .defaultConfiguration()
+      .setOptions(Option.SUPPRESS_EXCEPTIONS);
+
+  private EvaluationContext environmentContext;
+  private IdentityContext identity;
+  private String identityKey;
+  private Map<String, Object> traits;
+  private TraitSymbols traitSymbols;
+  private Object[] traitValues = NO_TRAIT_VALUES;
+  private int traitValueCount;
+  private byte[] ruleResults = NO_RULE_RESULTS;
+  private final Map<Object, TypedValue> typedValues = new IdentityHashMap<>();
+  private EvaluationContext context;
+  private DocumentContext document;
+
+  /**
+   * Create a scope for evaluating a context.
+   *
+   * @param context Evaluation context.
+   */
+  public EvaluationScope(EvaluationContext context) {
+    this(context, 0);
+  }
+
+  /**
+   * Create a scope for evaluating a context against segments compiled together.
+   *
+   * @param context         Evaluation context.
+   * @param sharedRuleCount Number of rules shared between the segments, as given
+   *                        by {@link SegmentCompiler#getSharedRuleCount()}.
+   */
+  public EvaluationScope(EvaluationContext context, int sharedRuleCount) {
+    IdentityContext identity = context.getIdentity();
+    reset(context, identity, identity != null ? identity.getKey() : null, sharedRuleCount);
+    this.context = context;
+  }
+
+  /**
+   * Create an empty scope, to be {@link #reset} before each evaluation.
+   */
+  public EvaluationScope() {
+  }
+
+  /**
+   * Reset the scope for evaluating an identity against an environment context.
+   *
+   * @param environmentContext Evaluation context, whose identity is ignored.
+   * @param identity           Identity context, or null.
+   * @param identityKey        Key of the identity, which replaces the key of the
+   *                           identity context if different.
+   * @param sharedRuleCount    Number of rules shared between the segments, as given
+   *                           by {@link SegmentCompiler#getSharedRuleCount()}.
+   */
+  public void reset(EvaluationContext environmentContext, IdentityContext identity,
+      String identityKey, int sharedRuleCount) {
+    reset(environmentContext, identity, identityKey, sharedRuleCount, null);
+  }
+
+  /**
+   * Reset the scope for evaluating an identity against segments compiled
+   * together, projecting the traits of the identity over the trait keys their
+   * conditions read.
+   *
+   * @param environmentContext Evaluation context, whose identity is ignored.
+   * @param identity           Identity context, or null.
+   * @param identityKey        Key of the identity, which replaces the key of the
+   *                           identity context if different.
+   * @param sharedRuleCount    Number of rules shared between the segments, as given
+   *                           by {@link SegmentCompiler#getSharedRuleCount()}.
+   * @param traitSymbols       Trait keys of the segments, as given by
+   *                           {@link SegmentCompiler#getTraitSymbols()}, or null.
+   */
+  public void reset(EvaluationContext environmentContext, IdentityContext identity,
+      String identityKey, int sharedRuleCount, TraitSymbols traitSymbols) {
+    this.environmentContext = environmentContext;
+    this.identity = identity;
+    this.identityKey = identityKey;
+    this.traits = identity != null && identity.getTraits() != null
+        ? identity.getTraits().getAdditionalProperties()
+        : null;
+    if (ruleResults.length < sharedRuleCount) {
+      ruleResults = new byte[sharedRuleCount];
+    } else {
+      Arrays.fill(ruleResults, 0, sharedRuleCount, (byte) 0);
+    }
+    if (!typedValues.isEmpty()) {
+      typedValues.clear();
+    }
+    Arrays.fill(traitValues, 0, traitValueCount, null);
+    this.traitSymbols = traitSymbols;
+    this.traitValueCount = traitSymbols != null ? traitSymbols.size() : 0;
+    if (traitValues.length < traitValueCount) {
+      traitValues = new Object[traitValueCount];
+    }
+    if (traits != null && traitValueCount > 0) {
+      traitSymbols.project(traits, traitValues);
+    }
+    this.context = null;
+    this.document = null;
+  }
+
+  /**
+   * Get the evaluation context, with the identity of the evaluation.
+   *
+   * @return Evaluation context.
+   */
+  public EvaluationContext getContext() {
+    if (context == null) {
+      IdentityContext contextIdentity = identity;
+      if (identity != null && !Objects.equals(identity.getKey(), identityKey)) {
+        contextIdentity = new IdentityContext(identity).withKey(identityKey);
+      }
+      context = environmentContext.getIdentity() == contextIdentity
+          ? environmentContext
+          : new EvaluationContext(environmentContext).withIdentity(contextIdentity);
+    }
+    return context;
+  }
+
+  /**
+   * Get the identity of the evaluation.
+   *
+   * @return Identity context, or null.
+   */
+  IdentityContext getIdentity() {
+    return identity;
+  }
+
+  /**
+   * Get the key of the identity of the evaluation.
+   *
+   * @return Identity key, or null.
+   */
+  String getIdentityKey() {
+    return identityKey;
+  }
+
+  /**
+   * Get the environment of the evaluation.
+   *
+   * @return Environment context, or null.
+   */
+  EnvironmentContext getEnvironment() {
+    return environmentContext.getEnvironment();
+  }
+
+  /**
+   * Get a trait value of the identity.
+   *
+   * @param name Trait name.
+   * @return Trait value, or null if the trait is not set.
+   */
+  Object getTrait(String name) {
+    return traits == null ? null : traits.get(name);
+  }
+
+  /**
+   * Get a trait value of the identity by the ordinal of its key, if the traits
+   * were projected over the trait keys it was interned in.
+   *
+   * @param symbols Trait keys the ordinal belongs to, or null.
+   * @param ordinal Ordinal of the trait key.
+   * @param name    Trait name, looked up if the traits were not projected.
+   * @return Trait value, or null if the trait is not set.
+   */
+  Object getTrait(TraitSymbols symbols, int ordinal, String name) {
+    if (symbols != null && symbols == traitSymbols) {
+      return traitValues[ordinal];
+    }
+    return getTrait(name);
+  }
+
+  /**
+   * Get a trait value of the identity by the ordinal of its key in the trait
+   * keys given when the scope was reset.
+   *
+   * @param ordinal Ordinal of the trait key.
+   * @return Trait value, or null if the trait is not set.
+   */
+  public Object getProjectedTrait(int ordinal) {
+    return ordinal < traitValueCount ? traitValues[ordinal] : null;
+  }
+
+  /**
+   * Fill a mask with the traits the identity has a value for, over the trait
+   * keys given when the scope was reset.
+   *
+   * @param mask Mask to fill, at least {@link TraitSymbols#getWordCount()} words long.
+   */
+  public void fillTraitMask(long[] mask) {
+    int wordCount = (traitValueCount + 63) >>> 6;
+    Arrays.fill(mask, 0, wordCount, 0L);
+    for (int ordinal = 0; ordinal < traitValueCount; ordinal++) {
+      if (traitValues[ordinal] != null) {
+        mask[ordinal >>> 6] |= 1L << ordinal;
+      }
+    }
+  }
+
+  /**
+   * Get a context value classified by type, classifying it on first use. Values
+   * are told apart by identity, so a trait value compared by many conditions is
+   * classified once.
+   *
+   * @param value Context value.
+   * @return Typed value.
+   */
+  TypedValue getTypedValue(Object value) {
+    TypedValue typedValue = typedValues.get(value);
+    if (typedValue == null) {
+      typedValue = TypedValue.of(value);
+      typedValues.put(value, typedValue);
+    }
+    return typedValue;
+  }
+
+  /**
+   * Get the result of a shared rule, if it was already evaluated in this scope.
+   *
+   * @param slot Memo slot of the rule.
+   * @return Rule result, or null if not known yet.
+   */
+  Boolean getRuleResult(int slot) {
+    if (slot >= ruleResults.length || ruleResults[slot] == 0) {
+      return null;
+    }
+    return ruleResults[slot] > 0;
+  }
+
+  /**
+   * Record the result of a shared rule.
+   *
+   * @param slot   Memo slot of the rule.
+   * @param result Rule result.
+   */
+  void setRuleResult(int slot, boolean result) {
+    if (slot < ruleResults.length) {
+      ruleResults[slot] = (byte) (result ? 1 : -1);
+    }
+  }
+
+  /**
+   * Get the whole context as a JSON document, converting it on first use.
+   *
+   * @return JSON document.
+   */
+  DocumentContext getDocument() {
+    if (document == null) {
+      document = JsonPath
+          .using(jsonPathConfiguration)
+          .parse(mapper.convertValue(getContext(), Map.class));
+    }
+    return document;
+  }
+}
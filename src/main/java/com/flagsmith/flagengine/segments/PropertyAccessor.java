@@ -0,0 +1,236 @@
+package com.flagsmith.flagengine.segments;
+
+import com.flagsmith.flagengine.EnvironmentContext;
+import com.flagsmith.flagengine.IdentityContext;
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.JsonPath;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * PropertyAccessor
+ *
+ * <p>A condition property resolved to the way its value is read from a context.
+ * A trait with the same name as the property always takes precedence. Otherwise,
+ * well-known JSONPath properties read context fields directly, and any other
+ * JSONPath property is read from the context converted to a JSON document.
+ */
+abstract class PropertyAccessor {
+  private static final Map<String, Function<EvaluationScope, Object>> FIELDS = Map.of(
+      SegmentPredicate.IDENTIFIER_PROPERTY, (scope) -> {
+        IdentityContext identity = scope.getIdentity();
+        return identity == null ? null : identity.getIdentifier();
+      },
+      "$.identity.key", EvaluationScope::getIdentityKey,
+      "$.environment.name", (scope) -> {
+        EnvironmentContext environment = scope.getEnvironment();
+        return environment == null ? null : environment.getName();
+      },
+      "$.environment.key", (scope) -> {
+        EnvironmentContext environment = scope.getEnvironment();
+        return environment == null ? null : environment.getKey();
+      });
+
+  /**
+   * Reads the identity key, ignoring traits.
+   */
+  static final PropertyAccessor IDENTITY_KEY = new PropertyAccessor() {
+    @Override
+    Object getValue(EvaluationScope scope) {
+      return scope.getIdentityKey();
+    }
+  };
+
+  /**
+   * Get the property value for an evaluation.
+   *
+   * @param scope Evaluation scope.
+   * @return Property value, or null if not set.
+   */
+  abstract Object getValue(EvaluationScope scope);
+
+  /**
+   * Get the relative cost of reading the property value.
+   *
+   * @return Cost, where 0 is a direct field or map read.
+   */
+  int getCost() {
+    return 0;
+  }
+
+  /**
+   * Get the name of the trait the property value is read from, if the value can
+   * only come from that trait.
+   *
+   * @return Trait name, or null if the value can come from elsewhere.
+   */
+  String getTraitName() {
+    return null;
+  }
+
+  /**
+   * Intern the trait key the property value is read from first, so that the
+   * value is read by ordinal from scopes projecting traits over the same keys.
+   *
+   * @param symbols Trait keys of the segments being compiled.
+   */
+  void internTrait(TraitSymbols symbols) {
+  }
+
+  /**
+   * Check whether the property value is only ever read from a trait, so that
+   * it is the same for identities with the same value for that trait.
+   *
+   * @return true if the value is read from a trait only.
+   */
+  boolean readsTraitOnly() {
+    return false;
+  }
+
+  /**
+   * Add the keys of the traits the property value may be read from to a set.
+   *
+   * @param traitKeys Set to add trait keys to.
+   * @return false if the value may be read from any trait.
+   */
+  boolean addTraitKeys(Set<String> traitKeys) {
+    return true;
+  }
+
+  /**
+   * Check whether the property value may be read from parts of the context
+   * other than the identity and the environment, such as features or segments.
+   *
+   * @return true if the value may depend on the rest of the context.
+   */
+  boolean readsDocument() {
+    return false;
+  }
+
+  /**
+   * Compile a condition property.
+   *
+   * @param property Property name.
+   * @return Property accessor.
+   */
+  static PropertyAccessor compile(String property) {
+    if (property == null || !property.startsWith("$.")) {
+      return new Direct(property, null);
+    }
+
+    Function<EvaluationScope, Object> field = FIELDS.get(property);
+    if (field != null) {
+      return new Direct(property, field);
+    }
+
+    try {
+      return new Document(property, JsonPath.compile(property));
+    } catch (InvalidPathException e) {
+      return new Direct(property, null);
+    }
+  }
+
+  /**
+   * Reads a trait with the same name as the property before anything else.
+   */
+  private abstract static class Named extends PropertyAccessor {
+    final String name;
+    // Assigned by the segment compiler once the condition is compiled.
+    private TraitSymbols symbols;
+    private int ordinal;
+
+    Named(String name) {
+      this.name = name;
+    }
+
+    @Override
+    void internTrait(TraitSymbols symbols) {
+      if (name != null) {
+        this.ordinal = symbols.intern(name);
+        this.symbols = symbols;
+      }
+    }
+
+    Object getTrait(EvaluationScope scope) {
+      return scope.getTrait(symbols, ordinal, name);
+    }
+
+    @Override
+    boolean addTraitKeys(Set<String> traitKeys) {
+      if (name != null) {
+        traitKeys.add(name);
+      }
+      return true;
+    }
+  }
+
+  private static class Direct extends Named {
+    private final Function<EvaluationScope, Object> field;
+
+    Direct(String name, Function<EvaluationScope, Object> field) {
+      super(name);
+      this.field = field;
+    }
+
+    @Override
+    String getTraitName() {
+      return field == null ? name : null;
+    }
+
+    @Override
+    boolean readsTraitOnly() {
+      return field == null;
+    }
+
+    @Override
+    Object getValue(EvaluationScope scope) {
+      Object result = getTrait(scope);
+      if (result != null || field == null) {
+        return result;
+      }
+      return field.apply(scope);
+    }
+  }
+
+  private static final class Document extends Named {
+    private final JsonPath path;
+
+    Document(String name, JsonPath path) {
+      super(name);
+      this.path = path;
+    }
+
+    @Override
+    boolean readsDocument() {
+      return !name.startsWith("$.identity.");
+    }
+
+    @Override
+    boolean addTraitKeys(Set<String> traitKeys) {
+      super.addTraitKeys(traitKeys);
+      // The path may select traits from the whole document.
+      return false;
+    }
+
+    @Override
+    int getCost() {
+      // The first read of an evaluation converts the whole context.
+      return 10;
+    }
+
+    @Override
+    Object getValue(EvaluationScope scope) {
+      Object result = getTrait(scope);
+      if (result != null) {
+        return result;
+      }
+      result = scope.getDocument().read(path);
+      if (result instanceof List || result instanceof Map) {
+        return null;
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,291 @@
+package com.flagsmith.flagengine.segments;
+
+import com.flagsmith.flagengine.SegmentCondition;
+import com.flagsmith.flagengine.SegmentRule;
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * RulePredicate
+ *
+ * <p>A compiled segment rule: its conditions combined by the rule type, and
+ * nested rules that must all match.
+ */
+final class RulePredicate {
+  private final SegmentRule.Type type;
+  private final ConditionPredicate[] conditions;
+  private final RulePredicate[] rules;
+
+  // Slot of the rule's result in evaluation scopes, for rules shared between
+  // segments; assigned by the segment compiler when the rule is first shared.
+  int memoSlot = -1;
+
+  private RulePredicate(
+      SegmentRule.Type type, ConditionPredicate[] conditions, RulePredicate[] rules) {
+    this.type = type;
+    this.conditions = conditions;
+    this.rules = rules;
+  }
+
+  /**
+   * Compile a segment rule.
+   *
+   * @param rule           Segment rule.
+   * @param segmentKey     Key of the segment owning the rule.
+   * @param regexEngine    Engine compiling the patterns of REGEX conditions.
+   * @param percentageMemo Memo of the percentages of PERCENTAGE_SPLIT
+   *                       conditions, or null.
+   * @return Rule predicate.
+   */
+  static RulePredicate compile(SegmentRule rule, String segmentKey, RegexEngine regexEngine,
+      HashedPercentageMemo percentageMemo) {
+    List<SegmentRule> subRules = rule.getRules();
+    RulePredicate[] rules = new RulePredicate[subRules == null ? 0 : subRules.size()];
+    for (int i = 0; i < rules.length; i++) {
+      rules[i] = compile(subRules.get(i), segmentKey, regexEngine, percentageMemo);
+    }
+    return compile(rule, segmentKey, rules, regexEngine, percentageMemo);
+  }
+
+  /**
+   * Compile a segment rule whose nested rules are already compiled.
+   *
+   * @param rule           Segment rule.
+   * @param segmentKey     Key of the segment owning the rule.
+   * @param rules          Compiled nested rules.
+   * @param regexEngine    Engine compiling the patterns of REGEX conditions.
+   * @param percentageMemo Memo of the percentages of PERCENTAGE_SPLIT
+   *                       conditions, or null.
+   * @return Rule predicate.
+   */
+  static RulePredicate compile(SegmentRule rule, String segmentKey, RulePredicate[] rules,
+      RegexEngine regexEngine, HashedPercentageMemo percentageMemo) {
+    List<SegmentCondition> segmentConditions = rule.getConditions();
+    ConditionPredicate[] conditions = new ConditionPredicate[
+        segmentConditions == null ? 0 : segmentConditions.size()];
+    for (int i = 0; i < conditions.length; i++) {
+      conditions[i] = ConditionPredicate.compile(
+          segmentConditions.get(i), segmentKey, regexEngine, percentageMemo);
+    }
+    // Cheap conditions first, so that ALL, ANY and NONE rules short-circuit
+    // before running expensive ones. The sort is stable, so conditions of equal
+    // cost keep their document order.
+    Arrays.sort(conditions, ConditionPredicate.COST_ORDER);
+
+    return new RulePredicate(rule.getType(), conditions, rules);
+  }
+
+  SegmentRule.Type getType() {
+    return type;
+  }
+
+  ConditionPredicate[] getConditions() {
+    return conditions;
+  }
+
+  RulePredicate[] getRules() {
+    return rules;
+  }
+
+  /**
+   * Get the traits a context must have for the rule to match.
+   *
+   * @return Trait names.
+   */
+  Set<String> getRequiredTraits() {
+    Set<String> requiredTraits = new HashSet<>();
+    if (conditions.length > 0 && type == SegmentRule.Type.ALL) {
+      for (ConditionPredicate condition : conditions) {
+        if (condition.getRequiredTrait() != null) {
+          requiredTraits.add(condition.getRequiredTrait());
+        }
+      }
+    } else if (conditions.length > 0 && type == SegmentRule.Type.ANY) {
+      // Each condition requires at most one trait, so the trait is only required
+      // if every condition requires it.
+      String requiredTrait = conditions[0].getRequiredTrait();
+      for (ConditionPredicate condition : conditions) {
+        if (requiredTrait == null || !requiredTrait.equals(condition.getRequiredTrait())) {
+          requiredTrait = null;
+          break;
+        }
+      }
+      if (requiredTrait != null) {
+        requiredTraits.add(requiredTrait);
+      }
+    }
+    for (RulePredicate rule : rules) {
+      requiredTraits.addAll(rule.getRequiredTraits());
+    }
+    return requiredTraits;
+  }
+
+  /**
+   * Check whether every condition of the rule only reads a trait.
+   *
+   * @return true if the rule reads traits only.
+   */
+  boolean readsTraitsOnly() {
+    for (ConditionPredicate condition : conditions) {
+      if (!condition.readsTraitOnly()) {
+        return false;
+      }
+    }
+    for (RulePredicate rule : rules) {
+      if (!rule.readsTraitsOnly()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Add the keys of the traits the conditions of the rule may read to a set.
+   *
+   * @param traitKeys Set to add trait keys to.
+   * @return false if the rule may read any trait.
+   */
+  boolean addTraitKeys(Set<String> traitKeys) {
+    boolean readsKnownTraits = true;
+    for (ConditionPredicate condition : conditions) {
+      readsKnownTraits &= condition.addTraitKeys(traitKeys);
+    }
+    for (RulePredicate rule : rules) {
+      readsKnownTraits &= rule.addTraitKeys(traitKeys);
+    }
+    return readsKnownTraits;
+  }
+
+  /**
+   * Check whether any condition of the rule may read parts of the context
+   * other than the identity and the environment.
+   *
+   * @return true if the rule may depend on the rest of the context.
+   */
+  boolean readsDocument() {
+    for (ConditionPredicate condition : conditions) {
+      if (condition.readsDocument()) {
+        return true;
+      }
+    }
+    for (RulePredicate rule : rules) {
+      if (rule.readsDocument()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find the condition with the fewest anchor values among the conditions the
+   * rule cannot match without.
+   *
+   * @param anchor Best anchor condition found so far, or null.
+   * @return Best anchor condition, or null if there is none.
+   */
+  ConditionPredicate findAnchor(ConditionPredicate anchor) {
+    if (type == SegmentRule.Type.ALL) {
+      for (ConditionPredicate condition : conditions) {
+        Set<String> anchorValues = condition.getAnchorValues();
+        if (anchorValues != null
+            && (anchor == null || anchorValues.size() < anchor.getAnchorValues().size())) {
+          anchor = condition;
+        }
+      }
+    }
+    for (RulePredicate rule : rules) {
+      anchor = rule.findAnchor(anchor);
+    }
+    return anchor;
+  }
+
+  /**
+   * Find the first condition with an integer bound among the conditions the
+   * rule cannot match without.
+   *
+   * @param threshold Threshold condition found so far, or null.
+   * @return Threshold condition, or null if there is none.
+   */
+  ConditionPredicate findThreshold(ConditionPredicate threshold) {
+    if (threshold != null) {
+      return threshold;
+    }
+    if (type == SegmentRule.Type.ALL) {
+      for (ConditionPredicate condition : conditions) {
+        if (condition.getLowerBound() != null || condition.getUpperBound() != null) {
+          return condition;
+        }
+      }
+    }
+    for (RulePredicate rule : rules) {
+      threshold = rule.findThreshold(threshold);
+    }
+    return threshold;
+  }
+
+  /**
+   * Check if context matches the rule.
+   *
+   * @param scope Evaluation scope.
+   * @return true if context matches the rule.
+   */
+  boolean matches(EvaluationScope scope) {
+    if (memoSlot < 0) {
+      return evaluate(scope);
+    }
+    Boolean result = scope.getRuleResult(memoSlot);
+    if (result == null) {
+      result = evaluate(scope);
+      scope.setRuleResult(memoSlot, result);
+    }
+    return result;
+  }
+
+  private boolean evaluate(EvaluationScope scope) {
+    if (conditions.length > 0 && !conditionsMatch(scope)) {
+      return false;
+    }
+    for (RulePredicate rule : rules) {
+      if (!rule.matches(scope)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean conditionsMatch(EvaluationScope scope) {
+    if (type == null) {
+      return false;
+    }
+
+    switch (type) {
+      case ALL:
+        for (ConditionPredicate condition : conditions) {
+          if (!condition.matches(scope)) {
+            return false;
+          }
+        }
+        return true;
+      case ANY:
+        for (ConditionPredicate condition : conditions) {
+          if (condition.matches(scope)) {
+            return true;
+          }
+        }
+        return false;
+      case NONE:
+        for (ConditionPredicate condition : conditions) {
+          if (condition.matches(scope)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.flagsmith.flagengine.segments;
+
+import com.flagsmith.flagengine.SegmentCondition;
+import com.flagsmith.flagengine.SegmentContext;
+import com.flagsmith.flagengine.SegmentRule;
+import com.flagsmith.flagengine.segments.constants.SegmentConditions;
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import com.flagsmith.flagengine.utils.regex.JavaRegexEngine;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SegmentCompiler
+ *
+ * <p>Compiles the segments of an environment together, so that structurally
+ * identical rules are compiled once and shared between segments. The result of
+ * a shared rule is memoised in the evaluation scope, so it is evaluated at most
+ * once per evaluation however many segments it appears in.
+ */
+public final class SegmentCompiler {
+  private final Map<List<Object>, RulePredicate> rules = new HashMap<>();
+  private final RegexEngine regexEngine;
+  private final HashedPercentageMemo percentageMemo;
+  private final TraitSymbols traitSymbols = new TraitSymbols();
+  private int sharedRuleCount;
+
+  /**
+   * Create a compiler matching REGEX conditions with {@link java.util.regex}.
+   */
+  public SegmentCompiler() {
+    this(new JavaRegexEngine());
+  }
+
+  /**
+   * Create a compiler.
+   *
+   * @param regexEngine Engine compiling the patterns of REGEX conditions.
+   */
+  public SegmentCompiler(RegexEngine regexEngine) {
+    this(regexEngine, null);
+  }
+
+  /**
+   * Create a compiler memoising the percentages of PERCENTAGE_SPLIT conditions.
+   *
+   * @param regexEngine    Engine compiling the patterns of REGEX conditions.
+   * @param percentageMemo Memo of hashed percentages, or null to hash every time.
+   */
+  public SegmentCompiler(RegexEngine regexEngine, HashedPercentageMemo percentageMemo) {
+    this.regexEngine = regexEngine;
+    this.percentageMemo = percentageMemo;
+  }
+
+  /**
+   * Compile a segment into a predicate, sharing rules with segments compiled
+   * before it.
+   *
+   * @param segment Segment context.
+   * @return Segment predicate.
+   */
+  public SegmentPredicate compile(SegmentContext segment) {
+    List<SegmentRule> segmentRules = segment.getRules();
+    if (segmentRules == null) {
+      return new SegmentPredicate(new RulePredicate[0]);
+    }
+
+    RulePredicate[] rules = new RulePredicate[segmentRules.size()];
+    for (int i = 0; i < rules.length; i++) {
+      rules[i] = compileRule(segmentRules.get(i), segment.getKey());
+    }
+    return new SegmentPredicate(rules);
+  }
+
+  /**
+   * Get the number of rules shared between the segments compiled so far. Scopes
+   * evaluating the segments should be created with room for this many results.
+   *
+   * @return Number of shared rules.
+   */
+  public int getSharedRuleCount() {
+    return sharedRuleCount;
+  }
+
+  /**
+   * Get the trait keys read by the conditions of the segments compiled so far.
+   * Scopes evaluating the segments should project identity traits over them.
+   *
+   * @return Trait keys.
+   */
+  public TraitSymbols getTraitSymbols() {
+    return traitSymbols;
+  }
+
+  /**
+   * Get the memo of hashed percentages of the segments compiled.
+   *
+   * @return Memo of hashed percentages, or null if there is none.
+   */
+  public HashedPercentageMemo getPercentageMemo() {
+    return percentageMemo;
+  }
+
+  private RulePredicate compileRule(SegmentRule rule, String segmentKey) {
+    List<SegmentRule> subRules = rule.getRules();
+    RulePredicate[] compiledRules = new RulePredicate[subRules == null ? 0 : subRules.size()];
+    for (int i = 0; i < compiledRules.length; i++) {
+      compiledRules[i] = compileRule(subRules.get(i), segmentKey);
+    }
+
+    // Nested rules are shared already, so they are compared by identity. The
+    // segment key is only part of the structure when a condition hashes it.
+    List<Object> structure = Arrays.asList(
+        rule.getType(),
+        rule.getConditions() == null ? null : new ArrayList<>(rule.getConditions()),
+        hasPercentageSplit(rule) ? segmentKey : null,
+        Arrays.asList(compiledRules));
+    RulePredicate shared = rules.get(structure);
+    if (shared != null) {
+      if (shared.memoSlot < 0) {
+        shared.memoSlot = sharedRuleCount++;
+      }
+      return shared;
+    }
+
+    RulePredicate compiledRule =
+        RulePredicate.compile(rule, segmentKey, compiledRules, regexEngine, percentageMemo);
+    for (ConditionPredicate condition : compiledRule.getConditions()) {
+      condition.internTrait(traitSymbols);
+    }
+    rules.put(structure, compiledRule);
+    return compiledRule;
+  }
+
+  private static boolean hasPercentageSplit(SegmentRule rule) {
+    if (rule.getConditions() != null) {
+      for (SegmentCondition condition : rule.getConditions()) {
+        if (condition.getOperator() == SegmentConditions.PERCENTAGE_SPLIT) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,232 @@
+package com.flagsmith.flagengine.segments;
+
+import com.flagsmith.flagengine.EvaluationContext;
+import com.flagsmith.flagengine.FeatureContext;
+import com.flagsmith.flagengine.SegmentCondition;
+import com.flagsmith.flagengine.SegmentContext;
+import com.flagsmith.flagengine.SegmentRule;
+import com.flagsmith.flagengine.Segments;
+import com.flagsmith.flagengine.utils.regex.JavaRegexEngine;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * SegmentOptimiser
+ *
+ * <p>Rewrites the rules of segments into equivalent, smaller rules: rules that
+ * always match are dropped, conditions that can never match are folded away,
+ * duplicated conditions and rules are removed, ANY rules with a single
+ * condition become ALL rules, and ALL rules are merged into the rules they are
+ * nested in. A segment matches a context after optimisation exactly when it
+ * matched it before, as decided by {@link SegmentEvaluator}.
+ *
+ * <p>Segments that can never match, and segments that override no feature of
+ * the environment and whose membership is not reported, are removed from
+ * evaluation contexts altogether.
+ */
+public final class SegmentOptimiser {
+  private static final RegexEngine REGEX_ENGINE = new JavaRegexEngine();
+
+  // Rules that match every context and rules that match none.
+  private static final SegmentRule ALWAYS = new SegmentRule();
+  private static final SegmentRule NEVER = new SegmentRule();
+
+  private SegmentOptimiser() {
+  }
+
+  /**
+   * Optimise the segments of an evaluation context.
+   *
+   * <p>The context is returned as is if any condition reads parts of the
+   * context other than the identity and the environment through JSONPath, as
+   * such conditions may read the segments themselves.
+   *
+   * @param context  Evaluation context.
+   * @param isListed Tells whether membership of a segment is reported, so that
+   *                 the segment is kept even if it overrides no feature.
+   * @return Evaluation context with optimised segments.
+   */
+  public static EvaluationContext optimise(
+      EvaluationContext context, Predicate<SegmentContext> isListed) {
+    Segments segments = context.getSegments();
+    if (segments == null || readsDocument(segments)) {
+      return context;
+    }
+
+    Set<String> featureNames = new HashSet<>();
+    if (context.getFeatures() != null) {
+      for (FeatureContext feature : context.getFeatures().getAdditionalProperties().values()) {
+        featureNames.add(feature.getName());
+      }
+    }
+    Segments optimisedSegments = new Segments();
+    for (Map.Entry<String, SegmentContext> entry
+        : segments.getAdditionalProperties().entrySet()) {
+      SegmentContext segment = optimise(entry.getValue());
+      if (segment != null && (overridesAny(segment, featureNames) || isListed.test(segment))) {
+        optimisedSegments.withAdditionalProperty(entry.getKey(), segment);
+      }
+    }
+    return new EvaluationContext(context).withSegments(optimisedSegments);
+  }
+
+  /**
+   * Optimise the rules of a segment.
+   *
+   * @param segment Segment context.
+   * @return Equivalent segment context, or null if the segment never matches.
+   */
+  public static SegmentContext optimise(SegmentContext segment) {
+    List<SegmentRule> rules = segment.getRules();
+    if (rules == null || rules.isEmpty()) {
+      return null;
+    }
+    if (!isWellFormed(rules)) {
+      // Left for the evaluation to fail on, as it would have.
+      return segment;
+    }
+
+    // The rules of a segment must all match, as the nested rules of a rule
+    // without conditions.
+    SegmentRule rule = optimise(
+        new SegmentRule(SegmentRule.Type.ALL, Collections.emptyList(), rules), segment.getKey());
+    if (rule == NEVER) {
+      return null;
+    }
+    List<SegmentRule> optimisedRules;
+    if (rule == ALWAYS) {
+      optimisedRules = Collections.singletonList(new SegmentRule()
+          .withType(SegmentRule.Type.ALL));
+    } else if (rule.getConditions().isEmpty()) {
+      optimisedRules = rule.getRules();
+    } else {
+      optimisedRules = Collections.singletonList(rule);
+    }
+    return new SegmentContext(segment).withRules(optimisedRules);
+  }
+
+  /*
+   * Optimise a rule, whose nested rules are optimised first. Rules without
+   * conditions are given the ALL type, and ALL rules nested in rules with no
+   * conditions or in ALL rules have their conditions and nested rules merged
+   * into their parent.
+   */
+  private static SegmentRule optimise(SegmentRule rule, String segmentKey) {
+    SegmentRule.Type type = rule.getType();
+    Set<SegmentCondition> conditions = new LinkedHashSet<>();
+    List<SegmentCondition> ruleConditions = rule.getConditions();
+    if (ruleConditions != null && !ruleConditions.isEmpty()) {
+      if (type == null) {
+        return NEVER;
+      }
+      for (SegmentCondition condition : ruleConditions) {
+        if (!ConditionPredicate.compile(condition, segmentKey, REGEX_ENGINE, null)
+            .neverMatches()) {
+          conditions.add(condition);
+        } else if (type == SegmentRule.Type.ALL) {
+          return NEVER;
+        }
+      }
+      // ANY rules need one condition to match, NONE rules match without any.
+      if (conditions.isEmpty() && type == SegmentRule.Type.ANY) {
+        return NEVER;
+      }
+      if (conditions.size() == 1 && type == SegmentRule.Type.ANY) {
+        type = SegmentRule.Type.ALL;
+      }
+    }
+    if (conditions.isEmpty()) {
+      type = SegmentRule.Type.ALL;
+    }
+
+    Set<SegmentRule> rules = new LinkedHashSet<>();
+    if (rule.getRules() != null) {
+      for (SegmentRule nestedRule : rule.getRules()) {
+        SegmentRule optimisedRule = optimise(nestedRule, segmentKey);
+        if (optimisedRule == NEVER) {
+          return NEVER;
+        }
+        if (optimisedRule == ALWAYS) {
+          continue;
+        }
+        if (optimisedRule.getConditions().isEmpty()) {
+          rules.addAll(optimisedRule.getRules());
+        } else if (type == SegmentRule.Type.ALL
+            && optimisedRule.getType() == SegmentRule.Type.ALL) {
+          conditions.addAll(optimisedRule.getConditions());
+          rules.addAll(optimisedRule.getRules());
+        } else {
+          rules.add(optimisedRule);
+        }
+      }
+    }
+
+    if (conditions.isEmpty() && rules.isEmpty()) {
+      return ALWAYS;
+    }
+    return new SegmentRule(type, new ArrayList<>(conditions), new ArrayList<>(rules));
+  }
+
+  private static boolean isWellFormed(List<SegmentRule> rules) {
+    for (SegmentRule rule : rules) {
+      if (rule == null || (rule.getRules() != null && !isWellFormed(rule.getRules()))) {
+        return false;
+      }
+      if (rule.getConditions() != null) {
+        for (SegmentCondition condition : rule.getConditions()) {
+          if (condition == null) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean readsDocument(Segments segments) {
+    for (SegmentContext segment : segments.getAdditionalProperties().values()) {
+      if (segment.getRules() != null && readsDocument(segment.getRules())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean readsDocument(List<SegmentRule> rules) {
+    for (SegmentRule rule : rules) {
+      if (rule == null) {
+        continue;
+      }
+      if (rule.getConditions() != null) {
+        for (SegmentCondition condition : rule.getConditions()) {
+          if (condition != null
+              && PropertyAccessor.compile(condition.getProperty()).readsDocument()) {
+            return true;
+          }
+        }
+      }
+      if (rule.getRules() != null && readsDocument(rule.getRules())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean overridesAny(SegmentContext segment, Set<String> featureNames) {
+    if (segment.getOverrides() != null) {
+      for (FeatureContext override : segment.getOverrides()) {
+        if (featureNames.contains(override.getName())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,236 @@
+package com.flagsmith.flagengine.segments;
+
+import com.flagsmith.flagengine.EvaluationContext;
+import com.flagsmith.flagengine.SegmentContext;
+import com.flagsmith.flagengine.SegmentRule;
+import com.flagsmith.flagengine.utils.regex.JavaRegexEngine;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SegmentPredicate
+ *
+ * <p>A segment's rules compiled into a tree of predicates. Condition values are
+ * parsed once at compile time, so matching a context only reads context values.
+ */
+public final class SegmentPredicate {
+  public static final String IDENTIFIER_PROPERTY = "$.identity.identifier";
+
+  private static final ConditionPredicate.In IDENTIFIER_LOOKUP = new ConditionPredicate.In(
+      IDENTIFIER_PROPERTY, Collections.emptySet());
+  private static final RegexEngine REGEX_ENGINE = new JavaRegexEngine();
+
+  private final RulePredicate[] rules;
+  private final ConditionPredicate anchor;
+  private final ConditionPredicate threshold;
+
+  SegmentPredicate(RulePredicate[] rules) {
+    this.rules = rules;
+
+    ConditionPredicate anchor = null;
+    ConditionPredicate threshold = null;
+    for (RulePredicate rule : rules) {
+      anchor = rule.findAnchor(anchor);
+      threshold = rule.findThreshold(threshold);
+    }
+    this.anchor = anchor;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Get the trait of the segment's anchor condition: a condition the segment
+   * cannot match without, which only matches a known set of trait values.
+   *
+   * @return Trait name, or null if the segment has no anchor condition.
+   */
+  public String getAnchorTrait() {
+    return anchor != null ? anchor.getRequiredTrait() : null;
+  }
+
+  /**
+   * Get the trait values the segment's anchor condition can match. The segment
+   * can only match identities whose anchor trait value, as a string, is one of
+   * them.
+   *
+   * @return Set of trait values, or null if the segment has no anchor condition.
+   */
+  public Set<String> getAnchorValues() {
+    return anchor != null ? anchor.getAnchorValues() : null;
+  }
+
+  /**
+   * Get the identifiers this segment is restricted to, if the segment consists
+   * of nothing but a single {@code $.identity.identifier IN [...]} condition, as
+   * identity override segments do.
+   *
+   * @return Set of identifiers, or null if the segment has any other shape.
+   */
+  public Set<String> getIdentifiers() {
+    if (rules.length != 1 || rules[0].getRules().length != 0
+        || rules[0].getConditions().length != 1
+        || rules[0].getType() == null || rules[0].getType() == SegmentRule.Type.NONE) {
+      return null;
+    }
+    ConditionPredicate condition = rules[0].getConditions()[0];
+    if (!(condition instanceof ConditionPredicate.In)
+        || !IDENTIFIER_PROPERTY.equals(condition.property)) {
+      return null;
+    }
+    return ((ConditionPredicate.In) condition).getValues();
+  }
+
+  /**
+   * Get the trait of the segment's threshold condition: a condition the
+   * segment cannot match without, which bounds integer trait values.
+   *
+   * @return Trait name, or null if the segment has no threshold condition.
+   */
+  public String getThresholdTrait() {
+    return threshold != null ? threshold.getRequiredTrait() : null;
+  }
+
+  /**
+   * Get the lowest integer value of the threshold trait the segment can match.
+   *
+   * @return Lower bound, or null if the threshold condition has none.
+   */
+  public Long getThresholdLowerBound() {
+    return threshold != null ? threshold.getLowerBound() : null;
+  }
+
+  /**
+   * Get the highest integer value of the threshold trait the segment can match.
+   *
+   * @return Upper bound, or null if the threshold condition has none.
+   */
+  public Long getThresholdUpperBound() {
+    return threshold != null ? threshold.getUpperBound() : null;
+  }
+
+  /**
+   * Get the traits an identity must have for the segment to match. A trait
+   * counts as present when it has a non-null value.
+   *
+   * @return Trait names.
+   */
+  public Set<String> getRequiredTraits() {
+    Set<String> requiredTraits = new HashSet<>();
+    for (RulePredicate rule : rules) {
+      requiredTraits.addAll(rule.getRequiredTraits());
+    }
+    return requiredTraits;
+  }
+
+  /**
+   * Get the traits whose values the segment may read. A segment whose traits
+   * all keep their values matches the same identities.
+   *
+   * @return Trait names, or null if the segment may read any trait through
+   *     JSONPath conditions.
+   */
+  public Set<String> getReadTraits() {
+    Set<String> readTraits = new HashSet<>();
+    for (RulePredicate rule : rules) {
+      if (!rule.addTraitKeys(readTraits)) {
+        return null;
+      }
+    }
+    return readTraits;
+  }
+
+  /**
+   * Check whether the conditions of the segment only read traits, and not the
+   * identifier, the identity key or the context document. Such a segment
+   * matches identities with the same values for the traits of
+   * {@link #getReadTraits()} alike.
+   *
+   * @return true if the segment reads traits only.
+   */
+  public boolean readsTraitsOnly() {
+    for (RulePredicate rule : rules) {
+      if (!rule.readsTraitsOnly()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether the segment may read parts of the context other than the
+   * identity and the environment, such as features or other segments, through
+   * JSONPath conditions.
+   *
+   * @return true if the segment may depend on the rest of the context.
+   */
+  public boolean readsDocument() {
+    for (RulePredicate rule : rules) {
+      if (rule.readsDocument()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the key to look up in {@link #getIdentifiers()} sets for a context. A
+   * segment with identifiers matches the context if and only if its set
+   * contains this key.
+   *
+   * @param scope Evaluation scope.
+   * @return Lookup key, or null if no identifier set can match the context.
+   */
+  public static String getIdentifierLookupKey(EvaluationScope scope) {
+    return IDENTIFIER_LOOKUP.getLookupKey(scope);
+  }
+
+  /**
+   * Compile a segment into a predicate.
+   *
+   * @param segment Segment context.
+   * @return Segment predicate.
+   */
+  public static SegmentPredicate compile(SegmentContext segment) {
+    List<SegmentRule> segmentRules = segment.getRules();
+    if (segmentRules == null) {
+      return new SegmentPredicate(new RulePredicate[0]);
+    }
+
+    RulePredicate[] rules = new RulePredicate[segmentRules.size()];
+    for (int i = 0; i < rules.length; i++) {
+      rules[i] = RulePredicate.compile(
+          segmentRules.get(i), segment.getKey(), REGEX_ENGINE, null);
+    }
+    return new SegmentPredicate(rules);
+  }
+
+  /**
+   * Check if context matches the segment.
+   *
+   * @param context Evaluation context.
+   * @return true if context is in segment.
+   */
+  public boolean matches(EvaluationContext context) {
+    return matches(new EvaluationScope(context));
+  }
+
+  /**
+   * Check if the context of an evaluation scope matches the segment.
+   *
+   * @param scope Evaluation scope.
+   * @return true if context is in segment.
+   */
+  public boolean matches(EvaluationScope scope) {
+    if (rules.length == 0) {
+      return false;
+    }
+    for (RulePredicate rule : rules) {
+      if (!rule.matches(scope)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
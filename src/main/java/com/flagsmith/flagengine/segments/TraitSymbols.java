@@ -0,0 +1,104 @@
+package com.flagsmith.flagengine.segments;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TraitSymbols
+ *
+ * <p>The trait keys read by the conditions of segments compiled together,
+ * interned to dense ordinals. An evaluation scope projects the traits of an
+ * identity into an array indexed by these ordinals once, dropping the traits
+ * no condition reads, and conditions then read their trait by index. Sets of
+ * traits are represented as bitmasks over the same ordinals.
+ *
+ * <p>Keys are interned while segments are compiled and only read afterwards.
+ */
+public final class TraitSymbols {
+  private static final long[] EMPTY_MASK = new long[0];
+
+  private final Map<String, Integer> ordinals = new HashMap<>();
+  private final List<String> keys = new ArrayList<>();
+
+  /**
+   * Intern a trait key.
+   *
+   * @param key Trait key.
+   * @return Ordinal of the key.
+   */
+  int intern(String key) {
+    Integer ordinal = ordinals.get(key);
+    if (ordinal == null) {
+      ordinal = keys.size();
+      ordinals.put(key, ordinal);
+      keys.add(key);
+    }
+    return ordinal;
+  }
+
+  /**
+   * Intern trait keys and get their mask.
+   *
+   * @param traitKeys Trait keys.
+   * @return Mask with the bits of the keys set, sized to the keys interned so far.
+   */
+  public long[] internMask(Set<String> traitKeys) {
+    if (traitKeys.isEmpty()) {
+      return EMPTY_MASK;
+    }
+    for (String key : traitKeys) {
+      intern(key);
+    }
+    long[] mask = new long[getWordCount()];
+    for (String key : traitKeys) {
+      int ordinal = ordinals.get(key);
+      mask[ordinal >>> 6] |= 1L << ordinal;
+    }
+    return mask;
+  }
+
+  /**
+   * Get the number of keys interned so far.
+   *
+   * @return Number of keys.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Get the number of words of masks over the keys interned so far.
+   *
+   * @return Number of words.
+   */
+  public int getWordCount() {
+    return (keys.size() + 63) >>> 6;
+  }
+
+  /**
+   * Project trait values into an array indexed by the ordinals of their keys.
+   * Traits with keys that were not interned are left out.
+   *
+   * @param traits Trait values keyed by trait key.
+   * @param vector Array to fill, cleared and at least {@link #size()} long.
+   */
+  void project(Map<String, Object> traits, Object[] vector) {
+    // Whichever of the traits and the interned keys is smaller is walked, and
+    // looked up in the other.
+    if (traits.size() > keys.size()) {
+      for (int ordinal = 0; ordinal < keys.size(); ordinal++) {
+        vector[ordinal] = traits.get(keys.get(ordinal));
+      }
+      return;
+    }
+    for (Map.Entry<String, Object> trait : traits.entrySet()) {
+      Integer ordinal = ordinals.get(trait.getKey());
+      if (ordinal != null) {
+        vector[ordinal] = trait.getValue();
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.flagsmith.flagengine.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HashedPercentageMemo
+ *
+ * <p>A bounded memo of hashed percentages, keyed by a 64-bit fingerprint of
+ * the hashed IDs. It is a two-way set associative table of primitive entries,
+ * read and written without locks: each entry stores the fingerprint XOR-ed
+ * with the percentage next to the percentage, so an entry torn by concurrent
+ * writes no longer matches its fingerprint and is read as a miss.
+ *
+ * <p>New entries go into the second way of their set, and are promoted to the
+ * first way when they are hit there. A hot entry is only demoted by another
+ * entry hit more recently, so a stream of identities seen once does not evict
+ * the identities seen on every request.
+ */
+public final class HashedPercentageMemo {
+  private static final int MAXIMUM_SIZE = 1 << 28;
+  private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+  private static final long FNV_PRIME = 0x100000001B3L;
+  private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+  private final long[] table;
+  private final int setMask;
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  /**
+   * Create a memo holding up to a given number of percentages.
+   *
+   * @param maximumSize maximum number of percentages, rounded up to a power of two
+   */
+  public HashedPercentageMemo(int maximumSize) {
+    if (maximumSize < 1 || maximumSize > MAXIMUM_SIZE) {
+      throw new IllegalArgumentException(
+          "maximumSize must be between 1 and " + MAXIMUM_SIZE);
+    }
+    int setCount = 1;
+    while (setCount * 2 < maximumSize) {
+      setCount <<= 1;
+    }
+    this.table = new long[setCount * 4];
+    this.setMask = setCount - 1;
+  }
+
+  /**
+   * Get the maximum number of percentages held.
+   *
+   * @return maximum number of percentages
+   */
+  public int getMaximumSize() {
+    return table.length / 2;
+  }
+
+  /**
+   * Get the number of lookups that found a percentage.
+   *
+   * @return number of hits
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * Get the number of lookups that did not find a percentage.
+   *
+   * @return number of misses
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /*
+   * Get the percentage memoised for a fingerprint, or NaN if there is none.
+   */
+  float get(long fingerprint) {
+    final long[] table = this.table;
+    final int base = ((int) fingerprint & setMask) << 2;
+
+    long data = table[base + 1];
+    if ((table[base] ^ data) == fingerprint) {
+      hitCount.increment();
+      return Float.intBitsToFloat((int) data);
+    }
+
+    data = table[base + 3];
+    long check = table[base + 2];
+    if ((check ^ data) == fingerprint) {
+      hitCount.increment();
+      // Promote the entry, demoting the one it was hit after.
+      final long demotedCheck = table[base];
+      final long demotedData = table[base + 1];
+      table[base] = check;
+      table[base + 1] = data;
+      table[base + 2] = demotedCheck;
+      table[base + 3] = demotedData;
+      return Float.intBitsToFloat((int) data);
+    }
+
+    missCount.increment();
+    return Float.NaN;
+  }
+
+  /*
+   * Memoise the percentage for a fingerprint.
+   */
+  void put(long fingerprint, float percentage) {
+    final long[] table = this.table;
+    final int base = ((int) fingerprint & setMask) << 2;
+    final long data = Float.floatToRawIntBits(percentage) & 0xFFFFFFFFL;
+
+    int way = table[base] == 0 && table[base + 1] == 0 ? base : base + 2;
+    table[way] = fingerprint ^ data;
+    table[way + 1] = data;
+  }
+
+  /*
+   * Hash a string ID, to be combined into fingerprints.
+   */
+  static long hash(String id) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < id.length(); i++) {
+      hash = (hash ^ id.charAt(i)) * FNV_PRIME;
+    }
+    return mix(hash);
+  }
+
+  /*
+   * Get the fingerprint of a prefix ID followed by another ID. It is never 0,
+   * so that empty entries match no fingerprint.
+   */
+  static long fingerprint(long prefixHash, long idHash) {
+    long fingerprint = mix(prefixHash * GOLDEN_RATIO + idHash);
+    return fingerprint != 0 ? fingerprint : 1;
+  }
+
+  /*
+   * The finalisation step of MurmurHash3.
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -1,12 +1,12 @@
 package com.flagsmith.flagengine.utils;
 
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,6 +15,11 @@ public class Hashing {
   private static Hashing instance = null;
   private static Logger logger = LoggerFactory.getLogger(Hashing.class);
 
+  private static final int MODULUS = 9999;
+  private static final byte SEPARATOR = ',';
+  private static final ThreadLocal<HashState> HASH_STATE =
+      ThreadLocal.withInitial(HashState::new);
+
   private Hashing() {}
 
   /**
@@ -37,6 +42,27 @@ public class Hashing {
     instance = instanceObj;
   }
 
+  /**
+   * Returns the prefix of object IDs starting with the given ID, to hash many
+   * lists of object IDs starting with it.
+   *
+   * @param id First string ID.
+   */
+  public HashPrefix getHashPrefix(String id) {
+    return getHashPrefix(id, null);
+  }
+
+  /**
+   * Returns the prefix of object IDs starting with the given ID, to hash many
+   * lists of object IDs starting with it, memoising their percentages.
+   *
+   * @param id First string ID.
+   * @param percentageMemo Memo of hashed percentages, or null to hash every time.
+   */
+  public HashPrefix getHashPrefix(String id, HashedPercentageMemo percentageMemo) {
+    return new HashPrefix(id, percentageMemo);
+  }
+
   /**
    * Returns the percentage of hash of the list of object IDs.
    *
@@ -49,26 +75,105 @@ public class Hashing {
   /**
    * Returns the percentage of hash of the list of object IDs with iteration.
    *
+   * <p>This is the MD5 hash of the IDs joined with commas, repeated the given
+   * number of times and joined with commas again, taken as an unsigned integer
+   * modulo 9999 and scaled to [0, 100]. The hash is retried with one more
+   * repetition while it scales to exactly 100, so the result is below 100.
+   *
    * @param ids List of string IDs.
    * @param iterations Number of iterations for the string to be repeated.
    */
   public Float getHashedPercentageForObjectIds(List<String> ids, Integer iterations) {
-    String hashTo = ids.stream().collect(Collectors.joining(","));
-    String hashToWithIteration = IntStream
-        .rangeClosed(1, iterations)
-        .mapToObj((i) -> hashTo)
-        .collect(Collectors.joining(","));
-
-    String hashedString = getMD5(hashToWithIteration);
-    BigInteger hashedBigInteger = new BigInteger(hashedString, 16);
-    Float hashedFloat = hashedBigInteger.mod(new BigInteger("9999")).floatValue();
-    hashedFloat = ((hashedFloat / 9998) * 100);
-
-    if (hashedFloat == 100) {
-      return getHashedPercentageForObjectIds(ids, iterations + 1);
+    HashState state = HASH_STATE.get();
+    int length = state.encode(ids);
+
+    for (int iteration = iterations; ; iteration++) {
+      MessageDigest md = state.md;
+      for (int i = 0; i < iteration; i++) {
+        if (i > 0) {
+          md.update(SEPARATOR);
+        }
+        md.update(state.buffer, 0, length);
+      }
+
+      float hashedFloat = getPercentage(md, state.digest);
+      if (hashedFloat != 100) {
+        return hashedFloat;
+      }
+    }
+  }
+
+  /**
+   * Returns the percentage of hash of a prefix followed by an object ID.
+   *
+   * <p>This is the same as the percentage of hash of the list of the prefix ID
+   * and the given ID, but starts from the digest state after the prefix
+   * instead of hashing it again. If the prefix has a percentage memo, the
+   * percentage is looked up in it first.
+   *
+   * @param prefix Prefix of the object IDs.
+   * @param id Last string ID.
+   */
+  public Float getHashedPercentageForObjectIds(HashPrefix prefix, String id) {
+    final HashedPercentageMemo memo = prefix.percentageMemo;
+    if (memo == null) {
+      return getHashedPercentage(prefix, id);
     }
 
-    return hashedFloat;
+    final long fingerprint = HashedPercentageMemo.fingerprint(
+        prefix.idHash, HashedPercentageMemo.hash(String.valueOf(id)));
+    float percentage = memo.get(fingerprint);
+    if (Float.isNaN(percentage)) {
+      percentage = getHashedPercentage(prefix, id);
+      memo.put(fingerprint, percentage);
+    }
+    return percentage;
+  }
+
+  private static float getHashedPercentage(HashPrefix prefix, String id) {
+    HashState state = HASH_STATE.get();
+    int length = state.encodeId(id);
+
+    for (int iteration = 1; ; iteration++) {
+      MessageDigest md = prefix.copyDigest();
+      md.update(state.idBuffer, 0, length);
+      for (int i = 1; i < iteration; i++) {
+        md.update(SEPARATOR);
+        md.update(prefix.bytes);
+        md.update(SEPARATOR);
+        md.update(state.idBuffer, 0, length);
+      }
+
+      float hashedFloat = getPercentage(md, state.digest);
+      if (hashedFloat != 100) {
+        return hashedFloat;
+      }
+    }
+  }
+
+  /*
+   * Finish a digest and scale it, as an unsigned big-endian integer modulo
+   * 9999, to [0, 100].
+   */
+  private static float getPercentage(MessageDigest md, byte[] digest) {
+    try {
+      md.digest(digest, 0, digest.length);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+    int remainder = 0;
+    for (byte b : digest) {
+      remainder = ((remainder << 8) | (b & 0xFF)) % MODULUS;
+    }
+    return (remainder / 9998f) * 100;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 Hashing Algorithm not found.", e);
+    }
   }
 
   /**
@@ -96,4 +201,123 @@ public class Hashing {
 
     return null;
   }
+
+  /**
+   * The first of a list of object IDs, with the digest state after hashing it
+   * and the separator following it. Hashes starting from the prefix copy that
+   * state, which is never updated itself, so a prefix can be shared between
+   * threads. Percentages of hashes starting from the prefix are memoised in its
+   * percentage memo, if it has one.
+   */
+  public static final class HashPrefix {
+    private final byte[] bytes;
+    private final long idHash;
+    private final MessageDigest digest;
+    private final HashedPercentageMemo percentageMemo;
+    private boolean cloneable = true;
+
+    private HashPrefix(String id, HashedPercentageMemo percentageMemo) {
+      this.percentageMemo = percentageMemo;
+      this.bytes = String.valueOf(id).getBytes(StandardCharsets.UTF_8);
+      this.idHash = HashedPercentageMemo.hash(String.valueOf(id));
+      this.digest = newDigest();
+      digest.update(bytes);
+      digest.update(SEPARATOR);
+    }
+
+    private MessageDigest copyDigest() {
+      if (cloneable) {
+        try {
+          return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+          cloneable = false;
+        }
+      }
+      MessageDigest md = HASH_STATE.get().md;
+      md.update(bytes);
+      md.update(SEPARATOR);
+      return md;
+    }
+  }
+
+  /**
+   * A digest and buffers reused by the hashes of a thread. The encoding of the
+   * last ID hashed after a prefix is kept, as the same identity is usually
+   * hashed after many prefixes in a row.
+   */
+  private static final class HashState {
+    private final MessageDigest md = newDigest();
+    private final byte[] digest = new byte[md.getDigestLength()];
+    private byte[] buffer = new byte[128];
+    private byte[] idBuffer = new byte[64];
+    private String lastId;
+    private int lastIdLength;
+
+    /*
+     * Encode the IDs joined with commas into the buffer as UTF-8, the way
+     * String.getBytes does, unpaired surrogates included.
+     */
+    int encode(List<String> ids) {
+      int length = 0;
+      for (int i = 0; i < ids.size(); i++) {
+        String id = String.valueOf(ids.get(i));
+        // A UTF-16 code unit encodes to at most 3 bytes.
+        buffer = ensureCapacity(buffer, length + 1 + id.length() * 3);
+        if (i > 0) {
+          buffer[length++] = SEPARATOR;
+        }
+        length = encodeUtf8(id, buffer, length);
+      }
+      return length;
+    }
+
+    /*
+     * Encode an ID into the ID buffer as UTF-8, unless it was the last one.
+     */
+    int encodeId(String id) {
+      String value = String.valueOf(id);
+      if (!value.equals(lastId)) {
+        idBuffer = ensureCapacity(idBuffer, value.length() * 3);
+        lastIdLength = encodeUtf8(value, idBuffer, 0);
+        lastId = value;
+      }
+      return lastIdLength;
+    }
+
+    private static int encodeUtf8(String id, byte[] bytes, int offset) {
+      int length = offset;
+      for (int i = 0; i < id.length(); i++) {
+        char c = id.charAt(i);
+        if (c < 0x80) {
+          bytes[length++] = (byte) c;
+        } else if (c < 0x800) {
+          bytes[length++] = (byte) (0xC0 | (c >> 6));
+          bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+          if (Character.isHighSurrogate(c) && i + 1 < id.length()
+              && Character.isLowSurrogate(id.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, id.charAt(++i));
+            bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+          } else {
+            bytes[length++] = '?';
+          }
+        } else {
+          bytes[length++] = (byte) (0xE0 | (c >> 12));
+          bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+      return length;
+    }
+
+    private static byte[] ensureCapacity(byte[] bytes, int capacity) {
+      if (bytes.length < capacity) {
+        return Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+      }
+      return bytes;
+    }
+  }
 }
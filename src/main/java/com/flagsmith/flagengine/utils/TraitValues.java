@@ -0,0 +1,24 @@
+package com.flagsmith.flagengine.utils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+public class TraitValues {
+
+  private TraitValues() {}
+
+  /**
+   * Check whether a trait value can be kept in a key, as it can't change and
+   * is only equal to values conditions read alike.
+   *
+   * @param value Trait value.
+   * @return true if the value is null, a string, a boolean or a number of a
+   *     standard immutable type.
+   */
+  public static boolean isImmutable(Object value) {
+    return value == null || value instanceof String || value instanceof Boolean
+        || value instanceof Integer || value instanceof Long || value instanceof Double
+        || value instanceof Float || value instanceof Short || value instanceof Byte
+        || value instanceof BigInteger || value instanceof BigDecimal;
+  }
+}
@@ -0,0 +1,18 @@
+package com.flagsmith.flagengine.utils.regex;
+
+/**
+ * CompiledRegex
+ *
+ * <p>A pattern compiled by a {@link RegexEngine}.
+ */
+public interface CompiledRegex {
+
+  /**
+   * Check whether the pattern matches any part of an input, as
+   * {@link java.util.regex.Matcher#find()} does.
+   *
+   * @param input Input.
+   * @return true if the pattern matches a part of the input.
+   */
+  boolean find(CharSequence input);
+}
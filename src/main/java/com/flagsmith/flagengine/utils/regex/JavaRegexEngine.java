@@ -0,0 +1,31 @@
+package com.flagsmith.flagengine.utils.regex;
+
+import java.util.regex.Pattern;
+
+/**
+ * JavaRegexEngine
+ *
+ * <p>Matches patterns with {@link java.util.regex.Pattern}. This is the default
+ * engine. Being a backtracking engine, some patterns take time exponential in
+ * the length of the input.
+ */
+public final class JavaRegexEngine implements RegexEngine {
+
+  @Override
+  public CompiledRegex compile(String regex) {
+    return new JavaRegex(Pattern.compile(regex));
+  }
+
+  static final class JavaRegex implements CompiledRegex {
+    private final Pattern pattern;
+
+    JavaRegex(Pattern pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    public boolean find(CharSequence input) {
+      return pattern.matcher(input).find();
+    }
+  }
+}
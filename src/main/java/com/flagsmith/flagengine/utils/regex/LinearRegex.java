@@ -0,0 +1,202 @@
+package com.flagsmith.flagengine.utils.regex;
+
+/**
+ * LinearRegex
+ *
+ * <p>A pattern compiled into a program for a Thompson automaton, run on all
+ * paths at once: at each position of the input, every live thread of the
+ * program advances by one code point, and threads reaching the same
+ * instruction are merged. Matching takes time proportional to the length of
+ * the input times the length of the program.
+ */
+final class LinearRegex implements CompiledRegex {
+  static final int CHARSET = 0;
+  static final int SPLIT = 1;
+  static final int JUMP = 2;
+  static final int BEGIN = 3;
+  static final int END = 4;
+  static final int MATCH = 5;
+
+  private final int[] ops;
+  private final int[] targets;
+  private final int[] alternatives;
+  private final int[][] charsets;
+  private final boolean anchored;
+  private final boolean skipsLowSurrogates;
+
+  /**
+   * Create a compiled pattern from its program.
+   *
+   * @param ops                instruction of each program counter
+   * @param targets            charset index of CHARSET instructions, or jump
+   *                           target of SPLIT and JUMP instructions
+   * @param alternatives       second jump target of SPLIT instructions
+   * @param charsets           sorted, disjoint code point ranges, as pairs of
+   *                           inclusive bounds
+   * @param anchored           whether matches can only start at the beginning
+   * @param skipsLowSurrogates whether matches never start between the two
+   *                           halves of a surrogate pair, as is the case in
+   *                           {@link java.util.regex.Pattern} for patterns
+   *                           with supplementary characters
+   */
+  LinearRegex(int[] ops, int[] targets, int[] alternatives, int[][] charsets,
+      boolean anchored, boolean skipsLowSurrogates) {
+    this.ops = ops;
+    this.targets = targets;
+    this.alternatives = alternatives;
+    this.charsets = charsets;
+    this.anchored = anchored;
+    this.skipsLowSurrogates = skipsLowSurrogates;
+  }
+
+  @Override
+  public boolean find(CharSequence input) {
+    final int length = input.length();
+    // Threads at the current position and at the next two, as a supplementary
+    // code point advances by two chars.
+    final ThreadList[] lists = {
+        new ThreadList(ops.length), new ThreadList(ops.length), new ThreadList(ops.length)};
+    final int[] stack = new int[ops.length * 2 + 1];
+
+    for (int position = 0; ; position++) {
+      ThreadList current = lists[position % 3];
+      if ((position == 0 || !anchored) && canStart(input, position)
+          && addThread(current, 0, input, position, stack)) {
+        return true;
+      }
+      if (position == length) {
+        return false;
+      }
+
+      if (current.size > 0) {
+        int codePoint = Character.codePointAt(input, position);
+        int next = position + Character.charCount(codePoint);
+        ThreadList nextList = lists[next % 3];
+        for (int i = 0; i < current.size; i++) {
+          int pc = current.dense[i];
+          if (ops[pc] == CHARSET && contains(charsets[targets[pc]], codePoint)
+              && addThread(nextList, pc + 1, input, next, stack)) {
+            return true;
+          }
+        }
+        current.clear();
+      } else if (anchored && lists[(position + 1) % 3].size == 0
+          && lists[(position + 2) % 3].size == 0) {
+        return false;
+      }
+    }
+  }
+
+  /*
+   * Add a thread and the threads it leads to without consuming input, and tell
+   * whether one of them matched.
+   */
+  private boolean addThread(ThreadList list, int start, CharSequence input, int position,
+      int[] stack) {
+    int top = 0;
+    stack[top++] = start;
+    while (top > 0) {
+      int pc = stack[--top];
+      if (list.contains(pc)) {
+        continue;
+      }
+      list.add(pc);
+      switch (ops[pc]) {
+        case SPLIT:
+          stack[top++] = alternatives[pc];
+          stack[top++] = targets[pc];
+          break;
+        case JUMP:
+          stack[top++] = targets[pc];
+          break;
+        case BEGIN:
+          if (position == 0) {
+            stack[top++] = pc + 1;
+          }
+          break;
+        case END:
+          if (isAtEnd(input, position)) {
+            stack[top++] = pc + 1;
+          }
+          break;
+        case MATCH:
+          return true;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+
+  private boolean canStart(CharSequence input, int position) {
+    return !skipsLowSurrogates || position == 0 || position == input.length()
+        || !Character.isLowSurrogate(input.charAt(position))
+        || !Character.isHighSurrogate(input.charAt(position - 1));
+  }
+
+  /*
+   * Check whether $ matches at a position: at the end of the input, or before a
+   * line terminator ending it.
+   */
+  private static boolean isAtEnd(CharSequence input, int position) {
+    int length = input.length();
+    if (position == length) {
+      return true;
+    }
+    if (position == length - 2) {
+      return input.charAt(position) == '\r' && input.charAt(position + 1) == '\n';
+    }
+    if (position == length - 1) {
+      char c = input.charAt(position);
+      if (c == '\n') {
+        return position == 0 || input.charAt(position - 1) != '\r';
+      }
+      return c == '\r' || c == 0x85 || (c | 1) == 0x2029;
+    }
+    return false;
+  }
+
+  private static boolean contains(int[] ranges, int codePoint) {
+    int low = 0;
+    int high = ranges.length / 2 - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (codePoint < ranges[middle * 2]) {
+        high = middle - 1;
+      } else if (codePoint > ranges[middle * 2 + 1]) {
+        low = middle + 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A set of program counters that is cleared in constant time.
+   */
+  private static final class ThreadList {
+    private final int[] dense;
+    private final int[] sparse;
+    private int size;
+
+    ThreadList(int capacity) {
+      this.dense = new int[capacity];
+      this.sparse = new int[capacity];
+    }
+
+    boolean contains(int pc) {
+      int index = sparse[pc];
+      return index < size && dense[index] == pc;
+    }
+
+    void add(int pc) {
+      sparse[pc] = size;
+      dense[size++] = pc;
+    }
+
+    void clear() {
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.flagsmith.flagengine.utils.regex;
+
+import java.util.regex.Pattern;
+
+/**
+ * LinearRegexEngine
+ *
+ * <p>Matches patterns in time linear in the length of the input, by simulating
+ * their automaton on all paths at once instead of backtracking. It supports
+ * the regular part of the {@link java.util.regex.Pattern} syntax: literals and
+ * escapes, character classes without nested classes or intersections, the
+ * predefined classes {@code \d}, {@code \s} and {@code \w} and their negations,
+ * {@code .}, {@code ^} and {@code $}, groups, alternation, and greedy and
+ * reluctant quantifiers with bounds up to 1000. Matches are the same as those
+ * of {@link java.util.regex.Pattern} with the default flags.
+ *
+ * <p>Patterns using anything else, such as back references, lookaround,
+ * possessive quantifiers, word boundaries or flags, are matched with
+ * {@link java.util.regex.Pattern} instead, as {@link JavaRegexEngine} does.
+ */
+public final class LinearRegexEngine implements RegexEngine {
+
+  @Override
+  public CompiledRegex compile(String regex) {
+    // Compiled first to reject invalid patterns the same way.
+    Pattern pattern = Pattern.compile(regex);
+    CompiledRegex linearRegex = LinearRegexParser.parse(regex);
+    return linearRegex != null ? linearRegex : new JavaRegexEngine.JavaRegex(pattern);
+  }
+}
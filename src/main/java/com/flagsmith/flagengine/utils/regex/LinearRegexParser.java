@@ -0,0 +1,626 @@
+package com.flagsmith.flagengine.utils.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * LinearRegexParser
+ *
+ * <p>Parses a pattern in {@link java.util.regex.Pattern} syntax into a
+ * {@link LinearRegex}, if it only uses constructs that match the same way when
+ * run as an automaton. The pattern is expected to be valid, so anything not
+ * understood makes the parser give up rather than report an error.
+ */
+final class LinearRegexParser {
+  private static final int MAX_REPETITIONS = 1000;
+  private static final int MAX_PROGRAM_LENGTH = 10_000;
+  private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+
+  private static final int[] DIGITS = {'0', '9'};
+  private static final int[] SPACES = {'\t', '\r', ' ', ' '};
+  private static final int[] WORD_CHARACTERS = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+  private static final int[] LINE_TERMINATORS = {
+      '\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029};
+
+  private final String regex;
+  private int cursor;
+
+  private final List<Integer> ops = new ArrayList<>();
+  private final List<Integer> targets = new ArrayList<>();
+  private final List<Integer> alternatives = new ArrayList<>();
+  private final List<int[]> charsets = new ArrayList<>();
+
+  private LinearRegexParser(String regex) {
+    this.regex = regex;
+  }
+
+  /**
+   * Parse a valid pattern.
+   *
+   * @param regex Pattern.
+   * @return Compiled pattern, or null if the pattern uses unsupported constructs.
+   */
+  static LinearRegex parse(String regex) {
+    LinearRegexParser parser = new LinearRegexParser(regex);
+    try {
+      Node node = parser.parseAlternation();
+      if (parser.cursor < regex.length()) {
+        return null;
+      }
+      node.emit(parser);
+      parser.emit(LinearRegex.MATCH, 0, 0);
+      return parser.build(node.isAnchored());
+    } catch (UnsupportedRegexException e) {
+      return null;
+    }
+  }
+
+  private LinearRegex build(boolean anchored) {
+    int length = ops.size();
+    int[] opArray = new int[length];
+    int[] targetArray = new int[length];
+    int[] alternativeArray = new int[length];
+    for (int i = 0; i < length; i++) {
+      opArray[i] = ops.get(i);
+      targetArray[i] = targets.get(i);
+      alternativeArray[i] = alternatives.get(i);
+    }
+    // Patterns with supplementary characters don't start matches between the
+    // halves of a surrogate pair.
+    boolean skipsLowSurrogates = regex.codePoints().anyMatch(
+        (c) -> Character.isSupplementaryCodePoint(c) || Character.isSurrogate((char) c));
+    return new LinearRegex(opArray, targetArray, alternativeArray,
+        charsets.toArray(new int[0][]), anchored, skipsLowSurrogates);
+  }
+
+  private int emit(int op, int target, int alternative) throws UnsupportedRegexException {
+    if (ops.size() >= MAX_PROGRAM_LENGTH) {
+      throw new UnsupportedRegexException();
+    }
+    ops.add(op);
+    targets.add(target);
+    alternatives.add(alternative);
+    return ops.size() - 1;
+  }
+
+  private void patch(int pc, int target, int alternative) {
+    targets.set(pc, target);
+    alternatives.set(pc, alternative);
+  }
+
+  private int nextPc() {
+    return ops.size();
+  }
+
+  private Node parseAlternation() throws UnsupportedRegexException {
+    List<Node> branches = new ArrayList<>();
+    branches.add(parseSequence());
+    while (peek() == '|') {
+      cursor++;
+      branches.add(parseSequence());
+    }
+    return branches.size() == 1 ? branches.get(0) : new Alternation(branches);
+  }
+
+  private Node parseSequence() throws UnsupportedRegexException {
+    List<Node> nodes = new ArrayList<>();
+    while (cursor < regex.length() && peek() != '|' && peek() != ')') {
+      Node atom = parseAtom();
+      nodes.add(parseQuantifier(atom));
+    }
+    return new Sequence(nodes);
+  }
+
+  private Node parseAtom() throws UnsupportedRegexException {
+    int c = next();
+    switch (c) {
+      case '(':
+        return parseGroup();
+      case '[':
+        return new CharacterClass(parseClass());
+      case '.':
+        return new CharacterClass(complement(LINE_TERMINATORS));
+      case '^':
+        return new Assertion(LinearRegex.BEGIN);
+      case '$':
+        return new Assertion(LinearRegex.END);
+      case '\\':
+        return new CharacterClass(parseEscape());
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+        throw new UnsupportedRegexException();
+      default:
+        return new CharacterClass(single(c));
+    }
+  }
+
+  private Node parseGroup() throws UnsupportedRegexException {
+    if (peek() == '?') {
+      cursor++;
+      int c = next();
+      if (c == '<' && Character.isLetter(peek())) {
+        // Named groups only capture, like any other group.
+        while (Character.isLetterOrDigit(peek())) {
+          cursor++;
+        }
+        expect('>');
+      } else if (c != ':') {
+        throw new UnsupportedRegexException();
+      }
+    }
+    Node node = parseAlternation();
+    expect(')');
+    return node;
+  }
+
+  private Node parseQuantifier(Node atom) throws UnsupportedRegexException {
+    int min;
+    int max;
+    switch (peek()) {
+      case '*':
+        min = 0;
+        max = -1;
+        break;
+      case '+':
+        min = 1;
+        max = -1;
+        break;
+      case '?':
+        min = 0;
+        max = 1;
+        break;
+      case '{':
+        cursor++;
+        min = parseNumber();
+        max = min;
+        if (peek() == ',') {
+          cursor++;
+          max = peek() == '}' ? -1 : parseNumber();
+        }
+        if (peek() != '}') {
+          throw new UnsupportedRegexException();
+        }
+        break;
+      default:
+        return atom;
+    }
+    cursor++;
+
+    // Reluctant quantifiers match the same inputs, possessive ones don't.
+    if (peek() == '?') {
+      cursor++;
+    }
+    int c = peek();
+    if (c == '+' || c == '*' || c == '?' || c == '{' || atom instanceof Assertion
+        || min > MAX_REPETITIONS || max > MAX_REPETITIONS) {
+      throw new UnsupportedRegexException();
+    }
+    // Pattern ends a repeated group at its first empty iteration, even short
+    // of the minimum. That only makes a difference when the group can match
+    // empty at some positions and not others, that is through an assertion.
+    if (min > 1 && atom.isNullable() && atom.hasAssertion()) {
+      throw new UnsupportedRegexException();
+    }
+    return new Repetition(atom, min, max);
+  }
+
+  private int parseNumber() throws UnsupportedRegexException {
+    int start = cursor;
+    while (cursor < regex.length() && cursor - start < 6
+        && peek() >= '0' && peek() <= '9') {
+      cursor++;
+    }
+    if (cursor == start || cursor - start >= 6) {
+      throw new UnsupportedRegexException();
+    }
+    return Integer.parseInt(regex.substring(start, cursor));
+  }
+
+  /*
+   * Parse a character class after its opening bracket.
+   */
+  private int[] parseClass() throws UnsupportedRegexException {
+    boolean negated = false;
+    if (peek() == '^') {
+      cursor++;
+      negated = true;
+    }
+    if (peek() == ']') {
+      throw new UnsupportedRegexException();
+    }
+
+    List<int[]> parts = new ArrayList<>();
+    // Classes made of BMP characters and \d, \s and \w only are matched a
+    // char at a time rather than a code point at a time.
+    boolean bmpOnly = true;
+    while (true) {
+      int c = next();
+      if (c == ']') {
+        break;
+      }
+      if (c == '[' || (c == '&' && peek() == '&')) {
+        throw new UnsupportedRegexException();
+      }
+
+      int[] part;
+      boolean single;
+      if (c == '\\') {
+        part = parseEscape();
+        single = part.length == 2 && part[0] == part[1];
+      } else {
+        part = single(c);
+        single = true;
+      }
+
+      if (single && peek() == '-' && peekAt(1) != ']') {
+        cursor++;
+        int end = next();
+        if (end == '\\') {
+          int[] endPart = parseEscape();
+          if (endPart.length != 2 || endPart[0] != endPart[1]) {
+            throw new UnsupportedRegexException();
+          }
+          end = endPart[0];
+        } else if (end == '[') {
+          throw new UnsupportedRegexException();
+        }
+        if (end < part[0]) {
+          throw new UnsupportedRegexException();
+        }
+        part = new int[] {part[0], end};
+      } else if (!single && peek() == '-' && peekAt(1) != ']') {
+        throw new UnsupportedRegexException();
+      }
+      bmpOnly &= part[part.length - 1] < Character.MIN_SUPPLEMENTARY_CODE_POINT;
+      parts.add(part);
+    }
+
+    int[] ranges = union(parts);
+    if (negated) {
+      return complement(ranges);
+    }
+    if (bmpOnly && intersectsSurrogates(ranges)) {
+      throw new UnsupportedRegexException();
+    }
+    return ranges;
+  }
+
+  /*
+   * Parse an escape after its backslash, into the code point ranges it matches.
+   */
+  private int[] parseEscape() throws UnsupportedRegexException {
+    int c = next();
+    switch (c) {
+      case 'd':
+        return DIGITS;
+      case 'D':
+        return complement(DIGITS);
+      case 's':
+        return SPACES;
+      case 'S':
+        return complement(SPACES);
+      case 'w':
+        return WORD_CHARACTERS;
+      case 'W':
+        return complement(WORD_CHARACTERS);
+      case 't':
+        return single('\t');
+      case 'n':
+        return single('\n');
+      case 'r':
+        return single('\r');
+      case 'f':
+        return single('\f');
+      case 'a':
+        return single('\u0007');
+      case 'e':
+        return single('\u001B');
+      case 'x':
+        return single(parseHex(2));
+      case 'u':
+        return single(parseHex(4));
+      default:
+        if (c < 0x80 && Character.isLetterOrDigit(c)) {
+          throw new UnsupportedRegexException();
+        }
+        return single(c);
+    }
+  }
+
+  private int parseHex(int digits) throws UnsupportedRegexException {
+    if (cursor + digits > regex.length()) {
+      throw new UnsupportedRegexException();
+    }
+    int value = 0;
+    for (int i = 0; i < digits; i++) {
+      int digit = Character.digit(regex.charAt(cursor++), 16);
+      if (digit < 0) {
+        throw new UnsupportedRegexException();
+      }
+      value = value * 16 + digit;
+    }
+    return value;
+  }
+
+  private int[] single(int c) throws UnsupportedRegexException {
+    if (c < Character.MIN_SUPPLEMENTARY_CODE_POINT && Character.isSurrogate((char) c)) {
+      throw new UnsupportedRegexException();
+    }
+    return new int[] {c, c};
+  }
+
+  private int peek() {
+    return peekAt(0);
+  }
+
+  private int peekAt(int offset) {
+    int index = cursor;
+    for (int i = 0; i < offset && index < regex.length(); i++) {
+      index += Character.charCount(regex.codePointAt(index));
+    }
+    return index < regex.length() ? regex.codePointAt(index) : -1;
+  }
+
+  private int next() throws UnsupportedRegexException {
+    if (cursor >= regex.length()) {
+      throw new UnsupportedRegexException();
+    }
+    int c = regex.codePointAt(cursor);
+    cursor += Character.charCount(c);
+    return c;
+  }
+
+  private void expect(int c) throws UnsupportedRegexException {
+    if (next() != c) {
+      throw new UnsupportedRegexException();
+    }
+  }
+
+  private static int[] union(List<int[]> parts) {
+    List<int[]> ranges = new ArrayList<>();
+    for (int[] part : parts) {
+      for (int i = 0; i < part.length; i += 2) {
+        ranges.add(new int[] {part[i], part[i + 1]});
+      }
+    }
+    ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+    int[] merged = new int[ranges.size() * 2];
+    int length = 0;
+    for (int[] range : ranges) {
+      if (length > 0 && range[0] <= merged[length - 1] + 1) {
+        merged[length - 1] = Math.max(merged[length - 1], range[1]);
+      } else {
+        merged[length++] = range[0];
+        merged[length++] = range[1];
+      }
+    }
+    return Arrays.copyOf(merged, length);
+  }
+
+  private static int[] complement(int[] ranges) {
+    int[] complement = new int[ranges.length + 2];
+    int length = 0;
+    int start = 0;
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (ranges[i] > start) {
+        complement[length++] = start;
+        complement[length++] = ranges[i] - 1;
+      }
+      start = ranges[i + 1] + 1;
+    }
+    if (start <= MAX_CODE_POINT) {
+      complement[length++] = start;
+      complement[length++] = MAX_CODE_POINT;
+    }
+    return Arrays.copyOf(complement, length);
+  }
+
+  private static boolean intersectsSurrogates(int[] ranges) {
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (ranges[i] <= Character.MAX_SURROGATE && ranges[i + 1] >= Character.MIN_SURROGATE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A parsed part of a pattern.
+   */
+  private abstract static class Node {
+    abstract void emit(LinearRegexParser parser) throws UnsupportedRegexException;
+
+    boolean isAnchored() {
+      return false;
+    }
+
+    /*
+     * Whether the node can match without consuming input, at some position.
+     */
+    abstract boolean isNullable();
+
+    abstract boolean hasAssertion();
+  }
+
+  private static final class CharacterClass extends Node {
+    private final int[] ranges;
+
+    CharacterClass(int[] ranges) {
+      this.ranges = ranges;
+    }
+
+    @Override
+    void emit(LinearRegexParser parser) throws UnsupportedRegexException {
+      parser.charsets.add(ranges);
+      parser.emit(LinearRegex.CHARSET, parser.charsets.size() - 1, 0);
+    }
+
+    @Override
+    boolean isNullable() {
+      return false;
+    }
+
+    @Override
+    boolean hasAssertion() {
+      return false;
+    }
+  }
+
+  private static final class Assertion extends Node {
+    private final int op;
+
+    Assertion(int op) {
+      this.op = op;
+    }
+
+    @Override
+    void emit(LinearRegexParser parser) throws UnsupportedRegexException {
+      parser.emit(op, 0, 0);
+    }
+
+    @Override
+    boolean isAnchored() {
+      return op == LinearRegex.BEGIN;
+    }
+
+    @Override
+    boolean isNullable() {
+      return true;
+    }
+
+    @Override
+    boolean hasAssertion() {
+      return true;
+    }
+  }
+
+  private static final class Sequence extends Node {
+    private final List<Node> nodes;
+
+    Sequence(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    @Override
+    void emit(LinearRegexParser parser) throws UnsupportedRegexException {
+      for (Node node : nodes) {
+        node.emit(parser);
+      }
+    }
+
+    @Override
+    boolean isAnchored() {
+      return !nodes.isEmpty() && nodes.get(0).isAnchored();
+    }
+
+    @Override
+    boolean isNullable() {
+      return nodes.stream().allMatch(Node::isNullable);
+    }
+
+    @Override
+    boolean hasAssertion() {
+      return nodes.stream().anyMatch(Node::hasAssertion);
+    }
+  }
+
+  private static final class Alternation extends Node {
+    private final List<Node> branches;
+
+    Alternation(List<Node> branches) {
+      this.branches = branches;
+    }
+
+    @Override
+    void emit(LinearRegexParser parser) throws UnsupportedRegexException {
+      List<Integer> jumps = new ArrayList<>();
+      for (int i = 0; i < branches.size() - 1; i++) {
+        int split = parser.emit(LinearRegex.SPLIT, 0, 0);
+        branches.get(i).emit(parser);
+        jumps.add(parser.emit(LinearRegex.JUMP, 0, 0));
+        parser.patch(split, split + 1, parser.nextPc());
+      }
+      branches.get(branches.size() - 1).emit(parser);
+      for (int jump : jumps) {
+        parser.patch(jump, parser.nextPc(), 0);
+      }
+    }
+
+    @Override
+    boolean isAnchored() {
+      return branches.stream().allMatch(Node::isAnchored);
+    }
+
+    @Override
+    boolean isNullable() {
+      return branches.stream().anyMatch(Node::isNullable);
+    }
+
+    @Override
+    boolean hasAssertion() {
+      return branches.stream().anyMatch(Node::hasAssertion);
+    }
+  }
+
+  private static final class Repetition extends Node {
+    private final Node node;
+    private final int min;
+    private final int max;
+
+    Repetition(Node node, int min, int max) {
+      this.node = node;
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    void emit(LinearRegexParser parser) throws UnsupportedRegexException {
+      for (int i = 0; i < min; i++) {
+        node.emit(parser);
+      }
+      if (max < 0) {
+        int split = parser.emit(LinearRegex.SPLIT, 0, 0);
+        node.emit(parser);
+        parser.emit(LinearRegex.JUMP, split, 0);
+        parser.patch(split, split + 1, parser.nextPc());
+        return;
+      }
+      List<Integer> splits = new ArrayList<>();
+      for (int i = min; i < max; i++) {
+        splits.add(parser.emit(LinearRegex.SPLIT, 0, 0));
+        node.emit(parser);
+      }
+      for (int split : splits) {
+        parser.patch(split, split + 1, parser.nextPc());
+      }
+    }
+
+    @Override
+    boolean isAnchored() {
+      return min > 0 && node.isAnchored();
+    }
+
+    @Override
+    boolean isNullable() {
+      return min == 0 || node.isNullable();
+    }
+
+    @Override
+    boolean hasAssertion() {
+      return node.hasAssertion();
+    }
+  }
+
+  /**
+   * Thrown when a pattern uses a construct the parser does not support.
+   */
+  private static final class UnsupportedRegexException extends Exception {
+    UnsupportedRegexException() {
+      super(null, null, false, false);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.flagsmith.flagengine.utils.regex;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * RegexEngine
+ *
+ * <p>Compiles the patterns of REGEX segment conditions. Patterns are compiled
+ * once, when the segments of an environment are compiled, and matched against
+ * context values on every evaluation.
+ */
+public interface RegexEngine {
+
+  /**
+   * Compile a pattern written in {@link java.util.regex.Pattern} syntax.
+   *
+   * @param regex Pattern.
+   * @return Compiled pattern.
+   * @throws PatternSyntaxException if the pattern is not valid.
+   */
+  CompiledRegex compile(String regex);
+}
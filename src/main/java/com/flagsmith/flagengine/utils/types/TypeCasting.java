@@ -2,10 +2,19 @@ package com.flagsmith.flagengine.utils.types;
 
 import com.flagsmith.flagengine.segments.constants.SegmentConditions;
 import com.flagsmith.flagengine.utils.SemanticVersioning;
+import java.util.regex.Pattern;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.maven.artifact.versioning.ComparableVersion;
 
 public class TypeCasting {
+  private static final String DIGITS = "(\\p{Digit}+)";
+  private static final String HEX_DIGITS = "(\\p{XDigit}+)";
+  private static final String EXPONENT = "[eE][+-]?" + DIGITS;
+  private static final Pattern FLOATING_POINT = Pattern.compile(
+      "[\\x00-\\x20]*[+-]?(NaN|Infinity|(((" + DIGITS + "(\\.)?(" + DIGITS + "?)("
+          + EXPONENT + ")?)|(\\.(" + DIGITS + ")(" + EXPONENT + ")?)|(((0[xX]" + HEX_DIGITS
+          + "(\\.)?)|(0[xX]" + HEX_DIGITS + "?(\\.)" + HEX_DIGITS + "))[pP][+-]?" + DIGITS
+          + "))[fFdD]?))[\\x00-\\x20]*");
 
   /**
    * Compare the values value1 and value2 with the provided condition.
@@ -62,18 +71,53 @@ public class TypeCasting {
     return value1.compareTo(value2) == 0;
   }
 
+  /**
+   * Compare typed values value1 and value2 with the provided condition. This
+   * is the same as comparing the values themselves, without casting them again.
+   *
+   * @param condition SegmentCondition criteria to compare values against.
+   * @param value1 Value to compare.
+   * @param value2 Value to compare against.
+   */
+  public static Boolean compare(SegmentConditions condition, TypedValue value1,
+      TypedValue value2) {
+    if (condition.equals(SegmentConditions.MODULO)) {
+      return compare(condition, value1.getValue(), value2.getValue());
+    }
+
+    // Values cast to Float are also cast to Double and the other way around,
+    // so there is no need to try Double after Float.
+    if (value1.getIntegerValue() != null && value2.getIntegerValue() != null) {
+      return compare(condition, value1.getIntegerValue(), value2.getIntegerValue());
+    } else if (value1.getFloatValue() != null && value2.getFloatValue() != null) {
+      return compare(condition, value1.getFloatValue(), value2.getFloatValue());
+    } else if (value1.isBoolean() && value2.isBoolean()) {
+      return compare(condition, value1.getBooleanValue(), value2.getBooleanValue());
+    } else if (value2.isSemver()) {
+      ComparableVersion version1 = value1.getSemverValue();
+      if (version1 != null) {
+        return compare(condition, version1, value2.getSemverValue());
+      }
+    }
+
+    if (!(value2.getValue() instanceof String) || value2.isSemver()) {
+      // Fail the way comparing the values themselves does.
+      return compare(condition, value1.getValue(), value2.getValue());
+    }
+    return compare(condition, value1.getStringValue(), value2.getStringValue());
+  }
+
   /**
    * Convert the object to Double.
    *
    * @param number Object to convert to Double.
    */
   public static Double toDouble(Object number) {
-    try {
-      String asString = String.valueOf(number);
-      return number instanceof Double ? ((Double) number) : Double.parseDouble(asString);
-    } catch (Exception nfe) {
-      return null;
+    if (number instanceof Double) {
+      return (Double) number;
     }
+    String asString = String.valueOf(number);
+    return isFloatingPoint(asString) ? Double.parseDouble(asString) : null;
   }
 
   /**
@@ -91,11 +135,11 @@ public class TypeCasting {
    * @param number Object to convert to Float.
    */
   public static Float toFloat(Object number) {
-    try {
-      return number instanceof Float ? ((Float) number) : Float.parseFloat(String.valueOf(number));
-    } catch (Exception nfe) {
-      return null;
+    if (number instanceof Float) {
+      return (Float) number;
     }
+    String asString = String.valueOf(number);
+    return isFloatingPoint(asString) ? Float.parseFloat(asString) : null;
   }
 
   /**
@@ -113,12 +157,10 @@ public class TypeCasting {
    * @param number Object to convert to Integer.
    */
   public static Integer toInteger(Object number) {
-    try {
-      String asString = String.valueOf(number);
-      return number instanceof Integer ? ((Integer) number) : Integer.valueOf(asString);
-    } catch (Exception nfe) {
-      return null;
+    if (number instanceof Integer) {
+      return (Integer) number;
     }
+    return parseInteger(String.valueOf(number));
   }
 
   /**
@@ -162,6 +204,9 @@ public class TypeCasting {
    * @param str Object to convert to Semver.
    */
   public static ComparableVersion toSemver(Object str) {
+    if (!(str instanceof String)) {
+      return null;
+    }
     try {
       String value = SemanticVersioning.isSemver((String) str)
           ? SemanticVersioning.removeSemver((String) str) : ((String) str);
@@ -180,6 +225,54 @@ public class TypeCasting {
     return SemanticVersioning.isSemver((String) str);
   }
 
+  /*
+   * Parse a string the way Integer.valueOf does, returning null instead of
+   * throwing when it is not an integer.
+   */
+  private static Integer parseInteger(String value) {
+    int length = value.length();
+    if (length == 0) {
+      return null;
+    }
+    int i = 0;
+    boolean negative = false;
+    char first = value.charAt(0);
+    if (first < '0') {
+      if (first == '-') {
+        negative = true;
+      } else if (first != '+') {
+        return null;
+      }
+      if (length == 1) {
+        return null;
+      }
+      i++;
+    }
+    long result = 0;
+    for (; i < length; i++) {
+      int digit = Character.digit(value.charAt(i), 10);
+      if (digit < 0) {
+        return null;
+      }
+      result = result * 10 + digit;
+      if (result > -(long) Integer.MIN_VALUE) {
+        return null;
+      }
+    }
+    if (!negative && result > Integer.MAX_VALUE) {
+      return null;
+    }
+    return (int) (negative ? -result : result);
+  }
+
+  /*
+   * Check whether a string is accepted by Float.parseFloat and
+   * Double.parseDouble, using the grammar given in Double.valueOf.
+   */
+  private static boolean isFloatingPoint(String value) {
+    return FLOATING_POINT.matcher(value).matches();
+  }
+
   /**
    * Modulo is a special case as the condition value holds both the divisor and remainder.
    * This method compares the conditionValue and the traitValue by dividing the traitValue
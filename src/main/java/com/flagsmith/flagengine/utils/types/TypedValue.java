@@ -0,0 +1,123 @@
+package com.flagsmith.flagengine.utils.types;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.maven.artifact.versioning.ComparableVersion;
+
+/**
+ * TypedValue
+ *
+ * <p>A trait or condition value together with the types it can be cast to, as
+ * decided by {@link TypeCasting}. A value is classified once, so that comparing
+ * it against many other values does not parse it again.
+ */
+public final class TypedValue {
+  private final Object value;
+  private final String stringValue;
+  private final Integer integerValue;
+  private final Float floatValue;
+  private final boolean isBoolean;
+  private final boolean booleanValue;
+  private final boolean isSemver;
+  private volatile ComparableVersion semverValue;
+  private volatile boolean semverParsed;
+
+  private TypedValue(Object value) {
+    this.value = value;
+    this.stringValue = String.valueOf(value);
+    this.integerValue = TypeCasting.toInteger(value);
+    this.floatValue = TypeCasting.toFloat(value);
+    this.isBoolean = TypeCasting.isBoolean(value);
+    if (value instanceof Boolean) {
+      this.booleanValue = (Boolean) value;
+    } else {
+      this.booleanValue = value instanceof String && BooleanUtils.toBoolean((String) value);
+    }
+    this.isSemver = value instanceof String && TypeCasting.isSemver(value);
+  }
+
+  /**
+   * Classify a value.
+   *
+   * @param value Value to classify.
+   * @return Typed value.
+   */
+  public static TypedValue of(Object value) {
+    return new TypedValue(value);
+  }
+
+  /**
+   * Get the classified value.
+   *
+   * @return Value.
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * Get the value as a string.
+   *
+   * @return String value.
+   */
+  public String getStringValue() {
+    return stringValue;
+  }
+
+  /**
+   * Get the value as an integer.
+   *
+   * @return Integer value, or null if the value is not an integer.
+   */
+  public Integer getIntegerValue() {
+    return integerValue;
+  }
+
+  /**
+   * Get the value as a float.
+   *
+   * @return Float value, or null if the value is not a number.
+   */
+  public Float getFloatValue() {
+    return floatValue;
+  }
+
+  /**
+   * Is the value a boolean?.
+   *
+   * @return true if the value is a boolean or a boolean string.
+   */
+  public boolean isBoolean() {
+    return isBoolean;
+  }
+
+  /**
+   * Get the value as a boolean.
+   *
+   * @return Boolean value, false if the value is not a boolean.
+   */
+  public boolean getBooleanValue() {
+    return booleanValue;
+  }
+
+  /**
+   * Is the value a string with the semver suffix?.
+   *
+   * @return true if the value is a semver string.
+   */
+  public boolean isSemver() {
+    return isSemver;
+  }
+
+  /**
+   * Get the value as a version, parsing it on first use.
+   *
+   * @return Version, or null if the value is not a string.
+   */
+  public ComparableVersion getSemverValue() {
+    if (!semverParsed) {
+      semverValue = TypeCasting.toSemver(value);
+      semverParsed = true;
+    }
+    return semverValue;
+  }
+}
@@ -18,7 +18,7 @@ import com.flagsmith.flagengine.segments.constants.SegmentConditions;
 import com.flagsmith.models.FeatureMetadata;
 import com.flagsmith.models.Flag;
 import com.flagsmith.models.SegmentMetadata;
-import com.flagsmith.models.TraitModel;
+import com.flagsmith.models.TraitConfig;
 import com.flagsmith.models.environments.EnvironmentModel;
 import com.flagsmith.models.features.FeatureModel;
 import com.flagsmith.models.features.FeatureSegmentModel;
@@ -29,7 +29,6 @@ import com.flagsmith.models.projects.ProjectModel;
 import com.flagsmith.models.segments.SegmentConditionModel;
 import com.flagsmith.models.segments.SegmentModel;
 import com.flagsmith.models.segments.SegmentRuleModel;
-import com.flagsmith.utils.ModelUtils;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -77,6 +76,21 @@ public class EngineMappers {
       EvaluationContext context,
       String identifier,
       Map<String, Object> traits) {
+    // Create new evaluation context with identity
+    return new EvaluationContext(context)
+        .withIdentity(mapIdentityDataToIdentityContext(identifier, traits));
+  }
+
+  /**
+   * Maps identity data to identity context.
+   *
+   * @param identifier the identity identifier
+   * @param traits     optional traits mapping
+   * @return the identity context
+   */
+  public static IdentityContext mapIdentityDataToIdentityContext(
+      String identifier,
+      Map<String, Object> traits) {
 
     // Create identity context
     IdentityContext identityContext = new IdentityContext()
@@ -84,17 +98,19 @@ public class EngineMappers {
 
     // Map traits if provided
     if (traits != null && !traits.isEmpty()) {
+      // Trait values are unwrapped from any TraitConfig directly, rather than
+      // through intermediate trait models.
       Traits identityTraits = new Traits();
-      for (TraitModel traitModel : ModelUtils.getTraitModelsFromTraitMap(traits)) {
-        identityTraits.setAdditionalProperty(
-            traitModel.getTraitKey(), traitModel.getTraitValue());
+      for (Map.Entry<String, Object> trait : traits.entrySet()) {
+        Object value = trait.getValue();
+        identityTraits.setAdditionalProperty(trait.getKey(), value instanceof TraitConfig
+            ? ((TraitConfig) value).getValue()
+            : value);
       }
       identityContext.setTraits(identityTraits);
     }
 
-    // Create new evaluation context with identity
-    return new EvaluationContext(context)
-        .withIdentity(identityContext);
+    return identityContext;
   }
 
   /**
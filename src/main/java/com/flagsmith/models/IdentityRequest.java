@@ -0,0 +1,23 @@
+package com.flagsmith.models;
+
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An identity to evaluate flags for as part of a batch.
+ *
+ * @see com.flagsmith.FlagsmithClient#getIdentityFlagsBatch(java.util.Collection)
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IdentityRequest {
+  private String identifier;
+  private Map<String, Object> traits;
+
+  public IdentityRequest(String identifier) {
+    this.identifier = identifier;
+  }
+}
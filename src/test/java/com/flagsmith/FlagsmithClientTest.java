@@ -20,13 +20,21 @@ import com.flagsmith.exceptions.FlagsmithApiError;
 import com.flagsmith.exceptions.FlagsmithClientError;
 import com.flagsmith.exceptions.FlagsmithRuntimeError;
 import com.flagsmith.flagengine.EvaluationContext;
+import com.flagsmith.flagengine.EvaluationPlan;
 import com.flagsmith.flagengine.EvaluationResult;
+import com.flagsmith.flagengine.FeatureContext;
+import com.flagsmith.flagengine.IdentityContext;
+import com.flagsmith.flagengine.SegmentCondition;
+import com.flagsmith.flagengine.SegmentContext;
+import com.flagsmith.flagengine.SegmentRule;
+import com.flagsmith.flagengine.segments.constants.SegmentConditions;
 import com.flagsmith.interfaces.FlagsmithCache;
 import com.flagsmith.models.BaseFlag;
 import com.flagsmith.models.DefaultFlag;
 import com.flagsmith.models.environments.EnvironmentModel;
 import com.flagsmith.models.features.FeatureStateModel;
 import com.flagsmith.models.Flags;
+import com.flagsmith.models.IdentityRequest;
 import com.flagsmith.models.SdkTraitModel;
 import com.flagsmith.models.Segment;
 import com.flagsmith.models.TraitConfig;
@@ -40,6 +48,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -569,6 +578,52 @@ public class FlagsmithClientTest {
         assertEquals(segments.get(0).getName(), "Test segment");
     }
 
+    @Test
+    public void testLocalEvaluation_getIdentitySegments_IgnoresUnrecognisedSegmentSource()
+            throws FlagsmithClientError {
+        // Given
+        FlagsmithConfig config = FlagsmithConfig.newBuilder().withLocalEvaluation(true).build();
+
+        EvaluationContext evaluationContext = FlagsmithTestHelper.evaluationContext();
+        List<SegmentRule> everyone = List.of(new SegmentRule().withType(SegmentRule.Type.ALL));
+        evaluationContext.getSegments()
+                .withAdditionalProperty("1", new SegmentContext()
+                        .withKey("1")
+                        .withName("api segment")
+                        .withRules(everyone)
+                        .withMetadata(Map.of("source", "API", "flagsmithId", 1)))
+                .withAdditionalProperty("2", new SegmentContext()
+                        .withKey("2")
+                        .withName("unrecognised source segment")
+                        .withRules(everyone)
+                        .withMetadata(Map.of("source", "SOMETHING_NEW", "flagsmithId", 2)))
+                .withAdditionalProperty("3", new SegmentContext()
+                        .withKey("3")
+                        .withName("malformed segment")
+                        .withRules(everyone)
+                        .withMetadata(Map.of("source", "API", "flagsmithId", "not an id")));
+
+        FlagsmithApiWrapper mockedApiWrapper = mock(FlagsmithApiWrapper.class);
+        when(mockedApiWrapper.getEvaluationContext()).thenReturn(evaluationContext);
+        when(mockedApiWrapper.getConfig()).thenReturn(config);
+
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .withFlagsmithApiWrapper(mockedApiWrapper)
+                .withConfiguration(config)
+                .setApiKey("ser.dummy-key")
+                .build();
+
+        // When
+        client.setEvaluationContext(evaluationContext);
+        List<Segment> segments = client.getIdentitySegments("identifier");
+
+        // Then
+        assertEquals(1, segments.size());
+        assertEquals("api segment", segments.get(0).getName());
+        assertEquals("some-value",
+                client.getIdentityFlags("identifier").getFeatureValue("some_feature"));
+    }
+
     @Test
     public void testUpdateEnvironment_DoesNothing_WhenGetEnvironmentThrowsExceptionAndEnvironmentExists() {
         // Given
@@ -779,13 +834,268 @@ public class FlagsmithClientTest {
         assertEquals(flagsWithOverride.getFeatureValue("some_feature"), "overridden-value");
     }
 
+    @Test
+    public void testLocalEvaluation_getIdentityFlagsForFeatures() throws FlagsmithClientError {
+        // Given
+        EvaluationContext evaluationContext = FlagsmithTestHelper.evaluationContext();
+
+        FlagsmithConfig config = FlagsmithConfig.newBuilder().withLocalEvaluation(true).build();
+
+        FlagsmithApiWrapper mockedApiWrapper = mock(FlagsmithApiWrapper.class);
+        when(mockedApiWrapper.getEvaluationContext())
+                .thenReturn(evaluationContext)
+                .thenReturn(null);
+        when(mockedApiWrapper.getConfig()).thenReturn(config);
+
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .withFlagsmithApiWrapper(mockedApiWrapper)
+                .withConfiguration(config)
+                .setApiKey("ser.dummy-key")
+                .build();
+
+        // When
+        Flags flags = client.getIdentityFlags(
+                "overridden-identity", new HashMap<>(), Set.of("some_feature"));
+        boolean enabled = client.isFeatureEnabled(
+                "overridden-identity", new HashMap<>(), "some_feature");
+
+        // Then
+        assertEquals(1, flags.getAllFlags().size());
+        assertEquals("overridden-value", flags.getFeatureValue("some_feature"));
+        assertEquals(
+                client.getIdentityFlags("overridden-identity").isFeatureEnabled("some_feature"),
+                enabled);
+        assertThrows(FlagsmithClientError.class,
+                () -> client.isFeatureEnabled("overridden-identity", null, "missing_feature"));
+    }
+
+    @Test
+    public void testLocalEvaluation_getIdentityFlagsBatch_ReturnsResultsInInputOrder()
+            throws FlagsmithClientError {
+        // Given
+        EvaluationContext evaluationContext = FlagsmithTestHelper.evaluationContext();
+
+        FlagsmithConfig config = FlagsmithConfig.newBuilder()
+                .withLocalEvaluation(true)
+                .withBatchEvaluationParallelism(2)
+                .build();
+
+        FlagsmithApiWrapper mockedApiWrapper = mock(FlagsmithApiWrapper.class);
+        when(mockedApiWrapper.getEvaluationContext())
+                .thenReturn(evaluationContext)
+                .thenReturn(null);
+        when(mockedApiWrapper.getConfig()).thenReturn(config);
+
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .withFlagsmithApiWrapper(mockedApiWrapper)
+                .withConfiguration(config)
+                .setApiKey("ser.dummy-key")
+                .build();
+
+        List<IdentityRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            requests.add(i == 42
+                    ? new IdentityRequest("overridden-identity")
+                    : new IdentityRequest("identity-" + i, Map.of("index", i)));
+        }
+
+        // When
+        List<Flags> results = client.getIdentityFlagsBatch(requests);
+
+        // Then
+        assertEquals(requests.size(), results.size());
+        for (int i = 0; i < requests.size(); ++i) {
+            Flags expected = client.getIdentityFlags(
+                    requests.get(i).getIdentifier(), requests.get(i).getTraits());
+            assertEquals(expected.getFeatureValue("some_feature"),
+                    results.get(i).getFeatureValue("some_feature"));
+        }
+        assertEquals("overridden-value", results.get(42).getFeatureValue("some_feature"));
+        assertEquals("some-value", results.get(41).getFeatureValue("some_feature"));
+
+        client.close();
+    }
+
+    @Test
+    public void testGetIdentityFlagsBatch_RequiresLocalEvaluation() {
+        // Given
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .setApiKey("api-key")
+                .build();
+
+        // When / Then
+        assertThrows(FlagsmithClientError.class,
+                () -> client.getIdentityFlagsBatch(List.of(new IdentityRequest("identity"))));
+    }
+
+    @Test
+    public void testLocalEvaluation_getIdentityFlags_CachesResultsAcrossUnrelatedChanges()
+            throws FlagsmithClientError {
+        // Given
+        FlagsmithConfig config = FlagsmithConfig.newBuilder()
+                .withLocalEvaluation(true)
+                .withLocalEvaluationCacheSize(100)
+                .build();
+
+        FlagsmithApiWrapper mockedApiWrapper = mock(FlagsmithApiWrapper.class);
+        when(mockedApiWrapper.getEvaluationContext())
+                .thenReturn(FlagsmithTestHelper.evaluationContext())
+                .thenReturn(null);
+        when(mockedApiWrapper.getConfig()).thenReturn(config);
+
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .withFlagsmithApiWrapper(mockedApiWrapper)
+                .withConfiguration(config)
+                .setApiKey("ser.dummy-key")
+                .build();
+
+        Map<String, Object> enterpriseTraits = new HashMap<>();
+        enterpriseTraits.put("plan", "enterprise");
+
+        try (MockedStatic<Engine> mockedEngine = mockStatic(Engine.class, CALLS_REAL_METHODS)) {
+            // When
+            client.getIdentityFlags("identity-a");
+            client.getIdentityFlags("identity-a");
+            client.getIdentityFlags("identity-b", enterpriseTraits);
+
+            // A new segment only identity-b is in
+            EvaluationContext updatedContext = FlagsmithTestHelper.evaluationContext();
+            FeatureContext someFeature = updatedContext.getFeatures().getAdditionalProperties()
+                    .values().stream()
+                    .filter((feature) -> feature.getName().equals("some_feature"))
+                    .findFirst()
+                    .get();
+            updatedContext.getSegments().setAdditionalProperty("enterprise", new SegmentContext()
+                    .withKey("enterprise")
+                    .withName("enterprise")
+                    .withRules(List.of(new SegmentRule()
+                            .withType(SegmentRule.Type.ALL)
+                            .withConditions(List.of(new SegmentCondition()
+                                    .withOperator(SegmentConditions.EQUAL)
+                                    .withProperty("plan")
+                                    .withValue("enterprise")))))
+                    .withOverrides(List.of(new FeatureContext(someFeature)
+                            .withValue("enterprise-value"))));
+            client.setEvaluationContext(updatedContext);
+
+            Flags identityAFlags = client.getIdentityFlags("identity-a");
+            Flags identityBFlags = client.getIdentityFlags("identity-b", enterpriseTraits);
+
+            // Then
+            // Only identity-b is evaluated again
+            mockedEngine.verify(
+                    () -> Engine.getEvaluationResult(
+                            any(EvaluationPlan.class), any(IdentityContext.class)),
+                    times(3));
+            assertEquals("enterprise-value", identityBFlags.getFeatureValue("some_feature"));
+            assertEquals(
+                    client.getIdentityFlags("identity-c").getFeatureValue("some_feature"),
+                    identityAFlags.getFeatureValue("some_feature"));
+        }
+    }
+
+    @Test
+    public void testLocalEvaluation_getIdentityFlagsBatch_UsesLocalEvaluationCache()
+            throws FlagsmithClientError {
+        // Given
+        FlagsmithConfig config = FlagsmithConfig.newBuilder()
+                .withLocalEvaluation(true)
+                .withLocalEvaluationCacheSize(100)
+                .build();
+
+        FlagsmithApiWrapper mockedApiWrapper = mock(FlagsmithApiWrapper.class);
+        when(mockedApiWrapper.getEvaluationContext())
+                .thenReturn(FlagsmithTestHelper.evaluationContext());
+        when(mockedApiWrapper.getConfig()).thenReturn(config);
+
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .withFlagsmithApiWrapper(mockedApiWrapper)
+                .withConfiguration(config)
+                .setApiKey("ser.dummy-key")
+                .build();
+
+        // When
+        List<Flags> results = client.getIdentityFlagsBatch(List.of(
+                new IdentityRequest("identity-a"),
+                new IdentityRequest("identity-b")));
+
+        try (MockedStatic<Engine> mockedEngine = mockStatic(Engine.class, CALLS_REAL_METHODS)) {
+            Flags identityAFlags = client.getIdentityFlags("identity-a");
+            Flags identityBFlags = client.getIdentityFlags("identity-b");
+
+            // Then
+            // Identities evaluated by the batch are not evaluated again
+            mockedEngine.verify(
+                    () -> Engine.getEvaluationResult(
+                            any(EvaluationPlan.class), any(IdentityContext.class)),
+                    never());
+            mockedEngine.verify(
+                    () -> Engine.evaluateFlags(
+                            any(EvaluationPlan.class), any(IdentityContext.class), any()),
+                    never());
+            assertEquals(results.get(0).getFlags(), identityAFlags.getFlags());
+            assertEquals(results.get(1).getFlags(), identityBFlags.getFlags());
+        }
+    }
+
+    @Test
+    public void testLocalEvaluation_getIdentityFlags_DoesNotCacheMutableTraitValues()
+            throws FlagsmithClientError {
+        // Given
+        FlagsmithConfig config = FlagsmithConfig.newBuilder()
+                .withLocalEvaluation(true)
+                .withLocalEvaluationCacheSize(100)
+                .build();
+
+        EvaluationContext evaluationContext = FlagsmithTestHelper.evaluationContext();
+        FeatureContext someFeature = evaluationContext.getFeatures().getAdditionalProperties()
+                .values().stream()
+                .filter((feature) -> feature.getName().equals("some_feature"))
+                .findFirst()
+                .get();
+        evaluationContext.getSegments().setAdditionalProperty("enterprise", new SegmentContext()
+                .withKey("enterprise")
+                .withName("enterprise")
+                .withRules(List.of(new SegmentRule()
+                        .withType(SegmentRule.Type.ALL)
+                        .withConditions(List.of(new SegmentCondition()
+                                .withOperator(SegmentConditions.EQUAL)
+                                .withProperty("plan")
+                                .withValue("enterprise")))))
+                .withOverrides(List.of(new FeatureContext(someFeature)
+                        .withValue("enterprise-value"))));
+
+        FlagsmithApiWrapper mockedApiWrapper = mock(FlagsmithApiWrapper.class);
+        when(mockedApiWrapper.getEvaluationContext()).thenReturn(evaluationContext);
+        when(mockedApiWrapper.getConfig()).thenReturn(config);
+
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .withFlagsmithApiWrapper(mockedApiWrapper)
+                .withConfiguration(config)
+                .setApiKey("ser.dummy-key")
+                .build();
+
+        // A trait value compared through its string, changed in place by the caller
+        StringBuilder plan = new StringBuilder("free");
+        Map<String, Object> traits = new HashMap<>();
+        traits.put("plan", plan);
+
+        // When
+        Flags freeFlags = client.getIdentityFlags("identity", traits);
+        plan.replace(0, plan.length(), "enterprise");
+        Flags enterpriseFlags = client.getIdentityFlags("identity", traits);
+
+        // Then
+        assertEquals("some-value", freeFlags.getFeatureValue("some_feature"));
+        assertEquals("enterprise-value", enterpriseFlags.getFeatureValue("some_feature"));
+    }
+
     @Test
     public void testLocalEvaluation_getEnvironmentFlags_NoTargeting() throws FlagsmithClientError {
         // Given
         EvaluationContext evaluationContext = FlagsmithTestHelper.evaluationContext();
-        EvaluationResult evaluationResult = Engine.getEvaluationResult(
-                new EvaluationContext(evaluationContext)
-                        .withSegments(null)
+        EvaluationResult evaluationResult = Engine.getEnvironmentEvaluationResult(
+                EvaluationPlan.compile(evaluationContext)
         );
 
         FlagsmithConfig config = FlagsmithConfig.newBuilder().withLocalEvaluation(true).build();
@@ -802,24 +1112,61 @@ public class FlagsmithClientTest {
                 .build();
 
         // When
-        try (MockedStatic<Engine> mockedEngine = mockStatic(Engine.class)) {
-                mockedEngine.when(
-                        () -> Engine.getEvaluationResult(
-                                new EvaluationContext(evaluationContext)
-                                        .withSegments(null)
-                        )
-                ).thenReturn(evaluationResult);
+        try (MockedStatic<Engine> mockedEngine = mockStatic(Engine.class, CALLS_REAL_METHODS)) {
+                client.setEvaluationContext(evaluationContext);
 
-                client.getEnvironmentFlags();
+                Flags flags = client.getEnvironmentFlags();
+                Flags flagsAgain = client.getEnvironmentFlags();
 
                 // Then
+                // Environment flags are evaluated once per environment
                 mockedEngine.verify(
-                        () -> Engine.getEvaluationResult(
-                                new EvaluationContext(evaluationContext)
-                                        .withSegments(null)
-                        )
+                        () -> Engine.getEnvironmentEvaluationResult(any(EvaluationPlan.class))
                 );
+                mockedEngine.verify(
+                        () -> Engine.getEvaluationResult(any(EvaluationContext.class)),
+                        never()
+                );
+                assertEquals(
+                        Flags.fromEvaluationResult(evaluationResult, null, null).getFlags(),
+                        flags.getFlags());
+                assertEquals(flags.getFlags(), flagsAgain.getFlags());
+        }
+    }
+
+    @Test
+    public void testLocalEvaluation_getEnvironmentFlags_ChangingFlagsDoesNotAffectOtherCalls()
+            throws FlagsmithClientError {
+        // Given
+        EvaluationContext evaluationContext = FlagsmithTestHelper.evaluationContext();
+        Map<String, BaseFlag> expectedFlags = Flags.fromEvaluationResult(
+                Engine.getEnvironmentEvaluationResult(EvaluationPlan.compile(evaluationContext)),
+                null, null).getFlags();
+
+        FlagsmithConfig config = FlagsmithConfig.newBuilder().withLocalEvaluation(true).build();
+
+        FlagsmithApiWrapper mockedApiWrapper = mock(FlagsmithApiWrapper.class);
+        when(mockedApiWrapper.getEvaluationContext())
+                .thenReturn(evaluationContext);
+        when(mockedApiWrapper.getConfig()).thenReturn(config);
+
+        FlagsmithClient client = FlagsmithClient.newBuilder()
+                .withFlagsmithApiWrapper(mockedApiWrapper)
+                .withConfiguration(config)
+                .setApiKey("ser.dummy-key")
+                .build();
+        client.setEvaluationContext(evaluationContext);
+
+        // When
+        Flags flags = client.getEnvironmentFlags();
+        for (BaseFlag flag : flags.getFlags().values()) {
+            flag.setEnabled(!flag.getEnabled());
+            flag.setValue("changed");
         }
+        flags.getFlags().put("added_feature", new DefaultFlag());
+
+        // Then
+        assertEquals(expectedFlags, client.getEnvironmentFlags().getFlags());
     }
 
     @Test
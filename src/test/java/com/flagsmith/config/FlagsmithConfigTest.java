@@ -3,12 +3,17 @@ package com.flagsmith.config;
 import static org.junit.Assert.assertNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.flagsmith.config.FlagsmithConfig.Protocol;
+import com.flagsmith.flagengine.utils.regex.JavaRegexEngine;
+import com.flagsmith.flagengine.utils.regex.LinearRegexEngine;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import okhttp3.ConnectionPool;
 import okhttp3.mock.MockInterceptor;
@@ -92,6 +97,69 @@ public class FlagsmithConfigTest {
     assertEquals(okhttp3.Protocol.HTTP_1_1, customFlagsmithConfig.getHttpClient().protocols().get(0));
   }
 
+  @Test
+  public void configTest_regexEngine() {
+    final FlagsmithConfig defaultFlagsmithConfig = FlagsmithConfig.newBuilder().build();
+
+    assertTrue(defaultFlagsmithConfig.getRegexEngine() instanceof JavaRegexEngine);
+
+    final LinearRegexEngine regexEngine = new LinearRegexEngine();
+    final FlagsmithConfig customFlagsmithConfig = FlagsmithConfig.newBuilder()
+        .withRegexEngine(regexEngine)
+        .build();
+
+    assertSame(regexEngine, customFlagsmithConfig.getRegexEngine());
+    assertThrows(IllegalArgumentException.class,
+        () -> FlagsmithConfig.newBuilder().withRegexEngine(null));
+  }
+
+  @Test
+  public void configTest_parallelSegmentEvaluation() {
+    assertNull(FlagsmithConfig.newBuilder().build().getSegmentParallelism());
+
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      final FlagsmithConfig flagsmithConfig = FlagsmithConfig.newBuilder()
+          .withParallelSegmentEvaluation(pool, 1000)
+          .build();
+
+      assertSame(pool, flagsmithConfig.getSegmentParallelism().getPool());
+      assertEquals(1000, flagsmithConfig.getSegmentParallelism().getThreshold());
+      assertThrows(IllegalArgumentException.class,
+          () -> FlagsmithConfig.newBuilder().withParallelSegmentEvaluation(null, 1000));
+      assertThrows(IllegalArgumentException.class,
+          () -> FlagsmithConfig.newBuilder().withParallelSegmentEvaluation(pool, 0));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void configTest_segmentMembershipMemoSize() {
+    assertNull(FlagsmithConfig.newBuilder().build().getSegmentMembershipMemoSize());
+
+    final FlagsmithConfig flagsmithConfig = FlagsmithConfig.newBuilder()
+        .withSegmentMembershipMemoSize(10000)
+        .build();
+
+    assertEquals(10000, flagsmithConfig.getSegmentMembershipMemoSize());
+    assertThrows(IllegalArgumentException.class,
+        () -> FlagsmithConfig.newBuilder().withSegmentMembershipMemoSize(0));
+  }
+
+  @Test
+  public void configTest_hashedPercentageMemoSize() {
+    assertNull(FlagsmithConfig.newBuilder().build().getHashedPercentageMemoSize());
+
+    final FlagsmithConfig flagsmithConfig = FlagsmithConfig.newBuilder()
+        .withHashedPercentageMemoSize(10000)
+        .build();
+
+    assertEquals(10000, flagsmithConfig.getHashedPercentageMemoSize());
+    assertThrows(IllegalArgumentException.class,
+        () -> FlagsmithConfig.newBuilder().withHashedPercentageMemoSize(0));
+  }
+
   private static Object readField(Object target, String fieldName) throws Exception {
     java.lang.reflect.Field field = target.getClass().getDeclaredField(fieldName);
     field.setAccessible(true);
@@ -0,0 +1,559 @@
+package com.flagsmith.flagengine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.flagsmith.flagengine.segments.constants.SegmentConditions;
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+public class EvaluationPlanTest {
+
+  private static EvaluationContext evaluationContext() {
+    FeatureContext multivariateFeature = new FeatureContext()
+        .withKey("1")
+        .withName("multivariate_feature")
+        .withEnabled(true)
+        .withValue("control")
+        .withMetadata(Map.of("flagsmithId", 1))
+        .withVariants(List.of(
+            new FeatureValue().withValue("second").withWeight(100.0).withPriority(2.0),
+            new FeatureValue().withValue("first").withWeight(0.0).withPriority(1.0)));
+
+    FeatureContext standardFeature = new FeatureContext()
+        .withKey("2")
+        .withName("standard_feature")
+        .withEnabled(false)
+        .withValue("default")
+        .withMetadata(Map.of("flagsmithId", 2));
+
+    SegmentContext segment = new SegmentContext()
+        .withKey("1")
+        .withName("premium_users")
+        .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            List.of(new SegmentCondition()
+                .withOperator(SegmentConditions.EQUAL)
+                .withProperty("plan")
+                .withValue("premium")))))
+        .withOverrides(List.of(new FeatureContext(standardFeature)
+            .withEnabled(true)
+            .withValue("overridden")));
+
+    return new EvaluationContext()
+        .withEnvironment(new EnvironmentContext().withKey("key").withName("Environment"))
+        .withFeatures(new Features()
+            .withAdditionalProperty("multivariate_feature", multivariateFeature)
+            .withAdditionalProperty("standard_feature", standardFeature))
+        .withSegments(new Segments().withAdditionalProperty("1", segment));
+  }
+
+  @Test
+  public void testGetEvaluationResult_ReturnsPrecomputedReasons() {
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext());
+    IdentityContext identity = new IdentityContext()
+        .withIdentifier("user")
+        .withTraits(new Traits().withAdditionalProperty("plan", "premium"));
+
+    EvaluationResult result = Engine.getEvaluationResult(plan, identity);
+
+    FlagResult multivariateFlag = result.getFlags().getAdditionalProperties()
+        .get("multivariate_feature");
+    assertThat(multivariateFlag.getValue()).isEqualTo("second");
+    assertThat(multivariateFlag.getReason()).isEqualTo("SPLIT; weight=100");
+
+    FlagResult standardFlag = result.getFlags().getAdditionalProperties()
+        .get("standard_feature");
+    assertThat(standardFlag.getValue()).isEqualTo("overridden");
+    assertThat(standardFlag.getReason()).isEqualTo("TARGETING_MATCH; segment=premium_users");
+    assertThat(result.getSegments()).extracting(SegmentResult::getName)
+        .containsExactly("premium_users");
+  }
+
+  @Test
+  public void testGetEvaluationResult_PlanIsReusableAcrossIdentities() {
+    EvaluationContext context = evaluationContext();
+    EvaluationPlan plan = EvaluationPlan.compile(context);
+
+    for (String planName : List.of("premium", "free", "premium")) {
+      IdentityContext identity = new IdentityContext()
+          .withIdentifier("user_" + planName)
+          .withTraits(new Traits().withAdditionalProperty("plan", planName));
+
+      EvaluationResult planResult = Engine.getEvaluationResult(plan, identity);
+      EvaluationResult contextResult = Engine.getEvaluationResult(
+          new EvaluationContext(context).withIdentity(identity));
+
+      assertThat(planResult).usingRecursiveComparison().isEqualTo(contextResult);
+    }
+    assertThat(plan.getContext()).isSameAs(context);
+  }
+
+  @Test
+  public void testGetEvaluationResult_ForFeatures_EvaluatesOnlyOverridingSegments() {
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext());
+    IdentityContext identity = new IdentityContext()
+        .withIdentifier("user")
+        .withTraits(new Traits().withAdditionalProperty("plan", "premium"));
+
+    EvaluationResult standardResult = Engine.getEvaluationResult(
+        plan, identity, Set.of("standard_feature", "missing_feature"));
+    EvaluationResult multivariateResult = Engine.getEvaluationResult(
+        plan, identity, Set.of("multivariate_feature"));
+
+    assertThat(standardResult.getFlags().getAdditionalProperties()).containsOnlyKeys(
+        "standard_feature");
+    assertThat(standardResult.getFlags().getAdditionalProperties().get("standard_feature"))
+        .extracting(FlagResult::getValue, FlagResult::getReason)
+        .containsExactly("overridden", "TARGETING_MATCH; segment=premium_users");
+    assertThat(standardResult.getSegments()).extracting(SegmentResult::getName)
+        .containsExactly("premium_users");
+
+    assertThat(multivariateResult.getFlags().getAdditionalProperties()).containsOnlyKeys(
+        "multivariate_feature");
+    assertThat(multivariateResult.getFlags().getAdditionalProperties()
+        .get("multivariate_feature").getValue()).isEqualTo("second");
+    assertThat(multivariateResult.getSegments()).isEmpty();
+  }
+
+  @Test
+  public void testGetSegmentIndexes_MatchesEvaluationResultSegments() {
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext());
+
+    for (String planName : List.of("premium", "free")) {
+      IdentityContext identity = new IdentityContext()
+          .withIdentifier("user")
+          .withTraits(new Traits().withAdditionalProperty("plan", planName));
+
+      int[] indexes = Engine.getSegmentIndexes(plan, identity);
+
+      assertThat(Arrays.stream(indexes).mapToObj(plan.getSegments()::get))
+          .extracting(SegmentContext::getName)
+          .containsExactlyElementsOf(Engine.getEvaluationResult(plan, identity).getSegments()
+              .stream().map(SegmentResult::getName).collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void testEvaluateFlags_MatchesEvaluationResultFlags() {
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext());
+
+    for (String planName : List.of("premium", "free", "premium")) {
+      IdentityContext identity = new IdentityContext()
+          .withIdentifier("user_" + planName)
+          .withTraits(new Traits().withAdditionalProperty("plan", planName));
+
+      Map<String, FlagResult> visitedFlags = new HashMap<>();
+      Engine.evaluateFlags(plan, identity, (name, enabled, value, metadata) ->
+          visitedFlags.put(name, new FlagResult()
+              .withName(name)
+              .withEnabled(enabled)
+              .withValue(value)
+              .withMetadata(metadata)));
+
+      Map<String, FlagResult> resultFlags = Engine.getEvaluationResult(plan, identity)
+          .getFlags().getAdditionalProperties();
+      assertThat(visitedFlags).containsOnlyKeys(resultFlags.keySet());
+      resultFlags.forEach((name, flagResult) -> assertThat(visitedFlags.get(name))
+          .usingRecursiveComparison()
+          .ignoringFields("reason")
+          .isEqualTo(flagResult));
+    }
+  }
+
+  @Test
+  public void testGetEvaluationResult_SkipsSegmentsMissingRequiredTraits() {
+    Segments segments = new Segments();
+    for (int i = 0; i < 100; i++) {
+      segments.setAdditionalProperty(String.valueOf(i), new SegmentContext()
+          .withKey(String.valueOf(i))
+          .withName("segment_" + i)
+          .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+              List.of(new SegmentCondition()
+                  .withOperator(SegmentConditions.GREATER_THAN_INCLUSIVE)
+                  .withProperty("trait_" + i)
+                  .withValue(0))))));
+    }
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext().withSegments(segments));
+
+    EvaluationResult result = Engine.getEvaluationResult(plan, new IdentityContext()
+        .withIdentifier("user")
+        .withTraits(new Traits()
+            .withAdditionalProperty("trait_3", 1)
+            .withAdditionalProperty("trait_70", 1)
+            .withAdditionalProperty("trait_99", null)
+            .withAdditionalProperty("unknown", 1)));
+
+    assertThat(result.getSegments()).extracting(SegmentResult::getName)
+        .containsExactly("segment_3", "segment_70");
+  }
+
+  @Test
+  public void testGetEvaluationResult_FindsSegmentsThroughAnchorConditions() {
+    Segments segments = new Segments();
+    List<SegmentCondition> conditions = List.of(
+        new SegmentCondition()
+            .withOperator(SegmentConditions.EQUAL)
+            .withProperty("plan")
+            .withValue("enterprise"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.IN)
+            .withProperty("country")
+            .withValue(List.of("GB", "FR")),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.EQUAL)
+            .withProperty("seats")
+            .withValue("05"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.REGEX)
+            .withProperty("email")
+            .withValue("@example\\.com$"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.EQUAL)
+            .withProperty("plan")
+            .withValue("free"));
+    for (int i = 0; i < conditions.size(); i++) {
+      segments.setAdditionalProperty(String.valueOf(i), new SegmentContext()
+          .withKey(String.valueOf(i))
+          .withName("segment_" + i)
+          .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+              List.of(conditions.get(i))))));
+    }
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext().withSegments(segments));
+
+    EvaluationResult result = Engine.getEvaluationResult(plan, new IdentityContext()
+        .withIdentifier("user")
+        .withTraits(new Traits()
+            .withAdditionalProperty("plan", "enterprise")
+            .withAdditionalProperty("country", "FR")
+            .withAdditionalProperty("seats", 5)
+            .withAdditionalProperty("email", "user@example.com")));
+
+    assertThat(result.getSegments()).extracting(SegmentResult::getName)
+        .containsExactly("segment_0", "segment_1", "segment_2", "segment_3");
+  }
+
+  @Test
+  public void testGetEvaluationResult_FindsSegmentsThroughThresholdConditions() {
+    Segments segments = new Segments();
+    List<SegmentCondition> conditions = List.of(
+        new SegmentCondition()
+            .withOperator(SegmentConditions.LESS_THAN)
+            .withProperty("age")
+            .withValue("10"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.GREATER_THAN)
+            .withProperty("age")
+            .withValue("10"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.LESS_THAN_INCLUSIVE)
+            .withProperty("age")
+            .withValue("10"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.GREATER_THAN_INCLUSIVE)
+            .withProperty("age")
+            .withValue("10"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.GREATER_THAN)
+            .withProperty("age")
+            .withValue("20"));
+    for (int i = 0; i < conditions.size(); i++) {
+      segments.setAdditionalProperty(String.valueOf(i), new SegmentContext()
+          .withKey(String.valueOf(i))
+          .withName("segment_" + i)
+          .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+              List.of(conditions.get(i))))));
+    }
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext().withSegments(segments));
+
+    Map<Object, List<String>> expectedSegmentNames = Map.of(
+        9, List.of("segment_0", "segment_2"),
+        10, List.of("segment_2", "segment_3"),
+        "21", List.of("segment_1", "segment_3", "segment_4"),
+        // Values that are not integers are compared as before.
+        "ten", List.of("segment_1", "segment_3", "segment_4"));
+    for (Map.Entry<Object, List<String>> entry : expectedSegmentNames.entrySet()) {
+      EvaluationResult result = Engine.getEvaluationResult(plan, new IdentityContext()
+          .withIdentifier("user")
+          .withTraits(new Traits().withAdditionalProperty("age", entry.getKey())));
+
+      assertThat(result.getSegments()).extracting(SegmentResult::getName)
+          .containsExactlyElementsOf(entry.getValue());
+    }
+  }
+
+  @Test
+  public void testGetEnvironmentEvaluationResult_IgnoresSegmentsAndVariants() {
+    EvaluationPlan plan = EvaluationPlan.compile(evaluationContext());
+
+    EvaluationResult result = Engine.getEnvironmentEvaluationResult(plan);
+
+    assertThat(result.getSegments()).isEmpty();
+    assertThat(result.getFlags().getAdditionalProperties().get("multivariate_feature"))
+        .extracting(FlagResult::getValue, FlagResult::getReason)
+        .containsExactly("control", "DEFAULT");
+    assertThat(result.getFlags().getAdditionalProperties().get("standard_feature"))
+        .extracting(FlagResult::getValue, FlagResult::getReason)
+        .containsExactly("default", "DEFAULT");
+  }
+
+  @Test
+  public void testGetEvaluationResult_IdentityOverrideSegmentsKeepSegmentOrder() {
+    FeatureContext standardFeature = evaluationContext().getFeatures()
+        .getAdditionalProperties().get("standard_feature");
+    SegmentContext identityOverrides = new SegmentContext()
+        .withKey("")
+        .withName("identity_overrides")
+        .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            List.of(new SegmentCondition()
+                .withOperator(SegmentConditions.IN)
+                .withProperty("$.identity.identifier")
+                .withValue(List.of("overridden_user", "other_user"))))))
+        .withOverrides(List.of(new FeatureContext(standardFeature)
+            .withValue("identity_override")
+            .withPriority(EngineConstants.STRONGEST_PRIORITY)));
+    EvaluationContext context = evaluationContext();
+    Segments segments = new Segments().withAdditionalProperty("0", identityOverrides);
+    context.getSegments().getAdditionalProperties().forEach(segments::setAdditionalProperty);
+    EvaluationPlan plan = EvaluationPlan.compile(context.withSegments(segments));
+
+    EvaluationResult overriddenResult = Engine.getEvaluationResult(plan, new IdentityContext()
+        .withIdentifier("overridden_user")
+        .withTraits(new Traits().withAdditionalProperty("plan", "premium")));
+    EvaluationResult otherResult = Engine.getEvaluationResult(plan, new IdentityContext()
+        .withIdentifier("user")
+        .withTraits(new Traits().withAdditionalProperty("plan", "premium")));
+
+    assertThat(overriddenResult.getSegments()).extracting(SegmentResult::getName)
+        .containsExactly("identity_overrides", "premium_users");
+    assertThat(overriddenResult.getFlags().getAdditionalProperties().get("standard_feature"))
+        .extracting(FlagResult::getValue, FlagResult::getReason)
+        .containsExactly("identity_override", "TARGETING_MATCH; segment=identity_overrides");
+    assertThat(otherResult.getSegments()).extracting(SegmentResult::getName)
+        .containsExactly("premium_users");
+  }
+
+  @Test
+  public void testGetEvaluationResult_ParallelSegments_MatchSequentialResults() {
+    EvaluationContext context = evaluationContext();
+    List<FeatureContext> features = List.copyOf(
+        context.getFeatures().getAdditionalProperties().values());
+    Segments segments = new Segments();
+    for (int i = 0; i < 500; i++) {
+      // Anchored, threshold, unanchored and identifier segments, overriding
+      // features with tied priorities.
+      SegmentCondition condition;
+      switch (i % 4) {
+        case 0:
+          condition = new SegmentCondition()
+              .withOperator(SegmentConditions.EQUAL)
+              .withProperty("plan")
+              .withValue("plan_" + i % 7);
+          break;
+        case 1:
+          condition = new SegmentCondition()
+              .withOperator(SegmentConditions.GREATER_THAN)
+              .withProperty("seats")
+              .withValue(String.valueOf(i % 50));
+          break;
+        case 2:
+          condition = new SegmentCondition()
+              .withOperator(SegmentConditions.PERCENTAGE_SPLIT)
+              .withValue("30");
+          break;
+        default:
+          condition = new SegmentCondition()
+              .withOperator(SegmentConditions.IN)
+              .withProperty("$.identity.identifier")
+              .withValue(List.of("user_" + i % 11));
+          break;
+      }
+      segments.setAdditionalProperty(String.valueOf(i), new SegmentContext()
+          .withKey(String.valueOf(i))
+          .withName("segment_" + i)
+          .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL)
+              .withConditions(List.of(condition))))
+          .withOverrides(List.of(new FeatureContext(features.get(i % features.size()))
+              .withValue("value_" + i)
+              .withPriority((double) (i % 3)))));
+    }
+    context.withSegments(segments);
+    EvaluationPlan sequentialPlan = EvaluationPlan.compile(context);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      EvaluationPlan parallelPlan = EvaluationPlan.compile(context,
+          EvaluationPlanOptions.newBuilder()
+              .withSegmentParallelism(new SegmentParallelism(pool, 1))
+              .build());
+
+      for (int i = 0; i < 40; i++) {
+        IdentityContext identity = new IdentityContext()
+            .withIdentifier("user_" + i)
+            .withTraits(new Traits()
+                .withAdditionalProperty("plan", "plan_" + i % 7)
+                .withAdditionalProperty("seats", i));
+
+        assertThat(Engine.getEvaluationResult(parallelPlan, identity))
+            .isEqualTo(Engine.getEvaluationResult(sequentialPlan, identity));
+        assertThat(Engine.getEvaluationResult(
+            parallelPlan, identity, Set.of("standard_feature")))
+            .isEqualTo(Engine.getEvaluationResult(
+                sequentialPlan, identity, Set.of("standard_feature")));
+        assertThat(Engine.getSegmentIndexes(parallelPlan, identity))
+            .isEqualTo(Engine.getSegmentIndexes(sequentialPlan, identity));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testGetEvaluationResult_MembershipMemo_MatchesUnmemoisedResults() {
+    EvaluationContext context = evaluationContext();
+    Segments segments = new Segments();
+    List<SegmentCondition> conditions = List.of(
+        new SegmentCondition()
+            .withOperator(SegmentConditions.EQUAL)
+            .withProperty("plan")
+            .withValue("premium"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.GREATER_THAN_INCLUSIVE)
+            .withProperty("app_version")
+            .withValue("2"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.PERCENTAGE_SPLIT)
+            .withProperty("region")
+            .withValue("50"),
+        // Identity dependent, so never memoised
+        new SegmentCondition()
+            .withOperator(SegmentConditions.PERCENTAGE_SPLIT)
+            .withValue("50"),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.IN)
+            .withProperty("$.identity.identifier")
+            .withValue(List.of("user_1", "user_2")),
+        new SegmentCondition()
+            .withOperator(SegmentConditions.EQUAL)
+            .withProperty("$.identity.traits.plan")
+            .withValue("premium"));
+    for (int i = 0; i < conditions.size(); i++) {
+      segments.setAdditionalProperty(String.valueOf(i), new SegmentContext()
+          .withKey(String.valueOf(i))
+          .withName("segment_" + i)
+          .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+              List.of(conditions.get(i))))));
+    }
+    context.withSegments(segments);
+    EvaluationPlan plan = EvaluationPlan.compile(context);
+    SegmentMembershipMemo memo = new SegmentMembershipMemo(1000);
+    EvaluationPlan memoisedPlan = EvaluationPlan.compile(context,
+        EvaluationPlanOptions.newBuilder().withSegmentMembershipMemo(memo).build());
+
+    for (int i = 0; i < 100; i++) {
+      IdentityContext identity = new IdentityContext()
+          .withIdentifier("user_" + i)
+          .withTraits(new Traits()
+              .withAdditionalProperty("plan", i % 3 == 0 ? "premium" : "free")
+              .withAdditionalProperty("app_version", i % 4)
+              .withAdditionalProperty("region", i % 2 == 0 ? "eu" : "us"));
+
+      assertThat(Engine.getEvaluationResult(memoisedPlan, identity))
+          .isEqualTo(Engine.getEvaluationResult(plan, identity));
+    }
+
+    // Only the first three segments are memoised. The first one is only
+    // evaluated for the 34 premium identities, and the second one for the 50
+    // identities with an app version of 2 or 3, through indexes.
+    assertThat(memo.getMissCount()).isEqualTo(1 + 2 + 2);
+    assertThat(memo.getHitCount()).isEqualTo(34 + 50 + 100 - 5);
+  }
+
+  @Test
+  public void testGetEvaluationResult_MembershipMemo_SegmentsReadingDifferentTraitCounts() {
+    EvaluationContext context = evaluationContext();
+    SegmentCondition premiumPlan = new SegmentCondition()
+        .withOperator(SegmentConditions.CONTAINS)
+        .withProperty("plan")
+        .withValue("prem");
+    SegmentCondition europeanRegion = new SegmentCondition()
+        .withOperator(SegmentConditions.CONTAINS)
+        .withProperty("region")
+        .withValue("e");
+    Segments segments = new Segments();
+    segments.setAdditionalProperty("0", new SegmentContext()
+        .withKey("0")
+        .withName("premium_european_users")
+        .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            List.of(premiumPlan, europeanRegion)))));
+    segments.setAdditionalProperty("1", new SegmentContext()
+        .withKey("1")
+        .withName("premium_users")
+        .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            List.of(premiumPlan)))));
+    context.withSegments(segments);
+    EvaluationPlan plan = EvaluationPlan.compile(context);
+    SegmentMembershipMemo memo = new SegmentMembershipMemo(1000);
+    EvaluationPlan memoisedPlan = EvaluationPlan.compile(context,
+        EvaluationPlanOptions.newBuilder().withSegmentMembershipMemo(memo).build());
+
+    for (int i = 0; i < 100; i++) {
+      String region = i % 3 == 0 ? "eu" : "us";
+      IdentityContext identity = new IdentityContext()
+          .withIdentifier("user_" + i)
+          .withTraits(new Traits()
+              .withAdditionalProperty("plan", i % 2 == 0 ? "premium" : "free")
+              .withAdditionalProperty("region",
+                  i % 5 == 0 ? new StringBuilder(region) : region));
+
+      assertThat(Engine.getEvaluationResult(memoisedPlan, identity))
+          .isEqualTo(Engine.getEvaluationResult(plan, identity));
+    }
+
+    // The 20 identities with a region that can't be kept in a key always
+    // evaluate the first segment, the others share 4 keys for it. All of
+    // them share 2 keys for the second segment.
+    assertThat(memo.getMissCount()).isEqualTo(4 + 2);
+    assertThat(memo.getHitCount()).isEqualTo(80 - 4 + 100 - 2);
+  }
+
+  @Test
+  public void testGetEvaluationResult_PercentageMemo_MatchesUnmemoisedResults() {
+    EvaluationContext context = evaluationContext();
+    FeatureContext multivariateFeature = context.getFeatures().getAdditionalProperties()
+        .get("multivariate_feature");
+    context.getSegments().setAdditionalProperty("2", new SegmentContext()
+        .withKey("2")
+        .withName("split_users")
+        .withRules(List.of(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            List.of(new SegmentCondition()
+                .withOperator(SegmentConditions.PERCENTAGE_SPLIT)
+                .withValue("50")))))
+        .withOverrides(List.of(new FeatureContext(multivariateFeature)
+            .withVariants(List.of(
+                new FeatureValue().withValue("a").withWeight(50.0).withPriority(1.0),
+                new FeatureValue().withValue("b").withWeight(50.0).withPriority(2.0))))));
+    EvaluationPlan plan = EvaluationPlan.compile(context);
+    HashedPercentageMemo memo = new HashedPercentageMemo(1 << 16);
+    EvaluationPlan memoisedPlan = EvaluationPlan.compile(context,
+        EvaluationPlanOptions.newBuilder().withHashedPercentageMemo(memo).build());
+
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 100; i++) {
+        IdentityContext identity = new IdentityContext().withIdentifier("user_" + i);
+
+        assertThat(Engine.getEvaluationResult(memoisedPlan, identity))
+            .isEqualTo(Engine.getEvaluationResult(plan, identity));
+      }
+    }
+
+    // Each identity hashes once for the split and once for the variant of
+    // the multivariate feature, overridden by the split segment or not.
+    assertThat(memo.getMissCount()).isEqualTo(200);
+    assertThat(memo.getHitCount()).isEqualTo(200);
+  }
+}
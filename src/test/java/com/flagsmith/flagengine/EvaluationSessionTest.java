@@ -0,0 +1,133 @@
+package com.flagsmith.flagengine;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.flagsmith.flagengine.segments.constants.SegmentConditions;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class EvaluationSessionTest {
+
+  private static final List<SegmentCondition> CONDITIONS = List.of(
+      new SegmentCondition()
+          .withOperator(SegmentConditions.EQUAL)
+          .withProperty("plan")
+          .withValue("premium"),
+      new SegmentCondition()
+          .withOperator(SegmentConditions.GREATER_THAN)
+          .withProperty("cart_value")
+          .withValue("100"),
+      new SegmentCondition()
+          .withOperator(SegmentConditions.LESS_THAN_INCLUSIVE)
+          .withProperty("page_count")
+          .withValue("3"),
+      new SegmentCondition()
+          .withOperator(SegmentConditions.IS_NOT_SET)
+          .withProperty("plan"),
+      new SegmentCondition()
+          .withOperator(SegmentConditions.EQUAL)
+          .withProperty("$.identity.traits.country")
+          .withValue("FR"),
+      new SegmentCondition()
+          .withOperator(SegmentConditions.PERCENTAGE_SPLIT)
+          .withValue("50"),
+      new SegmentCondition()
+          .withOperator(SegmentConditions.IN)
+          .withProperty("$.identity.identifier")
+          .withValue(List.of("user")));
+
+  private static final List<String> TRAIT_KEYS = List.of(
+      "plan", "cart_value", "page_count", "country", "unused");
+
+  private static EvaluationPlan evaluationPlan(Random random) {
+    List<FeatureContext> features = List.of(
+        new FeatureContext().withKey("1").withName("checkout").withEnabled(false)
+            .withValue("default"),
+        new FeatureContext().withKey("2").withName("banner").withEnabled(true)
+            .withValue("default"),
+        new FeatureContext().withKey("3").withName("theme").withEnabled(true)
+            .withValue("light"));
+    Features contextFeatures = new Features();
+    for (FeatureContext feature : features) {
+      contextFeatures.setAdditionalProperty(feature.getName(), feature);
+    }
+
+    Segments segments = new Segments();
+    for (int i = 0; i < 30; i++) {
+      SegmentRule.Type type = random.nextBoolean() ? SegmentRule.Type.ALL : SegmentRule.Type.ANY;
+      segments.setAdditionalProperty(String.valueOf(i), new SegmentContext()
+          .withKey(String.valueOf(i))
+          .withName("segment_" + i)
+          .withRules(List.of(new SegmentRule().withType(type).withConditions(List.of(
+              CONDITIONS.get(random.nextInt(CONDITIONS.size())),
+              CONDITIONS.get(random.nextInt(CONDITIONS.size()))))))
+          .withOverrides(List.of(new FeatureContext(features.get(i % features.size()))
+              .withValue("value_" + i)
+              .withPriority((double) random.nextInt(3)))));
+    }
+
+    return EvaluationPlan.compile(new EvaluationContext()
+        .withEnvironment(new EnvironmentContext().withKey("key").withName("Environment"))
+        .withFeatures(contextFeatures)
+        .withSegments(segments));
+  }
+
+  private static Object randomTraitValue(Random random, String key) {
+    switch (random.nextInt(4)) {
+      case 0:
+        return null;
+      case 1:
+        return key.equals("plan") ? "premium" : "FR";
+      default:
+        return random.nextInt(200);
+    }
+  }
+
+  @Test
+  public void testUpdateTrait_MatchesFullEvaluation() {
+    Random random = new Random(42);
+    for (int i = 0; i < 20; i++) {
+      EvaluationPlan plan = evaluationPlan(random);
+      Traits traits = new Traits().withAdditionalProperty("plan", "free");
+      IdentityContext identity = new IdentityContext()
+          .withIdentifier(random.nextBoolean() ? "user" : "other_user")
+          .withTraits(traits);
+      EvaluationSession session = new EvaluationSession(plan, identity);
+      assertThat(session.getResult()).isEqualTo(Engine.getEvaluationResult(plan, identity));
+
+      for (int j = 0; j < 50; j++) {
+        String key = TRAIT_KEYS.get(random.nextInt(TRAIT_KEYS.size()));
+        Object value = randomTraitValue(random, key);
+        Traits updatedTraits = new Traits(traits);
+        if (value != null) {
+          updatedTraits.setAdditionalProperty(key, value);
+        } else {
+          updatedTraits.getAdditionalProperties().remove(key);
+        }
+        traits = updatedTraits;
+
+        EvaluationResult result = session.updateTrait(key, value);
+
+        assertThat(result).isEqualTo(Engine.getEvaluationResult(
+            plan, new IdentityContext(identity).withTraits(traits)));
+      }
+      // The identity the session started from is left as it was.
+      assertThat(identity.getTraits().getAdditionalProperties())
+          .isEqualTo(Map.of("plan", "free"));
+    }
+  }
+
+  @Test
+  public void testUpdateTrait_UnreadTrait_KeepsResult() {
+    EvaluationPlan plan = evaluationPlan(new Random(42));
+    EvaluationSession session = new EvaluationSession(plan, new IdentityContext()
+        .withIdentifier("user")
+        .withTraits(new Traits().withAdditionalProperty("plan", "premium")));
+    EvaluationResult result = session.getResult();
+
+    assertThat(session.updateTrait("unused", 1)).isSameAs(result);
+    assertThat(session.updateTrait("plan", "premium")).isSameAs(result);
+  }
+}
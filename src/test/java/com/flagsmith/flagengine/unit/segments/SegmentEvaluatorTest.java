@@ -1,11 +1,19 @@
 package com.flagsmith.flagengine.unit.segments;
 
 import com.flagsmith.flagengine.EvaluationContext;
+import com.flagsmith.flagengine.IdentityContext;
 import com.flagsmith.flagengine.SegmentCondition;
 import com.flagsmith.flagengine.SegmentContext;
 import com.flagsmith.flagengine.SegmentRule;
+import com.flagsmith.flagengine.Traits;
+import com.flagsmith.flagengine.segments.EvaluationScope;
+import com.flagsmith.flagengine.segments.SegmentCompiler;
 import com.flagsmith.flagengine.segments.SegmentEvaluator;
+import com.flagsmith.flagengine.segments.SegmentPredicate;
 import com.flagsmith.flagengine.segments.constants.SegmentConditions;
+import com.flagsmith.flagengine.utils.regex.CompiledRegex;
+import com.flagsmith.flagengine.utils.regex.JavaRegexEngine;
+import com.flagsmith.flagengine.utils.regex.RegexEngine;
 import com.flagsmith.mappers.EngineMappers;
 import com.flagsmith.models.TraitModel;
 
@@ -13,13 +21,16 @@ import static com.flagsmith.flagengine.unit.segments.IdentitySegmentFixtures.*;
 import com.flagsmith.FlagsmithTestHelper;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 
 public class SegmentEvaluatorTest {
@@ -100,4 +111,427 @@ public class SegmentEvaluatorTest {
     // The result is as we expect from the DataProvider definition
     Assertions.assertEquals(inSegment, expectedResult);
   }
+
+  @Test
+  public void testSegmentPredicate_IsReusableAcrossContexts() {
+    // Given
+    // A segment combining parsed condition values, compiled once
+    SegmentContext segment = new SegmentContext().withKey("1").withName("testSegment").withRules(
+        Arrays.asList(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            Arrays.asList(
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.IN)
+                    .withProperty("country")
+                    .withValue("GB,FR,DE"),
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.REGEX)
+                    .withProperty("email")
+                    .withValue(".*@example\\.com$")))));
+    SegmentPredicate predicate = SegmentPredicate.compile(segment);
+
+    // When / Then
+    // The compiled predicate agrees with the evaluator for every context
+    List<Map<String, Object>> traitMaps = Arrays.asList(
+        Map.of("country", "GB", "email", "user@example.com"),
+        Map.of("country", "US", "email", "user@example.com"),
+        Map.of("country", "FR", "email", "user@example.org"),
+        Map.of("country", "DE"));
+    List<Boolean> expectedResults = Arrays.asList(true, false, false, false);
+
+    for (int i = 0; i < traitMaps.size(); i++) {
+      EvaluationContext context = EngineMappers.mapContextAndIdentityDataToContext(
+          FlagsmithTestHelper.evaluationContext(), "foo", traitMaps.get(i));
+
+      Assertions.assertEquals(expectedResults.get(i), predicate.matches(context));
+      Assertions.assertEquals(expectedResults.get(i),
+          SegmentEvaluator.isContextInSegment(context, segment));
+    }
+  }
+
+  private static Stream<Arguments> jsonPathConditions() {
+    return Stream.of(
+        Arguments.of("$.identity.identifier", "foo", Map.of(), true),
+        Arguments.of("$.identity.identifier", "bar", Map.of(), false),
+        Arguments.of("$.identity.identifier", "bar",
+            Map.of("$.identity.identifier", "bar"), true),
+        Arguments.of("$.identity.traits.plan", "premium", Map.of("plan", "premium"), true),
+        Arguments.of("$.identity.traits.plan", "premium", Map.of("plan", "free"), false),
+        Arguments.of("$.identity", "foo", Map.of(), false),
+        Arguments.of("$.identity[", "foo", Map.of(), false)
+    );
+  }
+
+  @ParameterizedTest
+  @MethodSource("jsonPathConditions")
+  public void testJsonPathConditions(String conditionProperty, String conditionValue,
+                                     Map<String, Object> traits, Boolean expectedResult) {
+    // Given
+    // An identity with the traits as defined in the DataProvider
+    final EvaluationContext context = EngineMappers.mapContextAndIdentityDataToContext(
+        FlagsmithTestHelper.evaluationContext(), "foo", traits);
+
+    // And a segment matching the JSONPath property against the value
+    SegmentContext segment = new SegmentContext().withName("testSegment").withRules(
+        Arrays.asList(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            Arrays.asList(new SegmentCondition()
+                .withOperator(SegmentConditions.EQUAL)
+                .withProperty(conditionProperty)
+                .withValue(conditionValue)))));
+
+    // When / Then
+    Assertions.assertEquals(expectedResult,
+        SegmentEvaluator.isContextInSegment(context, segment));
+  }
+
+  @Test
+  public void testSegmentPredicate_RequiredTraits() {
+    // Given
+    // A segment whose rules need some of the traits they read
+    SegmentContext segment = new SegmentContext().withKey("1").withName("testSegment").withRules(
+        Arrays.asList(
+            new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(Arrays.asList(
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.EQUAL)
+                    .withProperty("plan")
+                    .withValue("premium"),
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.IS_NOT_SET)
+                    .withProperty("banned"),
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.CONTAINS)
+                    .withProperty("nickname")
+                    .withValue("ul"),
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.EQUAL)
+                    .withProperty("$.identity.identifier")
+                    .withValue("foo"))),
+            new SegmentRule().withType(SegmentRule.Type.ALL).withRules(Arrays.asList(
+                new SegmentRule().withType(SegmentRule.Type.ANY).withConditions(Arrays.asList(
+                    new SegmentCondition()
+                        .withOperator(SegmentConditions.REGEX)
+                        .withProperty("email")
+                        .withValue(".*@example\\.com$"),
+                    new SegmentCondition()
+                        .withOperator(SegmentConditions.IN)
+                        .withProperty("email")
+                        .withValue("admin"))),
+                new SegmentRule().withType(SegmentRule.Type.ANY).withConditions(Arrays.asList(
+                    new SegmentCondition()
+                        .withOperator(SegmentConditions.IS_SET)
+                        .withProperty("country"),
+                    new SegmentCondition()
+                        .withOperator(SegmentConditions.IS_SET)
+                        .withProperty("region"))),
+                new SegmentRule().withType(SegmentRule.Type.NONE).withConditions(Arrays.asList(
+                    new SegmentCondition()
+                        .withOperator(SegmentConditions.EQUAL)
+                        .withProperty("tier")
+                        .withValue("free")))))));
+
+    // When
+    SegmentPredicate predicate = SegmentPredicate.compile(segment);
+
+    // Then
+    // Only traits without which no rule could match are required
+    Assertions.assertEquals(new java.util.HashSet<>(Arrays.asList("plan", "email")),
+        predicate.getRequiredTraits());
+  }
+
+  @Test
+  public void testSegmentCompiler_SharesIdenticalRules() {
+    // Given
+    // Segments repeating the same nested rule, and segments splitting on the
+    // same percentage, which depends on the segment key
+    SegmentRule staffRule = new SegmentRule().withType(SegmentRule.Type.ANY).withConditions(
+        Arrays.asList(
+            new SegmentCondition()
+                .withOperator(SegmentConditions.EQUAL)
+                .withProperty("team")
+                .withValue("staff"),
+            new SegmentCondition()
+                .withOperator(SegmentConditions.REGEX)
+                .withProperty("email")
+                .withValue(".*@flagsmith\\.com$")));
+    List<SegmentContext> segments = new ArrayList<>();
+    for (String plan : Arrays.asList("free", "premium")) {
+      segments.add(new SegmentContext().withKey(plan).withName(plan).withRules(Arrays.asList(
+          new SegmentRule().withType(SegmentRule.Type.ALL)
+              .withConditions(Arrays.asList(
+                  new SegmentCondition()
+                      .withOperator(SegmentConditions.EQUAL)
+                      .withProperty("plan")
+                      .withValue(plan)))
+              .withRules(Arrays.asList(new SegmentRule(staffRule))))));
+    }
+    for (String key : Arrays.asList("split_1", "split_2")) {
+      segments.add(new SegmentContext().withKey(key).withName(key).withRules(Arrays.asList(
+          new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(Arrays.asList(
+              new SegmentCondition()
+                  .withOperator(SegmentConditions.PERCENTAGE_SPLIT)
+                  .withValue("50"))))));
+    }
+
+    // When
+    SegmentCompiler compiler = new SegmentCompiler();
+    List<SegmentPredicate> predicates = new ArrayList<>();
+    for (SegmentContext segment : segments) {
+      predicates.add(compiler.compile(segment));
+    }
+
+    // Then
+    // Only the nested rule is shared, and shared results match independent ones
+    Assertions.assertEquals(1, compiler.getSharedRuleCount());
+    for (int i = 0; i < 20; i++) {
+      EvaluationContext context = FlagsmithTestHelper.evaluationContext()
+          .withIdentity(new IdentityContext()
+              .withIdentifier("identity_" + i)
+              .withKey("key_" + i)
+              .withTraits(new Traits()
+                  .withAdditionalProperty("plan", i % 2 == 0 ? "free" : "premium")
+                  .withAdditionalProperty("email", "user" + i + (i % 3 == 0
+                      ? "@flagsmith.com" : "@example.com"))));
+      EvaluationScope scope = new EvaluationScope(context, compiler.getSharedRuleCount());
+      for (int j = 0; j < segments.size(); j++) {
+        Assertions.assertEquals(
+            SegmentEvaluator.isContextInSegment(context, segments.get(j)),
+            predicates.get(j).matches(scope));
+      }
+    }
+  }
+
+  @Test
+  public void testSegmentCompiler_ProjectedTraits_MatchTraitsLookedUpByName() {
+    // Given
+    // segments reading three trait keys, one of them through JSONPath
+    List<SegmentContext> segments = Arrays.asList(
+        new SegmentContext().withKey("1").withName("adults").withRules(Arrays.asList(
+            new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(Arrays.asList(
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.GREATER_THAN_INCLUSIVE)
+                    .withProperty("age")
+                    .withValue("18"),
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.EQUAL)
+                    .withProperty("$.identity.traits.country")
+                    .withValue("FR"))))),
+        new SegmentContext().withKey("2").withName("premium").withRules(Arrays.asList(
+            new SegmentRule().withType(SegmentRule.Type.ANY).withConditions(Arrays.asList(
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.EQUAL)
+                    .withProperty("plan")
+                    .withValue("premium"),
+                new SegmentCondition()
+                    .withOperator(SegmentConditions.IS_NOT_SET)
+                    .withProperty("age"))))));
+
+    // When
+    SegmentCompiler compiler = new SegmentCompiler();
+    List<SegmentPredicate> predicates = new ArrayList<>();
+    for (SegmentContext segment : segments) {
+      predicates.add(compiler.compile(segment));
+    }
+
+    // Then
+    Assertions.assertEquals(3, compiler.getTraitSymbols().size());
+    EvaluationScope scope = new EvaluationScope();
+    for (int i = 0; i < 40; i++) {
+      // Identities with fewer and with more traits than the segments read
+      Traits traits = new Traits();
+      for (int j = 0; j < (i % 2 == 0 ? 0 : 20); j++) {
+        traits.withAdditionalProperty("unused_" + j, j);
+      }
+      if (i % 5 != 0) {
+        traits.withAdditionalProperty("age", i);
+      }
+      traits.withAdditionalProperty("plan", i % 3 == 0 ? "premium" : "free");
+      traits.withAdditionalProperty("$.identity.traits.country", i % 4 == 0 ? "FR" : "DE");
+      IdentityContext identity = new IdentityContext()
+          .withIdentifier("identity_" + i)
+          .withKey("key_" + i)
+          .withTraits(traits);
+      EvaluationContext context = FlagsmithTestHelper.evaluationContext().withIdentity(identity);
+
+      scope.reset(context, identity, identity.getKey(), compiler.getSharedRuleCount(),
+          compiler.getTraitSymbols());
+      for (int j = 0; j < segments.size(); j++) {
+        Assertions.assertEquals(
+            SegmentEvaluator.isContextInSegment(context, segments.get(j)),
+            predicates.get(j).matches(scope));
+      }
+    }
+  }
+
+  private static final SegmentCondition FLAGSMITH_EMAIL = new SegmentCondition()
+      .withOperator(SegmentConditions.REGEX)
+      .withProperty("email")
+      .withValue(".*@flagsmith\\.com$");
+  private static final SegmentCondition COM_EMAIL = new SegmentCondition()
+      .withOperator(SegmentConditions.REGEX)
+      .withProperty("email")
+      .withValue(".*\\.com$");
+  private static final SegmentCondition PREMIUM_PLAN = new SegmentCondition()
+      .withOperator(SegmentConditions.EQUAL)
+      .withProperty("plan")
+      .withValue("premium");
+  private static final SegmentCondition COUNTRY_SET = new SegmentCondition()
+      .withOperator(SegmentConditions.IS_SET)
+      .withProperty("country");
+  private static final SegmentCondition RECENT_VERSION = new SegmentCondition()
+      .withOperator(SegmentConditions.GREATER_THAN)
+      .withProperty("version")
+      .withValue("2.0.0:semver");
+  private static final SegmentCondition PREMIUM_PLAN_PATH = new SegmentCondition()
+      .withOperator(SegmentConditions.EQUAL)
+      .withProperty("$.identity.traits.plan")
+      .withValue("premium");
+
+  private static final SegmentCondition X_NAME = new SegmentCondition()
+      .withOperator(SegmentConditions.REGEX)
+      .withProperty("name")
+      .withValue("^x");
+  private static final SegmentCondition A_NAME = new SegmentCondition()
+      .withOperator(SegmentConditions.REGEX)
+      .withProperty("name")
+      .withValue("^a");
+  // A condition value that can't be compared with a string trait value
+  private static final SegmentCondition NUMBER_NAME = new SegmentCondition(
+      SegmentConditions.EQUAL, "name", 5);
+
+  @Test
+  public void testSegmentCompiler_CheapConditionsFirst_SkipRegex() {
+    // Given
+    // The regex email domain condition is listed before the plan condition
+    SegmentContext segment = new SegmentContext().withKey("1").withName("staff").withRules(
+        Arrays.asList(new SegmentRule().withType(SegmentRule.Type.ALL).withConditions(
+            Arrays.asList(FLAGSMITH_EMAIL, PREMIUM_PLAN))));
+    List<String> foundPatterns = new ArrayList<>();
+    SegmentCompiler compiler = new SegmentCompiler(countingRegexEngine(foundPatterns));
+    SegmentPredicate predicate = compiler.compile(segment);
+
+    for (String plan : Arrays.asList(null, "free", "premium")) {
+      for (String email : Arrays.asList("user@flagsmith.com", "user@example.com")) {
+        Traits traits = new Traits().withAdditionalProperty("email", email);
+        if (plan != null) {
+          traits.withAdditionalProperty("plan", plan);
+        }
+        EvaluationContext context = contextWithTraits(traits);
+        foundPatterns.clear();
+
+        // When
+        boolean matches = predicate.matches(
+            new EvaluationScope(context, compiler.getSharedRuleCount()));
+
+        // Then
+        // The regex only runs for the premium plan, and the result is the same
+        // as matching the conditions in document order
+        Assertions.assertEquals("premium".equals(plan) ? 1 : 0, foundPatterns.size());
+        Assertions.assertEquals(matchesInDocumentOrder(context, segment.getRules().get(0)),
+            matches);
+      }
+    }
+  }
+
+  private static Stream<Arguments> conditionsInDocumentOrder() {
+    return Stream.of(
+        // IS_SET and EQUAL are matched before REGEX
+        Arguments.of(SegmentRule.Type.ALL, Arrays.asList(FLAGSMITH_EMAIL, COUNTRY_SET),
+            new Traits().withAdditionalProperty("email", "user@flagsmith.com"),
+            Collections.emptyList()),
+        Arguments.of(SegmentRule.Type.NONE, Arrays.asList(FLAGSMITH_EMAIL, PREMIUM_PLAN),
+            new Traits()
+                .withAdditionalProperty("email", "user@flagsmith.com")
+                .withAdditionalProperty("plan", "premium"),
+            Collections.emptyList()),
+        // SEMVER is matched before REGEX
+        Arguments.of(SegmentRule.Type.ALL, Arrays.asList(FLAGSMITH_EMAIL, RECENT_VERSION),
+            new Traits()
+                .withAdditionalProperty("email", "user@flagsmith.com")
+                .withAdditionalProperty("version", "1.0.0"),
+            Collections.emptyList()),
+        // JSONPath is matched after REGEX
+        Arguments.of(SegmentRule.Type.ALL, Arrays.asList(PREMIUM_PLAN_PATH, FLAGSMITH_EMAIL),
+            new Traits()
+                .withAdditionalProperty("email", "user@flagsmith.com")
+                .withAdditionalProperty("plan", "free"),
+            Arrays.asList(FLAGSMITH_EMAIL.getValue())),
+        // Conditions of equal cost keep their document order
+        Arguments.of(SegmentRule.Type.ANY, Arrays.asList(COM_EMAIL, FLAGSMITH_EMAIL),
+            new Traits().withAdditionalProperty("email", "user@flagsmith.com"),
+            Arrays.asList(COM_EMAIL.getValue())),
+        Arguments.of(SegmentRule.Type.ANY, Arrays.asList(FLAGSMITH_EMAIL, COM_EMAIL),
+            new Traits().withAdditionalProperty("email", "user@flagsmith.com"),
+            Arrays.asList(FLAGSMITH_EMAIL.getValue())),
+        // Conditions that can't compare their values don't match, rather than
+        // failing once matched before conditions listed ahead of them
+        Arguments.of(SegmentRule.Type.ALL, Arrays.asList(X_NAME, NUMBER_NAME),
+            new Traits().withAdditionalProperty("name", "abc"),
+            Collections.emptyList()),
+        Arguments.of(SegmentRule.Type.ANY, Arrays.asList(A_NAME, NUMBER_NAME),
+            new Traits().withAdditionalProperty("name", "abc"),
+            Arrays.asList(A_NAME.getValue()))
+    );
+  }
+
+  @ParameterizedTest
+  @MethodSource("conditionsInDocumentOrder")
+  public void testSegmentCompiler_OrdersConditionsByCost(SegmentRule.Type type,
+      List<SegmentCondition> conditions, Traits traits, List<String> expectedFoundPatterns) {
+    // Given
+    SegmentRule rule = new SegmentRule().withType(type).withConditions(conditions);
+    SegmentContext segment = new SegmentContext().withKey("1").withName("testSegment")
+        .withRules(Arrays.asList(rule));
+    EvaluationContext context = contextWithTraits(traits);
+    List<String> foundPatterns = new ArrayList<>();
+    SegmentCompiler compiler = new SegmentCompiler(countingRegexEngine(foundPatterns));
+
+    // When
+    boolean matches = compiler.compile(segment).matches(
+        new EvaluationScope(context, compiler.getSharedRuleCount()));
+
+    // Then
+    Assertions.assertEquals(expectedFoundPatterns, foundPatterns);
+    Assertions.assertEquals(matchesInDocumentOrder(context, rule), matches);
+  }
+
+  private static EvaluationContext contextWithTraits(Traits traits) {
+    return FlagsmithTestHelper.evaluationContext().withIdentity(new IdentityContext()
+        .withIdentifier("identity")
+        .withKey("key")
+        .withTraits(traits));
+  }
+
+  /*
+   * Match the conditions of a rule one at a time, in document order.
+   */
+  private static boolean matchesInDocumentOrder(EvaluationContext context, SegmentRule rule) {
+    List<Boolean> results = new ArrayList<>();
+    for (SegmentCondition condition : rule.getConditions()) {
+      results.add(SegmentEvaluator.isContextInSegment(context, new SegmentContext()
+          .withKey("1").withName("condition").withRules(Arrays.asList(new SegmentRule()
+              .withType(SegmentRule.Type.ALL)
+              .withConditions(Arrays.asList(condition))))));
+    }
+    switch (rule.getType()) {
+      case ALL:
+        return !results.contains(false);
+      case ANY:
+        return results.contains(true);
+      default:
+        return !results.contains(true);
+    }
+  }
+
+  /*
+   * A regex engine recording the pattern of every match it runs.
+   */
+  private static RegexEngine countingRegexEngine(List<String> foundPatterns) {
+    RegexEngine engine = new JavaRegexEngine();
+    return (regex) -> {
+      CompiledRegex compiled = engine.compile(regex);
+      return (input) -> {
+        foundPatterns.add(regex);
+        return compiled.find(input);
+      };
+    };
+  }
 }
@@ -0,0 +1,180 @@
+package com.flagsmith.flagengine.unit.segments;
+
+import com.flagsmith.FlagsmithTestHelper;
+import com.flagsmith.flagengine.EvaluationContext;
+import com.flagsmith.flagengine.FeatureContext;
+import com.flagsmith.flagengine.IdentityContext;
+import com.flagsmith.flagengine.SegmentCondition;
+import com.flagsmith.flagengine.SegmentContext;
+import com.flagsmith.flagengine.SegmentRule;
+import com.flagsmith.flagengine.Segments;
+import com.flagsmith.flagengine.Traits;
+import com.flagsmith.flagengine.segments.SegmentEvaluator;
+import com.flagsmith.flagengine.segments.SegmentOptimiser;
+import com.flagsmith.flagengine.segments.constants.SegmentConditions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class SegmentOptimiserTest {
+
+  private static final List<SegmentCondition> CONDITIONS = Arrays.asList(
+      condition(SegmentConditions.EQUAL, "plan", "premium"),
+      condition(SegmentConditions.EQUAL, "plan", "free"),
+      condition(SegmentConditions.GREATER_THAN, "age", "18"),
+      condition(SegmentConditions.LESS_THAN_INCLUSIVE, "age", "30"),
+      condition(SegmentConditions.IS_SET, "country", null),
+      condition(SegmentConditions.IN, "country", "GB,FR"),
+      condition(SegmentConditions.REGEX, "plan", "^p"),
+      condition(SegmentConditions.PERCENTAGE_SPLIT, null, "50"),
+      // Never match
+      condition(SegmentConditions.EQUAL, "plan", null),
+      condition(SegmentConditions.REGEX, "plan", "(unclosed"));
+
+  @Test
+  public void testOptimise_RandomRules_MatchSameContexts() {
+    // Given
+    Random random = new Random(42);
+    List<EvaluationContext> contexts = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      Traits traits = new Traits();
+      if (i % 3 != 0) {
+        traits.withAdditionalProperty("plan", i % 2 == 0 ? "premium" : "free");
+      }
+      if (i % 4 != 0) {
+        traits.withAdditionalProperty("age", i * 2);
+      }
+      if (i % 5 != 0) {
+        traits.withAdditionalProperty("country", i % 2 == 0 ? "GB" : "US");
+      }
+      contexts.add(FlagsmithTestHelper.evaluationContext().withIdentity(new IdentityContext()
+          .withIdentifier("identity_" + i)
+          .withKey("key_" + i)
+          .withTraits(traits)));
+    }
+
+    for (int i = 0; i < 500; i++) {
+      List<SegmentRule> rules = new ArrayList<>();
+      for (int j = random.nextInt(3); j >= 0; j--) {
+        rules.add(randomRule(random, 3));
+      }
+      SegmentContext segment = new SegmentContext()
+          .withKey("segment_" + i).withName("segment").withRules(rules);
+
+      // When
+      SegmentContext optimised = SegmentOptimiser.optimise(segment);
+
+      // Then
+      for (EvaluationContext context : contexts) {
+        Assertions.assertEquals(
+            SegmentEvaluator.isContextInSegment(context, segment),
+            optimised != null && SegmentEvaluator.isContextInSegment(context, optimised),
+            "segment " + i);
+      }
+    }
+  }
+
+  @Test
+  public void testOptimise_NestedRules_AreFlattened() {
+    // Given
+    // an ALL rule nested in an ALL rule, a single condition ANY rule, a
+    // duplicated condition and a rule without conditions
+    SegmentCondition premium = CONDITIONS.get(0);
+    SegmentCondition adult = CONDITIONS.get(2);
+    SegmentCondition inCountry = CONDITIONS.get(5);
+    SegmentContext segment = new SegmentContext().withKey("1").withName("segment").withRules(
+        Arrays.asList(new SegmentRule().withType(SegmentRule.Type.ALL)
+            .withConditions(Arrays.asList(premium, premium))
+            .withRules(Arrays.asList(
+                new SegmentRule().withType(SegmentRule.Type.ALL)
+                    .withConditions(Arrays.asList(adult)),
+                new SegmentRule().withType(SegmentRule.Type.ANY)
+                    .withConditions(Arrays.asList(inCountry)),
+                new SegmentRule().withType(SegmentRule.Type.NONE)))));
+
+    // When
+    SegmentContext optimised = SegmentOptimiser.optimise(segment);
+
+    // Then
+    Assertions.assertEquals(Collections.singletonList(new SegmentRule()
+        .withType(SegmentRule.Type.ALL)
+        .withConditions(Arrays.asList(premium, adult, inCountry))), optimised.getRules());
+  }
+
+  @Test
+  public void testOptimise_ConstantRules_AreFolded() {
+    // Given
+    SegmentCondition never = CONDITIONS.get(8);
+    SegmentContext neverSegment = new SegmentContext().withKey("1").withName("never")
+        .withRules(Arrays.asList(new SegmentRule().withType(SegmentRule.Type.ALL)
+            .withConditions(Arrays.asList(CONDITIONS.get(0), never))));
+    SegmentContext alwaysSegment = new SegmentContext().withKey("2").withName("always")
+        .withRules(Arrays.asList(new SegmentRule().withType(SegmentRule.Type.NONE)
+            .withConditions(Arrays.asList(never))));
+
+    // When / Then
+    Assertions.assertNull(SegmentOptimiser.optimise(neverSegment));
+    Assertions.assertEquals(
+        Collections.singletonList(new SegmentRule().withType(SegmentRule.Type.ALL)),
+        SegmentOptimiser.optimise(alwaysSegment).getRules());
+  }
+
+  @Test
+  public void testOptimise_EvaluationContext_RemovesUnusedSegments() {
+    // Given
+    EvaluationContext context = FlagsmithTestHelper.evaluationContext();
+    FeatureContext feature = context.getFeatures().getAdditionalProperties().values()
+        .iterator().next();
+    List<SegmentRule> rules = Arrays.asList(new SegmentRule().withType(SegmentRule.Type.ALL)
+        .withConditions(Arrays.asList(CONDITIONS.get(0))));
+    context.withSegments(new Segments()
+        .withAdditionalProperty("overriding", new SegmentContext()
+            .withKey("1").withName("overriding").withRules(rules)
+            .withOverrides(Arrays.asList(new FeatureContext(feature).withValue("premium"))))
+        .withAdditionalProperty("listed", new SegmentContext()
+            .withKey("2").withName("listed").withRules(rules))
+        .withAdditionalProperty("unused", new SegmentContext()
+            .withKey("3").withName("unused").withRules(rules))
+        .withAdditionalProperty("never", new SegmentContext()
+            .withKey("4").withName("never").withRules(Arrays.asList(new SegmentRule()
+                .withType(SegmentRule.Type.ALL)
+                .withConditions(Arrays.asList(CONDITIONS.get(8)))))
+            .withOverrides(Arrays.asList(new FeatureContext(feature)))));
+
+    // When
+    EvaluationContext optimised = SegmentOptimiser.optimise(
+        context, (segment) -> segment.getName().equals("listed"));
+
+    // Then
+    Assertions.assertEquals(Arrays.asList("overriding", "listed"),
+        new ArrayList<>(optimised.getSegments().getAdditionalProperties().keySet()));
+    Assertions.assertEquals(4, context.getSegments().getAdditionalProperties().size());
+  }
+
+  private static SegmentRule randomRule(Random random, int depth) {
+    SegmentRule.Type[] types = SegmentRule.Type.values();
+    List<SegmentCondition> conditions = new ArrayList<>();
+    for (int i = random.nextInt(4); i > 0; i--) {
+      conditions.add(CONDITIONS.get(random.nextInt(CONDITIONS.size())));
+    }
+    List<SegmentRule> rules = new ArrayList<>();
+    if (depth > 0) {
+      for (int i = random.nextInt(3); i > 0; i--) {
+        rules.add(randomRule(random, depth - 1));
+      }
+    }
+    return new SegmentRule()
+        .withType(types[random.nextInt(types.length)])
+        .withConditions(conditions)
+        .withRules(rules);
+  }
+
+  private static SegmentCondition condition(
+      SegmentConditions operator, String property, String value) {
+    return new SegmentCondition().withOperator(operator).withProperty(property).withValue(value);
+  }
+}
@@ -0,0 +1,63 @@
+package com.flagsmith.flagengine.unit.utils;
+
+import com.flagsmith.flagengine.utils.HashedPercentageMemo;
+import com.flagsmith.flagengine.utils.Hashing;
+import java.util.Arrays;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class HashedPercentageMemoTest {
+
+  @Test
+  public void testHashedPercentage_WithMemo_MatchesHashedPercentageAndCountsHits() {
+    HashedPercentageMemo memo = new HashedPercentageMemo(1024);
+    Hashing hashing = Hashing.getInstance();
+    Hashing.HashPrefix prefix = hashing.getHashPrefix("segment", memo);
+
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 100; i++) {
+        String identityKey = "identity_" + i;
+        Assertions.assertEquals(
+            hashing.getHashedPercentageForObjectIds(Arrays.asList("segment", identityKey)),
+            hashing.getHashedPercentageForObjectIds(prefix, identityKey));
+      }
+    }
+
+    Assertions.assertEquals(100, memo.getMissCount());
+    Assertions.assertEquals(100, memo.getHitCount());
+  }
+
+  @Test
+  public void testHashedPercentage_WithFullMemo_KeepsHotIdentity() {
+    HashedPercentageMemo memo = new HashedPercentageMemo(2);
+    Hashing hashing = Hashing.getInstance();
+    Hashing.HashPrefix prefix = hashing.getHashPrefix("segment", memo);
+
+    hashing.getHashedPercentageForObjectIds(prefix, "hot");
+    for (int i = 0; i < 100; i++) {
+      hashing.getHashedPercentageForObjectIds(prefix, "hot");
+      hashing.getHashedPercentageForObjectIds(prefix, "cold_" + i);
+    }
+
+    Assertions.assertEquals(2, memo.getMaximumSize());
+    Assertions.assertEquals(100, memo.getHitCount());
+    Assertions.assertEquals(101, memo.getMissCount());
+  }
+
+  @Test
+  public void testHashedPercentage_WithoutMemo_HashesEveryTime() {
+    HashedPercentageMemo memo = new HashedPercentageMemo(16);
+    Hashing hashing = Hashing.getInstance();
+    hashing.getHashedPercentageForObjectIds(hashing.getHashPrefix("segment", memo), "identity");
+
+    hashing.getHashedPercentageForObjectIds(hashing.getHashPrefix("segment"), "identity");
+
+    Assertions.assertEquals(0, memo.getHitCount());
+    Assertions.assertEquals(1, memo.getMissCount());
+  }
+
+  @Test
+  public void testConstructor_InvalidMaximumSize_Throws() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new HashedPercentageMemo(0));
+  }
+}
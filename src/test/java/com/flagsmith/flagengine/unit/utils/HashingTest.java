@@ -11,8 +11,12 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -106,6 +110,101 @@ public class HashingTest {
     }
   }
 
+  @Test
+  public void testHashedPercentageMatchesReferenceImplementation() throws Exception {
+    Random random = new Random(20240517L);
+
+    for (int i = 0; i < 1_000_000; i++) {
+      List<String> objectIds = Arrays.asList(randomId(random), randomId(random));
+      int iterations = random.nextInt(8) == 0 ? 1 + random.nextInt(3) : 1;
+
+      float expected = referenceHashedPercentage(objectIds, iterations);
+      Float actual = Hashing.getInstance().getHashedPercentageForObjectIds(
+          objectIds, iterations);
+
+      if (Float.floatToIntBits(actual) != Float.floatToIntBits(expected)) {
+        Assertions.fail(String.format("%s x%d: expected %s, got %s",
+            objectIds, iterations, expected, actual));
+      }
+    }
+  }
+
+  @Test
+  public void testHashedPercentageForPrefixMatchesObjectIds() {
+    Random random = new Random(20240518L);
+    Hashing hashing = Hashing.getInstance();
+
+    for (int i = 0; i < 2_000; i++) {
+      String prefixId = randomId(random);
+      Hashing.HashPrefix prefix = hashing.getHashPrefix(prefixId);
+      String id = randomId(random);
+
+      for (int j = 0; j < 100; j++) {
+        if (random.nextInt(4) == 0) {
+          id = randomId(random);
+        }
+        Assertions.assertEquals(
+            hashing.getHashedPercentageForObjectIds(Arrays.asList(prefixId, id)),
+            hashing.getHashedPercentageForObjectIds(prefix, id));
+      }
+    }
+  }
+
+  /*
+   * The original implementation, formatting the digest as hex and parsing it
+   * back into a BigInteger.
+   */
+  private static float referenceHashedPercentage(List<String> ids, int iterations)
+      throws Exception {
+    String hashTo = String.join(",", ids);
+    String hashToWithIteration = IntStream
+        .rangeClosed(1, iterations)
+        .mapToObj((i) -> hashTo)
+        .collect(Collectors.joining(","));
+
+    byte[] digest = MessageDigest.getInstance("MD5")
+        .digest(hashToWithIteration.getBytes(StandardCharsets.UTF_8));
+    Float hashedFloat = new BigInteger(1, digest).mod(new BigInteger("9999")).floatValue();
+    hashedFloat = ((hashedFloat / 9998) * 100);
+
+    if (hashedFloat == 100) {
+      return referenceHashedPercentage(ids, iterations + 1);
+    }
+    return hashedFloat;
+  }
+
+  private static String randomId(Random random) {
+    switch (random.nextInt(4)) {
+      case 0:
+        return UUID.randomUUID().toString();
+      case 1:
+        return Integer.toString(random.nextInt(100_000));
+      default:
+        StringBuilder id = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+          switch (random.nextInt(5)) {
+            case 0:
+              id.append((char) (0x80 + random.nextInt(0x780)));
+              break;
+            case 1:
+              id.append((char) (0x800 + random.nextInt(0xD000)));
+              break;
+            case 2:
+              id.appendCodePoint(0x10000 + random.nextInt(0x100000));
+              break;
+            case 3:
+              // Unpaired surrogate, encoded as '?'.
+              id.append((char) (0xD800 + random.nextInt(0x800)));
+              break;
+            default:
+              id.append((char) (0x20 + random.nextInt(0x5F)));
+          }
+        }
+        return id.toString();
+    }
+  }
+
   public void testGetHashedPercentageIsNotOne() {
     List<String> objectIds = Arrays.asList("12", "93");
 
@@ -0,0 +1,102 @@
+package com.flagsmith.flagengine.unit.utils;
+
+import com.flagsmith.flagengine.utils.regex.CompiledRegex;
+import com.flagsmith.flagengine.utils.regex.LinearRegexEngine;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LinearRegexEngineTest {
+
+  private static final List<String> ATOMS = Arrays.asList(
+      "a", "b", "ab", ".", "\\d", "\\D", "\\s", "\\S", "\\w", "\\W", "[ab]", "[^a]",
+      "[a-c0-9_]", "[^\\d\\s]", "\\.", "\\n", "\\x41", "\\u00e9", "😀",
+      "[😀-🙏]", "^", "$", "(a|b)", "(?:ab|a)", "(?<name>b+)", "()");
+
+  private static final List<String> QUANTIFIERS = Arrays.asList(
+      "", "", "", "*", "+", "?", "*?", "+?", "??", "{2}", "{1,}", "{0,2}", "{1,3}?");
+
+  private static final List<String> INPUT_PARTS = Arrays.asList(
+      "a", "b", "c", "A", "0", "9", "_", " ", ".", "\n", "\r", "\r\n", "\u0085", " ",
+      "é", "😀", "🙏", "\uD83D", "\uDE00", "ab", "aab");
+
+  @Test
+  public void testFind_RandomPatterns_MatchesJavaRegex() {
+    Random random = new Random(42);
+    LinearRegexEngine engine = new LinearRegexEngine();
+
+    for (int i = 0; i < 3000; i++) {
+      String regex = randomPattern(random, 2);
+      Pattern pattern;
+      try {
+        pattern = Pattern.compile(regex);
+      } catch (PatternSyntaxException e) {
+        // Such as a group name used twice.
+        continue;
+      }
+      CompiledRegex compiledRegex = engine.compile(regex);
+      for (int j = 0; j < 20; j++) {
+        StringBuilder input = new StringBuilder();
+        int length = random.nextInt(8);
+        for (int k = 0; k < length; k++) {
+          input.append(INPUT_PARTS.get(random.nextInt(INPUT_PARTS.size())));
+        }
+        Assertions.assertEquals(
+            pattern.matcher(input).find(), compiledRegex.find(input),
+            "/" + regex + "/ on \"" + input + "\"");
+      }
+    }
+  }
+
+  @Test
+  public void testFind_UnsupportedPatterns_MatchesJavaRegex() {
+    LinearRegexEngine engine = new LinearRegexEngine();
+
+    Assertions.assertTrue(engine.compile("(a)\\1").find("xaa"));
+    Assertions.assertFalse(engine.compile("(a)\\1").find("xab"));
+    Assertions.assertTrue(engine.compile("(?i)premium").find("PREMIUM"));
+    Assertions.assertTrue(engine.compile("foo(?=bar)").find("foobar"));
+    Assertions.assertFalse(engine.compile("\\bfoo\\b").find("foobar"));
+  }
+
+  @Test
+  public void testFind_NestedQuantifiers_RunsInLinearTime() {
+    CompiledRegex compiledRegex = new LinearRegexEngine().compile("^(a+)+$");
+    char[] chars = new char[100_000];
+    Arrays.fill(chars, 'a');
+    String input = new String(chars) + "!";
+
+    Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+      Assertions.assertFalse(compiledRegex.find(input));
+      Assertions.assertTrue(compiledRegex.find(input.substring(0, input.length() - 1)));
+    });
+  }
+
+  @Test
+  public void testCompile_InvalidPattern_Throws() {
+    Assertions.assertThrows(
+        PatternSyntaxException.class, () -> new LinearRegexEngine().compile("(a"));
+  }
+
+  private static String randomPattern(Random random, int depth) {
+    StringBuilder regex = new StringBuilder();
+    int length = 1 + random.nextInt(4);
+    for (int i = 0; i < length; i++) {
+      String atom = ATOMS.get(random.nextInt(ATOMS.size()));
+      if (depth > 0 && random.nextInt(4) == 0) {
+        atom = "(" + randomPattern(random, depth - 1) + "|" + randomPattern(random, depth - 1)
+            + ")";
+      }
+      regex.append(atom);
+      if (!atom.equals("^") && !atom.equals("$")) {
+        regex.append(QUANTIFIERS.get(random.nextInt(QUANTIFIERS.size())));
+      }
+    }
+    return regex.toString();
+  }
+}
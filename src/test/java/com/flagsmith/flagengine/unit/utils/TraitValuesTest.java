@@ -0,0 +1,31 @@
+package com.flagsmith.flagengine.unit.utils;
+
+import com.flagsmith.flagengine.utils.TraitValues;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TraitValuesTest {
+
+  @Test
+  public void testIsImmutable_ScalarValues_True() {
+    Object[] values = {null, "value", true, 1, 1L, 1.0, 1.0f, (short) 1, (byte) 1,
+        BigInteger.ONE, BigDecimal.ONE};
+    for (Object value : values) {
+      Assertions.assertTrue(TraitValues.isImmutable(value), String.valueOf(value));
+    }
+  }
+
+  @Test
+  public void testIsImmutable_MutableValues_False() {
+    Object[] values = {new StringBuilder("value"), new AtomicInteger(1), new ArrayList<>(),
+        new HashMap<>()};
+    for (Object value : values) {
+      Assertions.assertFalse(TraitValues.isImmutable(value), String.valueOf(value));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.flagsmith.flagengine.unit.utils;
+
+import com.flagsmith.flagengine.segments.constants.SegmentConditions;
+import com.flagsmith.flagengine.utils.types.TypeCasting;
+import com.flagsmith.flagengine.utils.types.TypedValue;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TypeCastingTest {
+
+  private static final List<Object> VALUES = Arrays.asList(
+      "", " ", "-", "+", "0", "-0", "+5", "007", "42", " 42", "42 ", "-17",
+      "2147483647", "2147483648", "-2147483648", "-2147483649", "99999999999",
+      "١٢", "1.5", " 1.5 ", ".5", "5.", "1e5", "1E-3", "1.5f", "2d",
+      "0x1p3", "0x1.8p1", "NaN", "-Infinity", "Infinity", "1e", "e5", "1..2",
+      "true", "TRUE", "false", "1", "yes", "on", "premium", "1.2.3",
+      "1.2.3:semver", "2.0.0-beta:semver", ":semver",
+      5, -3, 1.5d, 2.5f, 10L, true, false);
+
+  private static final List<SegmentConditions> OPERATORS = Arrays.asList(
+      SegmentConditions.EQUAL, SegmentConditions.NOT_EQUAL, SegmentConditions.GREATER_THAN,
+      SegmentConditions.GREATER_THAN_INCLUSIVE, SegmentConditions.LESS_THAN,
+      SegmentConditions.LESS_THAN_INCLUSIVE);
+
+  @Test
+  public void testCasts_MatchParsingWithExceptions() {
+    for (Object value : VALUES) {
+      String asString = String.valueOf(value);
+      Assertions.assertEquals(
+          valueOrNull(() -> value instanceof Integer ? (Integer) value : Integer.valueOf(asString)),
+          TypeCasting.toInteger(value), asString);
+      Assertions.assertEquals(
+          valueOrNull(() -> value instanceof Float ? (Float) value : Float.parseFloat(asString)),
+          TypeCasting.toFloat(value), asString);
+      Assertions.assertEquals(
+          valueOrNull(() -> value instanceof Double ? (Double) value : Double.parseDouble(asString)),
+          TypeCasting.toDouble(value), asString);
+    }
+  }
+
+  @Test
+  public void testCompare_TypedValues_MatchesComparingValues() {
+    for (SegmentConditions operator : OPERATORS) {
+      for (Object value1 : VALUES) {
+        for (Object value2 : VALUES) {
+          String message = operator + " " + value1 + " " + value2;
+          Object expected = resultOrException(
+              () -> TypeCasting.compare(operator, value1, value2));
+          Object actual = resultOrException(
+              () -> TypeCasting.compare(operator, TypedValue.of(value1), TypedValue.of(value2)));
+          Assertions.assertEquals(expected, actual, message);
+        }
+      }
+    }
+  }
+
+  private static Object valueOrNull(Callable<Object> cast) {
+    try {
+      return cast.call();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static Object resultOrException(Callable<Object> comparison) {
+    try {
+      return comparison.call();
+    } catch (Exception e) {
+      return e.getClass();
+    }
+  }
+}